@@ -0,0 +1,99 @@
+package p2p.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole download through the relay: GET /download/{code} on the API server, which connects
+ * to the share server and streams the file back. Uploads one file in setup and downloads it
+ * in full and as a 64 KB range, so both the per-request overhead and the copy throughput show.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+    private static final String BOUNDARY = "----PeerLinkBenchBoundary";
+
+    @Param({ "65536", "16777216" })
+    int fileSize;
+
+    private FileController controller;
+    private HttpClient client;
+    private URI download;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        int apiPort = freePort();
+        controller = new FileController(apiPort, freePort());
+        controller.start();
+        client = HttpClient.newHttpClient();
+
+        byte[] data = new byte[fileSize];
+        new Random(1).nextBytes(data);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(fileSize + 512);
+        body.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(data);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        HttpResponse<String> uploaded = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + apiPort + "/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        Matcher code = Pattern.compile("\"port\":\\s*(\\d+)").matcher(uploaded.body());
+        if (uploaded.statusCode() != 200 || !code.find()) {
+            throw new IOException("Upload failed: " + uploaded.statusCode() + " " + uploaded.body());
+        }
+        download = URI.create("http://localhost:" + apiPort + "/download/" + code.group(1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        controller.stop();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Benchmark
+    public int fullDownload() throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(download).build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    @Benchmark
+    public int rangedDownload() throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(download).header("Range", "bytes=0-65535").build(),
+                HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+}
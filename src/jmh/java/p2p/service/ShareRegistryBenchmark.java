@@ -0,0 +1,65 @@
+package p2p.service;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The share registry under contention: eight threads offering and retiring shares at once
+ * (what FileSharer.offerFile does for every upload), and eight threads looking codes up (what
+ * every download handshake does) while a few thousand shares are live.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class ShareRegistryBenchmark {
+    private static final int LIVE_SHARES = 4096;
+
+    private ShareRegistry registry;
+    private int[] liveCodes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Nothing to reclaim: the shares point at no file
+        registry = new ShareRegistry(share -> {
+        });
+        liveCodes = new int[LIVE_SHARES];
+        for (int i = 0; i < LIVE_SHARES; i++) {
+            liveCodes[i] = registry.add(code -> new Share(code, "bench", null, null, 0, 0, 0)).getCode();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        registry.close();
+    }
+
+    @Benchmark
+    public Share addAndRetire() {
+        Share share = registry.add(code -> new Share(code, "bench", null, null, 0, 0, 0));
+        registry.retire(share);
+        return share;
+    }
+
+    @Benchmark
+    public Share get() {
+        return registry.get(liveCodes[ThreadLocalRandom.current().nextInt(LIVE_SHARES)]);
+    }
+}
@@ -0,0 +1,132 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.utils.BufferPool;
+
+/**
+ * Sending a stored file to a loopback socket the three ways the share server could:
+ * transferTo (sendfile), a pooled direct buffer (what FileSenderHandler falls back to), and a
+ * plain 8 KB heap-buffer stream copy as the baseline. A thread on the other end of the socket
+ * reads and throws everything away.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TransferBenchmark {
+    @Param({ "1048576", "67108864" })
+    int fileSize;
+
+    private File file;
+    private FileContent content;
+    private ServerSocketChannel server;
+    private SocketChannel sender;
+    private Thread drain;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("peerlink-bench", ".bin");
+        byte[] data = new byte[fileSize];
+        new Random(1).nextBytes(data);
+        Files.write(file.toPath(), data);
+        content = new FileContent(file);
+
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        sender = SocketChannel.open(server.getLocalAddress());
+        SocketChannel receiver = server.accept();
+        drain = new Thread(() -> {
+            ByteBuffer sink = ByteBuffer.allocateDirect(1024 * 1024);
+            try (receiver) {
+                while (receiver.read(sink) != -1) {
+                    sink.clear();
+                }
+            } catch (IOException e) {
+                // The benchmark is over
+            }
+        }, "bench-drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        sender.close();
+        drain.join();
+        server.close();
+        content.close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Benchmark
+    public long zeroCopy() throws IOException {
+        long position = 0;
+        while (position < fileSize) {
+            position += content.transferTo(position, fileSize - position, sender);
+        }
+        return position;
+    }
+
+    @Benchmark
+    public long pooledDirectBuffer() throws IOException {
+        ByteBuffer buffer = BufferPool.acquire();
+        try {
+            long position = 0;
+            while (position < fileSize) {
+                buffer.clear();
+                int read = content.read(buffer, position);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    sender.write(buffer);
+                }
+                position += read;
+            }
+            return position;
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    @Benchmark
+    public long heapStreamCopy() throws IOException {
+        OutputStream out = Channels.newOutputStream(sender);
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            byte[] buffer = new byte[8192];
+            long copied = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                copied += read;
+            }
+            return copied;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What checking a download's SHA-256 on the way through costs: 16 MB relayed in the
+ * download handler's 64 KB writes, with and without the verifying stream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ContentHashBenchmark {
+    private static final int SIZE = 16 * 1024 * 1024;
+    private static final int WRITE = 64 * 1024;
+
+    private byte[] data;
+    private String hash;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = new byte[SIZE];
+        new Random(1).nextBytes(data);
+        hash = ContentHash.hex(ContentHash.newDigest().digest(data));
+    }
+
+    @Benchmark
+    public long plainRelay() throws IOException {
+        return relay(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public long verifiedRelay() throws IOException {
+        return relay(ContentHash.verifying(OutputStream.nullOutputStream(), hash, SIZE));
+    }
+
+    private long relay(OutputStream out) throws IOException {
+        for (int i = 0; i < SIZE; i += WRITE) {
+            out.write(data, i, WRITE);
+        }
+        return SIZE;
+    }
+}
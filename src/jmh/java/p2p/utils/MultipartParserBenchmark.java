@@ -0,0 +1,131 @@
+package p2p.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the streaming multipart parser, end to end and for its delimiter search.
+ *
+ * "random" content rarely contains a delimiter prefix; "crlf" content is full of "\r\n--"
+ * prefixes of the delimiter, the worst case for a naive search because almost every position
+ * starts a partial match.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartParserBenchmark {
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    @State(Scope.Thread)
+    public static class Upload {
+        @Param({ "1024", "1048576", "16777216" })
+        int fileSize;
+
+        @Param({ "random", "crlf" })
+        String content;
+
+        byte[] body;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(fileSize + 512);
+            out.write(("--" + BOUNDARY + "\r\n"
+                    + "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(fileContent(content, fileSize));
+            out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+            body = out.toByteArray();
+        }
+    }
+
+    // A 64 KB window, the size of the parser's own, to search for the delimiter in
+    @State(Scope.Thread)
+    public static class Window {
+        @Param({ "random", "crlf" })
+        String content;
+
+        byte[] data;
+        final byte[] delimiter = ("\r\n--" + BOUNDARY).getBytes(StandardCharsets.US_ASCII);
+        MultipartParser searcher;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            data = fileContent(content, 64 * 1024);
+            searcher = new MultipartParser(new ByteArrayInputStream(new byte[0]), BOUNDARY);
+        }
+
+        int findWithDelimiterAt(int position) {
+            System.arraycopy(delimiter, 0, data, position, delimiter.length);
+            int found = searcher.findSequence(data, 0, data.length, delimiter);
+            // Put the filler back so every invocation searches the same window
+            Arrays.fill(data, position, position + delimiter.length, (byte) 'x');
+            return found;
+        }
+    }
+
+    static byte[] fileContent(String content, int size) {
+        byte[] data = new byte[size];
+        if (content.equals("random")) {
+            new Random(1).nextBytes(data);
+            // No accidental delimiters: replace every '\r'
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] == '\r') {
+                    data[i] = 'r';
+                }
+            }
+        } else {
+            byte[] pattern = "\r\n--\r\n-".getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < data.length; i++) {
+                data[i] = pattern[i % pattern.length];
+            }
+        }
+        return data;
+    }
+
+    @Benchmark
+    public MultipartParser.ParseResult parse(Upload upload) throws IOException {
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(upload.body), BOUNDARY);
+        return parser.parse((filename, contentType) -> OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public int findSequenceAtStart(Window window) {
+        return window.findWithDelimiterAt(0);
+    }
+
+    @Benchmark
+    public int findSequenceInMiddle(Window window) {
+        return window.findWithDelimiterAt(window.data.length / 2);
+    }
+
+    @Benchmark
+    public int findSequenceAtEnd(Window window) {
+        return window.findWithDelimiterAt(window.data.length - window.delimiter.length);
+    }
+
+    @Benchmark
+    public int findSequenceMissing(Window window) {
+        return window.searcher.findSequence(window.data, 0, window.data.length, window.delimiter);
+    }
+}
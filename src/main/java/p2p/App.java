@@ -9,11 +9,23 @@ import java.io.IOException;
 public class App {
     public static void main(String[] args) {
         try {
-            // Start the API server on port 8080
-            FileController fileController = new FileController(8080);
+            // All shares are served from one port; override with -Dpeerlink.share.port=...
+            int sharePort = Integer.getInteger("peerlink.share.port", 9090);
+            // Several nodes can run on one machine with -Dpeerlink.api.port=...
+            int apiPort = Integer.getInteger("peerlink.api.port", 8080);
+
+            // Start the API server, on port 8080 unless overridden
+            FileController fileController = new FileController(apiPort, sharePort);
+            // Shares from before a restart keep their invite codes
+            long restoreStart = System.nanoTime();
+            int restored = fileController.restoreShares();
+            if (restored > 0) {
+                System.out.println("Restored " + restored + " shares in "
+                        + (System.nanoTime() - restoreStart) / 1_000_000 + " ms");
+            }
             fileController.start();
             
-            System.out.println("PeerLink server started on port 8080");
+            System.out.println("PeerLink server started on port " + apiPort);
             System.out.println("UI available at http://localhost:3000");
             
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -0,0 +1,585 @@
+package p2p;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import p2p.controller.FileController;
+
+/**
+ * Load generator and soak test for a running PeerLink server.
+ *
+ * Uploader threads post files of random sizes drawn from a weighted distribution; every
+ * upload is shared with a download limit, and downloader threads fetch each share that many
+ * times, checking the bytes against what was sent. Throughput and p50/p99/p99.9 latencies are
+ * reported per operation. While the test runs the server's /metrics are sampled for its live
+ * threads, open file descriptors, heap and files left in the upload directory; whatever is
+ * still higher once the test has drained and settled is reported as a possible leak.
+ *
+ *   java -cp target/p2p-1.0-SNAPSHOT.jar p2p.LoadTest --url http://localhost:8080 \
+ *        --uploaders 8 --downloaders 16 --duration 600 --sizes 4k:60,1m-8m:35,64m:5
+ *
+ * --sizes is a comma-separated list of size:weight, where size is a fixed size or a min-max
+ * range (picked log-uniformly) with an optional k/m/g suffix. --embedded starts a server in
+ * this JVM on free ports instead of using --url; its thread count then includes the client's.
+ * --warmup (seconds, default 10) runs load that is neither reported nor part of the baseline.
+ */
+public class LoadTest {
+    private static final String BOUNDARY = "----PeerLinkLoadTestBoundary";
+    private static final long SETTLE_MILLIS = 2000;
+    private static final Pattern CODE = Pattern.compile("\"port\":\\s*(\\d+)");
+
+    private final URI base;
+    private final int uploaders;
+    private final int downloaders;
+    private final int downloadsPerUpload;
+    private final long warmupMillis;
+    private final long durationMillis;
+    private final long intervalMillis;
+    private final SizeDistribution sizes;
+    private final HttpClient client;
+
+    // Invite code plus the CRC of its content, one entry per download still owed
+    private final BlockingQueue<Share> pending;
+    private volatile boolean uploading;
+
+    private record Share(int code, long size, long crc) {
+    }
+
+    LoadTest(URI base, int uploaders, int downloaders, int downloadsPerUpload, long warmupMillis,
+            long durationMillis, long intervalMillis, SizeDistribution sizes) {
+        this.base = base;
+        this.uploaders = uploaders;
+        this.downloaders = downloaders;
+        this.downloadsPerUpload = downloadsPerUpload;
+        this.warmupMillis = warmupMillis;
+        this.durationMillis = durationMillis;
+        this.intervalMillis = intervalMillis;
+        this.sizes = sizes;
+        // Bounded so uploads can't run far ahead of slow downloaders and fill the disk
+        this.pending = new ArrayBlockingQueue<>(Math.max(16, downloaders * 4));
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = options(args);
+        FileController embedded = null;
+        URI base;
+        if (options.containsKey("embedded")) {
+            int port = freePort();
+            embedded = new FileController(port, freePort());
+            embedded.start();
+            base = URI.create("http://localhost:" + port);
+        } else {
+            base = URI.create(options.getOrDefault("url", "http://localhost:8080"));
+        }
+        LoadTest test = new LoadTest(base,
+                Integer.parseInt(options.getOrDefault("uploaders", "4")),
+                Integer.parseInt(options.getOrDefault("downloaders", "8")),
+                Integer.parseInt(options.getOrDefault("downloads-per-upload", "2")),
+                Long.parseLong(options.getOrDefault("warmup", "10")) * 1000,
+                Long.parseLong(options.getOrDefault("duration", "60")) * 1000,
+                Long.parseLong(options.getOrDefault("interval", "5")) * 1000,
+                SizeDistribution.parse(options.getOrDefault("sizes", "64k:50,1m:40,16m:10")));
+        try {
+            test.run();
+        } finally {
+            if (embedded != null) {
+                embedded.stop();
+            }
+        }
+    }
+
+    void run() throws InterruptedException {
+        System.out.println("Load test against " + base + ": " + uploaders + " uploaders, " + downloaders
+                + " downloaders, " + downloadsPerUpload + " downloads per upload, " + durationMillis / 1000 + " s");
+        if (warmupMillis > 0) {
+            // Thread pools, pooled buffers and keep-alive connections grow to their working
+            // size here, so the baseline below already includes them
+            System.out.println("Warming up for " + warmupMillis / 1000 + " s");
+            phase(warmupMillis, new Operation("upload"), new Operation("download"), null);
+        }
+        ResourceSample before = sample();
+        List<ResourceSample> samples = new ArrayList<>();
+        samples.add(before);
+        Operation uploads = new Operation("upload");
+        Operation downloads = new Operation("download");
+        System.out.println(ResourceSample.HEADER);
+        double seconds = phase(durationMillis, uploads, downloads, samples);
+        ResourceSample after = samples.get(samples.size() - 1);
+
+        System.out.println();
+        System.out.println(Operation.HEADER);
+        System.out.println(uploads.summary(seconds));
+        System.out.println(downloads.summary(seconds));
+        System.out.println();
+        System.out.println(ResourceSample.report(before, after, samples));
+    }
+
+    /**
+     * Runs the uploaders and downloaders for millis, then stops uploading and lets the
+     * downloaders fetch what is still owed, so every share is retired and its file reclaimed.
+     * With samples set, prints a row every interval and ends with a sample of the settled
+     * server. Returns the seconds it took.
+     */
+    private double phase(long millis, Operation uploads, Operation downloads, List<ResourceSample> samples)
+            throws InterruptedException {
+        uploading = true;
+        CountDownLatch uploadersDone = new CountDownLatch(uploaders);
+        CountDownLatch downloadersDone = new CountDownLatch(downloaders);
+        for (int i = 0; i < uploaders; i++) {
+            Thread.ofPlatform().name("load-upload-" + i).daemon().start(() -> {
+                try {
+                    uploadLoop(uploads);
+                } finally {
+                    uploadersDone.countDown();
+                }
+            });
+        }
+        for (int i = 0; i < downloaders; i++) {
+            Thread.ofPlatform().name("load-download-" + i).daemon().start(() -> {
+                try {
+                    downloadLoop(downloads);
+                } finally {
+                    downloadersDone.countDown();
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(millis);
+        long lastUploaded = 0;
+        long lastDownloaded = 0;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(Math.min(intervalMillis, Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))));
+            if (samples == null) {
+                continue;
+            }
+            ResourceSample now = sample();
+            samples.add(now);
+            long uploaded = uploads.bytes.sum();
+            long downloaded = downloads.bytes.sum();
+            System.out.println(now.row(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                    uploads.count.sum(), downloads.count.sum(), uploads.errors.sum() + downloads.errors.sum(),
+                    (uploaded - lastUploaded) * 1000.0 / intervalMillis, (downloaded - lastDownloaded) * 1000.0 / intervalMillis));
+            lastUploaded = uploaded;
+            lastDownloaded = downloaded;
+        }
+
+        uploading = false;
+        uploadersDone.await();
+        if (!downloadersDone.await(2, TimeUnit.MINUTES)) {
+            System.out.println("Downloaders did not drain within 2 minutes; " + pending.size() + " downloads skipped");
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // Give the server a moment to close connections and reclaim files
+        Thread.sleep(SETTLE_MILLIS);
+        if (samples != null) {
+            samples.add(sample());
+        }
+        return seconds;
+    }
+
+    private void uploadLoop(Operation uploads) {
+        while (uploading) {
+            long size = sizes.next();
+            long started = System.nanoTime();
+            try {
+                RandomContent content = new RandomContent(size);
+                InputStream body = new SequenceInputStream(new SequenceInputStream(
+                        new ByteArrayInputStream(("--" + BOUNDARY + "\r\n"
+                                + "Content-Disposition: form-data; name=\"file\"; filename=\"load-" + size + ".bin\"\r\n"
+                                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII)),
+                        content),
+                        new ByteArrayInputStream(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII)));
+                HttpRequest request = HttpRequest.newBuilder(base.resolve("/upload?maxDownloads=" + downloadsPerUpload))
+                        .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                        .POST(HttpRequest.BodyPublishers.ofInputStream(() -> body))
+                        .build();
+                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                Matcher code = CODE.matcher(response.body());
+                if (response.statusCode() != 200 || !code.find()) {
+                    uploads.failed("HTTP " + response.statusCode() + " " + response.body());
+                    continue;
+                }
+                uploads.succeeded(started, size);
+                Share share = new Share(Integer.parseInt(code.group(1)), size, content.crc.getValue());
+                for (int i = 0; i < downloadsPerUpload; i++) {
+                    pending.put(share);
+                }
+            } catch (IOException e) {
+                uploads.failed(e.toString());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void downloadLoop(Operation downloads) {
+        while (true) {
+            Share share;
+            try {
+                share = pending.poll(200, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (share == null) {
+                if (!uploading && pending.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            long started = System.nanoTime();
+            try {
+                HttpResponse<InputStream> response = client.send(HttpRequest.newBuilder(base.resolve("/download/" + share.code())).build(),
+                        HttpResponse.BodyHandlers.ofInputStream());
+                try (InputStream in = response.body()) {
+                    if (response.statusCode() != 200) {
+                        downloads.failed("HTTP " + response.statusCode() + " for share " + share.code());
+                        continue;
+                    }
+                    CRC32 crc = new CRC32();
+                    byte[] buffer = new byte[64 * 1024];
+                    long received = 0;
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        crc.update(buffer, 0, read);
+                        received += read;
+                    }
+                    if (received != share.size() || crc.getValue() != share.crc()) {
+                        downloads.failed("Share " + share.code() + " came back with different content ("
+                                + received + " of " + share.size() + " bytes)");
+                        continue;
+                    }
+                    downloads.succeeded(started, received);
+                }
+            } catch (IOException e) {
+                downloads.failed(e.toString());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Reads the server's process gauges from /metrics; values it doesn't export stay -1
+    private ResourceSample sample() {
+        Map<String, Long> values = new HashMap<>();
+        try {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(base.resolve("/metrics")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            for (String line : response.body().split("\n")) {
+                int space = line.lastIndexOf(' ');
+                if (!line.startsWith("#") && space > 0) {
+                    try {
+                        values.put(line.substring(0, space), (long) Double.parseDouble(line.substring(space + 1)));
+                    } catch (NumberFormatException e) {
+                        // Not a plain sample
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read " + base.resolve("/metrics") + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return new ResourceSample(values.getOrDefault("jvm_threads_live", -1L),
+                values.getOrDefault("process_open_fds", -1L),
+                values.getOrDefault("jvm_memory_heap_used_bytes", -1L),
+                values.getOrDefault("peerlink_upload_dir_files", -1L),
+                values.getOrDefault("peerlink_shares_open", -1L));
+    }
+
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (name.equals("embedded")) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("--" + name + " needs a value");
+            }
+        }
+        return options;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Weighted file sizes, e.g. 4k:60,1m-8m:35,64m:5.
+     */
+    static final class SizeDistribution {
+        private final long[] min;
+        private final long[] max;
+        // Running total of the weights, for picking an entry
+        private final int[] cumulative;
+
+        private SizeDistribution(long[] min, long[] max, int[] cumulative) {
+            this.min = min;
+            this.max = max;
+            this.cumulative = cumulative;
+        }
+
+        static SizeDistribution parse(String spec) {
+            String[] entries = spec.split(",");
+            long[] min = new long[entries.length];
+            long[] max = new long[entries.length];
+            int[] cumulative = new int[entries.length];
+            int total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] sizeAndWeight = entries[i].trim().split(":");
+                String[] range = sizeAndWeight[0].split("-");
+                min[i] = bytes(range[0]);
+                max[i] = range.length > 1 ? bytes(range[1]) : min[i];
+                total += sizeAndWeight.length > 1 ? Integer.parseInt(sizeAndWeight[1]) : 1;
+                cumulative[i] = total;
+            }
+            return new SizeDistribution(min, max, cumulative);
+        }
+
+        static long bytes(String size) {
+            String text = size.trim().toLowerCase(Locale.ROOT);
+            long unit = switch (text.charAt(text.length() - 1)) {
+                case 'k' -> 1L << 10;
+                case 'm' -> 1L << 20;
+                case 'g' -> 1L << 30;
+                default -> 1;
+            };
+            return Long.parseLong(unit == 1 ? text : text.substring(0, text.length() - 1)) * unit;
+        }
+
+        long next() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int pick = random.nextInt(cumulative[cumulative.length - 1]);
+            int i = 0;
+            while (cumulative[i] <= pick) {
+                i++;
+            }
+            if (min[i] == max[i]) {
+                return min[i];
+            }
+            // Log-uniform, so a 1k-1g range isn't almost always hundreds of megabytes
+            double low = Math.log(Math.max(1, min[i]));
+            double high = Math.log(max[i]);
+            return Math.round(Math.exp(low + random.nextDouble() * (high - low)));
+        }
+    }
+
+    /**
+     * size pseudo-random bytes, generated as they are read so big uploads take no memory, with
+     * a running CRC to check the download against.
+     */
+    private static final class RandomContent extends InputStream {
+        private final SplittableRandom random = new SplittableRandom(ThreadLocalRandom.current().nextLong());
+        private final CRC32 crc = new CRC32();
+        private long remaining;
+
+        RandomContent(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0) {
+                return -1;
+            }
+            int count = (int) Math.min(len, remaining);
+            for (int i = 0; i < count; i += 8) {
+                long value = random.nextLong();
+                for (int j = i; j < Math.min(count, i + 8); j++) {
+                    b[off + j] = (byte) value;
+                    value >>>= 8;
+                }
+            }
+            crc.update(b, off, count);
+            remaining -= count;
+            return count;
+        }
+    }
+
+    /**
+     * Counts, bytes and a latency histogram for one kind of request.
+     */
+    private static final class Operation {
+        static final String HEADER = String.format(Locale.ROOT, "%-9s %8s %7s %10s %9s %9s %9s %9s %9s",
+                "op", "count", "errors", "MB/s", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+
+        final String name;
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        void succeeded(long startNanos, long size) {
+            latency.record(System.nanoTime() - startNanos);
+            count.increment();
+            bytes.add(size);
+        }
+
+        void failed(String reason) {
+            // Report the first few errors of each kind of request, then only count them
+            errors.increment();
+            if (errors.sum() <= 10) {
+                System.err.println(name + " failed: " + reason);
+            }
+        }
+
+        String summary(double seconds) {
+            return String.format(Locale.ROOT, "%-9s %8d %7d %10.1f %9.1f %9.1f %9.1f %9.1f %9.1f", name,
+                    count.sum(), errors.sum(), bytes.sum() / seconds / (1 << 20), count.sum() / seconds,
+                    latency.percentile(50) / 1e3, latency.percentile(99) / 1e3, latency.percentile(99.9) / 1e3,
+                    latency.percentile(100) / 1e3);
+        }
+    }
+
+    /**
+     * Latencies in microseconds, bucketed log-linearly with 32 buckets per power of two, so
+     * every percentile is within about 3% of the true value however long the soak runs.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucket(Math.max(1, nanos / 1000)));
+        }
+
+        static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int mantissa = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + mantissa;
+        }
+
+        // Largest value that lands in a bucket
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long mantissa = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + mantissa + 1) << (exponent - SUB_BITS)) - 1;
+        }
+
+        // In microseconds; 100 gives the largest recorded value's bucket
+        long percentile(double percent) {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percent / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length() - 1);
+        }
+    }
+
+    /**
+     * The server's resource gauges at one moment.
+     */
+    private record ResourceSample(long threads, long fds, long heap, long files, long shares) {
+        static final String HEADER = String.format(Locale.ROOT, "%6s %8s %9s %7s %10s %10s %8s %6s %8s %6s",
+                "time s", "uploads", "downloads", "errors", "up MB/s", "down MB/s", "threads", "fds", "heap MB", "files");
+
+        String row(long seconds, long uploads, long downloads, long errors, double upRate, double downRate) {
+            return String.format(Locale.ROOT, "%6d %8d %9d %7d %10.1f %10.1f %8d %6d %8d %6d", seconds, uploads,
+                    downloads, errors, upRate / (1 << 20), downRate / (1 << 20), threads, fds,
+                    heap < 0 ? -1 : heap >> 20, files);
+        }
+
+        // Compares the settled server with the one before the test, with the peaks in between
+        static String report(ResourceSample before, ResourceSample after, List<ResourceSample> samples) {
+            StringBuilder out = new StringBuilder("Server resources   before    peak   after\n");
+            line(out, "threads", before.threads, samples.stream().mapToLong(ResourceSample::threads).max().orElse(-1), after.threads);
+            line(out, "open fds", before.fds, samples.stream().mapToLong(ResourceSample::fds).max().orElse(-1), after.fds);
+            line(out, "heap MB", before.heap >> 20, samples.stream().mapToLong(ResourceSample::heap).max().orElse(-1) >> 20,
+                    after.heap >> 20);
+            line(out, "upload dir files", before.files, samples.stream().mapToLong(ResourceSample::files).max().orElse(-1),
+                    after.files);
+            line(out, "open shares", before.shares, samples.stream().mapToLong(ResourceSample::shares).max().orElse(-1),
+                    after.shares);
+            List<String> leaks = new ArrayList<>();
+            // Pools add threads up to their core size and connections come and go, so threads
+            // and descriptors get some slack; files and shares must be back exactly
+            if (grew(before.threads, after.threads)) {
+                leaks.add("threads");
+            }
+            if (grew(before.fds, after.fds)) {
+                leaks.add("file descriptors");
+            }
+            if (after.files > before.files) {
+                leaks.add("upload dir files");
+            }
+            if (after.shares > before.shares) {
+                leaks.add("open shares");
+            }
+            out.append(leaks.isEmpty() ? "No leaks: resources returned to their starting level"
+                    : "Possible leak of " + String.join(", ", leaks) + ": still above the starting level");
+            return out.toString();
+        }
+
+        private static boolean grew(long before, long after) {
+            return after - before > Math.max(4, before / 10);
+        }
+
+        private static void line(StringBuilder out, String name, long before, long peak, long after) {
+            out.append(String.format(Locale.ROOT, "%-16s %8d %7d %7d%n", name, before, peak, after));
+        }
+    }
+}
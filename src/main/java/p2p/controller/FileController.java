@@ -1,12 +1,37 @@
 package p2p.controller;
 
+import p2p.service.BandwidthManager;
+import p2p.service.Bundle;
+import p2p.service.ClusterRing;
+import p2p.service.ContentStore;
+import p2p.service.DiskQuota;
 import p2p.service.FileSharer;
+import p2p.service.PeerHeader;
+import p2p.service.PeerRequest;
+import p2p.service.Precompressor;
+import p2p.service.QuotaExceededException;
+import p2p.service.SegmentedDownload;
+import p2p.service.ShareJournal;
+import p2p.service.UploadSession;
+import p2p.service.UploadSessions;
+import p2p.utils.ByteRange;
+import p2p.utils.ContentHash;
+import p2p.utils.Metrics;
+import p2p.utils.MultipartParser;
+import p2p.utils.ThreadMode;
+import p2p.utils.UploadUtils;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+import com.sun.management.UnixOperatingSystemMXBean;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -14,20 +39,91 @@ import com.sun.net.httpserver.HttpServer;
 
 import java.net.InetSocketAddress;
 import java.net.Socket;
-
-import org.apache.commons.io.IOUtils;
-
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 public class FileController {
+    // Bandwidth limits in bytes per second, 0 = unlimited: everything sent
+    // (-Dpeerlink.bandwidth.global), per share (-Dpeerlink.bandwidth.share) and per client
+    // (-Dpeerlink.bandwidth.client). They can be changed at runtime through /admin/bandwidth.
+    private static final long BANDWIDTH_GLOBAL = Long.getLong("peerlink.bandwidth.global", 0);
+    private static final long BANDWIDTH_SHARE = Long.getLong("peerlink.bandwidth.share", 0);
+    private static final long BANDWIDTH_CLIENT = Long.getLong("peerlink.bandwidth.client", 0);
+    // Largest upload accepted in bytes (-Dpeerlink.upload.maxSize), most bytes of uploads held
+    // at once (-Dpeerlink.quota.bytes), both 0 = unlimited, and the free disk space uploads must
+    // leave (-Dpeerlink.disk.minFree)
+    private static final long MAX_UPLOAD = Long.getLong("peerlink.upload.maxSize", 0);
+    private static final long QUOTA_BYTES = Long.getLong("peerlink.quota.bytes", 0);
+    private static final long MIN_FREE = Long.getLong("peerlink.disk.minFree", 64L * 1024 * 1024);
+    // Chunked upload sessions that receive nothing for this long are deleted
+    // (-Dpeerlink.upload.idleTimeout, seconds)
+    private static final long UPLOAD_IDLE_MILLIS = Long.getLong("peerlink.upload.idleTimeout", 3600) * 1000;
+    // Most multipart framing expected around the file bytes: a body larger than the largest
+    // upload plus this can't be within the limit, and the rest is reserved as it arrives
+    private static final long MAX_FRAMING = 1024 * 1024;
+    // Keep the live shares in a journal in the upload directory and serve them again after a
+    // restart (-Dpeerlink.journal=false turns it off)
+    private static final boolean JOURNAL = Boolean.parseBoolean(System.getProperty("peerlink.journal", "true"));
+    // Cluster mode: every node's share server as host:port, comma-separated and the same on
+    // every node (-Dpeerlink.cluster.nodes), and which of them this node is (-Dpeerlink.cluster.self)
+    private static final String CLUSTER_NODES = System.getProperty("peerlink.cluster.nodes");
+    private static final String CLUSTER_SELF = System.getProperty("peerlink.cluster.self");
+    // Bearer token for the /admin endpoints (-Dpeerlink.admin.token); they are off without one
+    private static final String ADMIN_TOKEN = System.getProperty("peerlink.admin.token");
+    // Store uploads as deduplicated chunks instead of plain files (-Dpeerlink.dedup=true)
+    private static final boolean DEDUP = Boolean.getBoolean("peerlink.dedup");
+    // Keep gzip/deflate copies of compressible uploads (-Dpeerlink.compress=true)
+    private static final boolean COMPRESS = Boolean.getBoolean("peerlink.compress");
+    // Most parallel connections one download may use to fetch a share (-Dpeerlink.download.streams);
+    // 1 fetches every share over a single connection
+    private static final int DOWNLOAD_STREAMS = Integer.getInteger("peerlink.download.streams", 1);
+
+    private static final Metrics.Gauge UPLOADS_IN_FLIGHT = Metrics.gauge("peerlink_uploads_in_flight",
+            "Upload requests (single and chunked) being handled");
+    private static final Metrics.Gauge DOWNLOADS_IN_FLIGHT = Metrics.gauge("peerlink_downloads_in_flight",
+            "Download requests being relayed to browsers");
+    private static final Metrics.Counter UPLOAD_BYTES = Metrics.counter("peerlink_bytes_total",
+            "File bytes moved, by direction", "direction", "upload");
+    private static final Metrics.Histogram PARSE_TIME = Metrics.histogram("peerlink_multipart_parse_seconds",
+            "Time to stream a multipart upload through MultipartParser");
+    private static final Metrics.Counter PROXIED_DOWNLOADS = Metrics.counter("peerlink_cluster_proxied_total",
+            "Downloads relayed from the share server of the node that owns the code");
+    private static final Metrics.Histogram DOWNLOAD_TTFB = Metrics.histogram("peerlink_download_ttfb_seconds",
+            "Time from a download request to its response headers");
+
     private final FileSharer fileSharer;
     private final HttpServer server;
+    private final int sharePort;
     private final String uploadDir;
     private final ExecutorService executorService;
-
-    public FileController(int port) throws IOException {
-        this.fileSharer = new FileSharer();
+    // Runs the extra connections of segmented downloads
+    private final ExecutorService segmentExecutor;
+    private final UploadSessions uploadSessions;
+    private final ContentStore contentStore;
+    private final Precompressor precompressor;
+    private final BandwidthManager bandwidth;
+    private final DiskQuota quota;
+    private final ClusterRing ring;
+
+    public FileController(int port, int sharePort) throws IOException {
+        this.sharePort = sharePort;
         this.server = HttpServer.create(new InetSocketAddress(port), 0);
         this.uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "peerlink-uploads";
-        this.executorService = Executors.newFixedThreadPool(10);
+        this.contentStore = new ContentStore(uploadDir);
+        this.precompressor = new Precompressor(uploadDir);
+        this.bandwidth = new BandwidthManager(BANDWIDTH_GLOBAL, BANDWIDTH_SHARE, BANDWIDTH_CLIENT);
+        this.quota = new DiskQuota(new File(uploadDir), MAX_UPLOAD, QUOTA_BYTES, MIN_FREE);
+        this.ring = clusterRing(sharePort);
+        ShareJournal journal = JOURNAL ? new ShareJournal(new File(uploadDir, "shares.journal")) : null;
+        this.fileSharer = new FileSharer(contentStore, precompressor, bandwidth, quota, journal, ring);
+        // Platform mode keeps a small fixed pool; -Dpeerlink.threads=virtual gives every
+        // request its own virtual thread so slow transfers can't starve other API calls
+        this.executorService = ThreadMode.current().newExecutor("http", 10);
+        this.segmentExecutor = ThreadMode.current().newExecutor("segment", 64);
+        this.uploadSessions = new UploadSessions(uploadDir, quota, UPLOAD_IDLE_MILLIS);
 
         File uploadDirFile = new File(uploadDir);/*
                                                   * new File(uploadDir): This creates a File object that
@@ -51,21 +147,154 @@ public class FileController {
              */
         }
 
-        server.createContext("/upload", new UploadHandler());
-        server.createContext("/download", new DownloadHandler());
+        registerProcessGauges(uploadDirFile);
+
+        server.createContext("/upload", inFlight(new UploadHandler(), UPLOADS_IN_FLIGHT));
+        server.createContext("/uploads", inFlight(new ChunkedUploadHandler(), UPLOADS_IN_FLIGHT));
+        server.createContext("/download", inFlight(new DownloadHandler(), DOWNLOADS_IN_FLIGHT));
+        server.createContext("/metrics", new MetricsHandler());
+        server.createContext("/admin/bandwidth", new BandwidthHandler());
         server.createContext("/", new CORSHandler());
 
         server.setExecutor(executorService);
     }
 
-    public void start() {
+    // The nodes that share out invite codes between them; just this server unless clustered
+    private static ClusterRing clusterRing(int sharePort) throws IOException {
+        if (CLUSTER_NODES == null || CLUSTER_NODES.isBlank()) {
+            return ClusterRing.standalone(sharePort);
+        }
+        try {
+            ClusterRing ring = ClusterRing.parse(CLUSTER_NODES, CLUSTER_SELF);
+            if (ring.self().port() != sharePort) {
+                throw new IllegalArgumentException("this node's share server listens on " + sharePort
+                        + ", not on " + ring.self().port());
+            }
+            System.out.println("Cluster node " + ring.self() + " of " + ring.nodes().size());
+            return ring;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad cluster configuration: " + e.getMessage(), e);
+        }
+    }
+
+    // Threads, file descriptors, heap and stored files, so leaks show up on /metrics over time
+    private static void registerProcessGauges(File uploadDir) {
+        Metrics.gauge("jvm_threads_live", "Live JVM threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        Metrics.gauge("jvm_memory_heap_used_bytes", "Heap in use",
+                () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof UnixOperatingSystemMXBean os) {
+            Metrics.gauge("process_open_fds", "Open file descriptors", os::getOpenFileDescriptorCount);
+        }
+        Metrics.gauge("peerlink_upload_dir_files", "Files directly in the upload directory", () -> {
+            File[] files = uploadDir.listFiles(File::isFile);
+            return files == null ? 0 : files.length;
+        });
+    }
+
+    // Counts the requests a handler is working on in a gauge
+    private static HttpHandler inFlight(HttpHandler handler, Metrics.Gauge gauge) {
+        return exchange -> {
+            gauge.inc();
+            try {
+                handler.handle(exchange);
+            } finally {
+                gauge.dec();
+            }
+        };
+    }
+
+    // Reads a non-negative numeric query parameter such as ?maxDownloads=3
+    private static long queryParam(HttpExchange exchange, String name, long defaultValue) {
+        String value = queryString(exchange, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    // Reads a query parameter such as ?filename=report.pdf (null if it isn't there)
+    private static String queryString(HttpExchange exchange, String name) {
+        // getRawQuery keeps %26 etc. encoded until each value is split out
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals != -1 && pair.substring(0, equals).equals(name)) {
+                return URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    // The request's declared body length, or -1 when it is sent chunked
+    private static long contentLength(HttpExchange exchange) {
+        String value = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Answers an upload that can't be stored: 413 if it is too large, 507 if there is no room.
+    // The connection is closed rather than the rest of the body read and thrown away.
+    private static void refuse(HttpExchange exchange, QuotaExceededException e) throws IOException {
+        String response = (e.getStatus() == 413 ? "Payload Too Large: " : "Insufficient Storage: ") + e.getMessage();
+        exchange.getResponseHeaders().set("Connection", "close");
+        exchange.sendResponseHeaders(e.getStatus(), response.getBytes().length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response.getBytes());
+        }
+    }
+
+    // Who a request comes from, for the per-client bandwidth limit. Behind a reverse proxy on
+    // the same machine every request comes from loopback, so the proxy's X-Real-IP (or the
+    // first X-Forwarded-For address) names the client instead; it isn't trusted from elsewhere.
+    private static String clientAddress(HttpExchange exchange) {
+        InetSocketAddress remote = exchange.getRemoteAddress();
+        if (remote.getAddress().isLoopbackAddress()) {
+            Headers requestHeaders = exchange.getRequestHeaders();
+            String forwarded = requestHeaders.getFirst("X-Real-IP");
+            if (forwarded == null && requestHeaders.getFirst("X-Forwarded-For") != null) {
+                forwarded = requestHeaders.getFirst("X-Forwarded-For").split(",")[0];
+            }
+            if (forwarded != null && !forwarded.isBlank()) {
+                return forwarded.trim();
+            }
+        }
+        return remote.getAddress().getHostAddress();
+    }
+
+    /**
+     * Serves the shares that were live when the server last ran under their old invite codes.
+     * Returns how many there were.
+     */
+    public int restoreShares() throws IOException {
+        return fileSharer.restoreShares();
+    }
+
+    public void start() throws IOException {
+        fileSharer.start(sharePort);
         server.start();
-        System.out.println("API server started on port " + server.getAddress().getPort());
+        System.out.println("API server started on port " + server.getAddress().getPort()
+                + " (" + ThreadMode.current().name().toLowerCase() + " threads)");
     }
 
     public void stop() {
         server.stop(0);
+        fileSharer.stop();
+        uploadSessions.close();
         executorService.shutdown();
+        segmentExecutor.shutdown();
         System.out.println("API server stopped");
     }
 
@@ -172,91 +401,218 @@ public class FileController {
         }
     }
 
-    private static class MultipartParser {
-        private final byte[] data;
-        private final String boundary;
-
-        public MultipartParser(byte[] data, String boundary) {
-            this.data = data;
-            this.boundary = boundary;
+    /*
+     * Creates the upload file on disk once the parser knows the part's filename, and remembers
+     * where it went so the handler can share it (or clean it up if the upload fails).
+     * With deduplication on, the bytes go to the content store instead, which only writes the
+     * chunks it hasn't seen before. With compression on, compressed copies are written in the
+     * same pass unless the part's content type is already compressed.
+     */
+    private class UploadTarget implements MultipartParser.PartTarget {
+        private final boolean compress;
+        private File file;
+        private ContentStore.Upload upload;
+        // SHA-256 of the part, computed as it is written
+        private final MessageDigest digest = ContentHash.newDigest();
+        // CRC-32 of the part, which a ZIP of a bundle needs for entries it doesn't deflate
+        private final CRC32 crc = new CRC32();
+
+        // compress = false skips the compressed copies, e.g. for files of a bundle
+        UploadTarget(boolean compress) {
+            this.compress = compress;
         }
 
-        public ParseResult parse() {
-            try {
-                String dataAsString = new String(data);
+        // Path to hand to the file sharer once the part has been read
+        String path() {
+            return upload != null ? upload.getPath() : file.getPath();
+        }
 
-                String filenameMarker = "filename=\"";
-                int filenameStart = dataAsString.indexOf(filenameMarker);
-                if (filenameStart == -1) {
-                    return null;
-                }
+        // Hex SHA-256 of everything written; call once the part has been read
+        String hash() {
+            return ContentHash.hex(digest.digest());
+        }
 
-                filenameStart += filenameMarker.length();
-                int filenameEnd = dataAsString.indexOf("\"", filenameStart);
-                String filename = dataAsString.substring(filenameStart, filenameEnd);
+        long crc() {
+            return crc.getValue();
+        }
 
-                String contentTypeMarker = "Content-Type: ";
-                int contentTypeStart = dataAsString.indexOf(contentTypeMarker, filenameEnd);
-                String contentType = "application/octet-stream"; // Default
+        // Removes whatever was stored for a failed upload
+        void discard() {
+            if (upload != null || file != null) {
+                precompressor.delete(path());
+            }
+            if (upload != null) {
+                upload.discard();
+            } else if (file != null) {
+                file.delete();
+            }
+        }
 
-                if (contentTypeStart != -1) {
-                    contentTypeStart += contentTypeMarker.length();
-                    int contentTypeEnd = dataAsString.indexOf("\r\n", contentTypeStart);
-                    contentType = dataAsString.substring(contentTypeStart, contentTypeEnd);
-                }
+        @Override
+        public OutputStream open(String filename, String contentType) throws IOException {
+            if (filename == null || filename.trim().isEmpty()) {
+                filename = "unnamed-file";
+            }
+            /*
+             * will tmp file in C drive stores multiple users files when uploaded at the
+             * same time?
+             * ANS: System.getProperty("java.io.tmpdir") usually points to something like
+             * C:\Users\<username>\AppData\Local\Temp.
+             * 
+             * This means even if two users upload files with the same name at the same
+             * time, their files will have different names in the temp folder because of the
+             * random UUID prefix.
+             * Yes, the temp folder will store multiple users' files at the same time.
+             * Each file will have a unique name, so they won’t overwrite each other.
+             * All files are stored in the same directory (peerlink-uploads inside the
+             * system temp directory), but their names are unique.
+             * 
+             * Suppose two users upload a file called photo.jpg at the same time:
+             * User 1’s file might be saved as:
+             * C:\Users\<username>\AppData\Local\Temp\peerlink-uploads\c1a2b3c4-5678-1234-
+             * 9abc-def012345678_photo.jpg
+             * User 2’s file might be saved as:
+             * C:\Users\<username>\AppData\Local\Temp\peerlink-uploads\9f8e7d6c-5432-4321-
+             * 8fed-cba987654321_photo.jpg
+             */
+            if (DEDUP) {
+                // The store names the manifest the same way
+                upload = contentStore.newUpload(filename);
+                return checked(upload, upload.getPath(), contentType);
+            }
+            String uniqueFilename = UUID.randomUUID().toString() + "_" + UploadUtils.storedName(filename);
+            file = new File(uploadDir, uniqueFilename);
+            return checked(new FileOutputStream(file), file.getPath(), contentType);
+        }
 
-                String headerEndMarker = "\r\n\r\n";
-                int headerEnd = dataAsString.indexOf(headerEndMarker);
-                if (headerEnd == -1) {
-                    return null;
-                }
+        // Hashes, checksums and counts what is written to out, compressing it alongside if wanted
+        private OutputStream checked(OutputStream out, String path, String contentType) throws IOException {
+            OutputStream stored = compress ? compressing(out, path, contentType) : out;
+            return Metrics.counting(new CheckedOutputStream(new DigestOutputStream(stored, digest), crc), UPLOAD_BYTES);
+        }
+    }
 
-                int contentStart = headerEnd + headerEndMarker.length();
+    /*
+     * The targets of every file part in one upload request. A request with a single file is
+     * shared as that file; one with several, e.g. a folder, becomes a bundle. Compressed copies
+     * are only worth making for a single file, so they stop (and the first file's are dropped)
+     * as soon as a second file arrives.
+     */
+    private class UploadTargets implements MultipartParser.PartTarget {
+        private final List<UploadTarget> targets = new ArrayList<>();
+        // Space held for the request; every part's bytes are counted against it as they arrive
+        private final DiskQuota.Reservation reservation;
+        private String bundle;
+        // Set once a share serves the stored parts; from then on they are its files
+        private boolean shared;
+
+        UploadTargets(DiskQuota.Reservation reservation) {
+            this.reservation = reservation;
+        }
 
-                byte[] boundaryBytes = ("\r\n--" + boundary + "--").getBytes();
-                int contentEnd = findSequence(data, boundaryBytes, contentStart);
+        UploadTarget get(int index) {
+            return targets.get(index);
+        }
 
-                if (contentEnd == -1) {
-                    boundaryBytes = ("\r\n--" + boundary).getBytes();
-                    contentEnd = findSequence(data, boundaryBytes, contentStart);
-                }
+        // Writes the bundle manifest for the parts that were read and returns its path
+        String bundle(List<MultipartParser.ParseResult> parts) throws IOException {
+            List<Bundle.Entry> entries = new ArrayList<>(parts.size());
+            for (int i = 0; i < parts.size(); i++) {
+                MultipartParser.ParseResult part = parts.get(i);
+                entries.add(new Bundle.Entry(part.filename, targets.get(i).path(), part.contentType, part.size,
+                        targets.get(i).crc()));
+            }
+            bundle = Bundle.write(uploadDir, entries);
+            return bundle;
+        }
 
-                if (contentEnd == -1 || contentEnd <= contentStart) {
-                    return null;
-                }
+        // Keeps the stored parts counted under the path they are shared from
+        void commit(String path, List<MultipartParser.ParseResult> parts) {
+            long size = 0;
+            for (MultipartParser.ParseResult part : parts) {
+                size += part.size;
+            }
+            reservation.commit(path, size);
+        }
 
-                byte[] fileContent = new byte[contentEnd - contentStart];
-                System.arraycopy(data, contentStart, fileContent, 0, fileContent.length);
+        // Called as soon as the share is registered, so nothing fails it afterwards
+        void shared() {
+            shared = true;
+        }
 
-                return new ParseResult(filename, contentType, fileContent);
-            } catch (Exception e) {
-                System.err.println("Error parsing multipart data: " + e.getMessage());
-                return null;
+        // Deletes whatever was stored and gives back the reservation, unless it has been shared
+        void discard() {
+            if (shared) {
+                return;
+            }
+            for (UploadTarget target : targets) {
+                target.discard();
             }
+            if (bundle != null) {
+                new File(bundle).delete();
+            }
+            reservation.cancel();
         }
 
-        private int findSequence(byte[] data, byte[] sequence, int startPos) {
-            outer: for (int i = startPos; i <= data.length - sequence.length; i++) {
-                for (int j = 0; j < sequence.length; j++) {
-                    if (data[i + j] != sequence[j]) {
-                        continue outer;
-                    }
-                }
-                return i;
+        @Override
+        public OutputStream open(String filename, String contentType) throws IOException {
+            if (targets.size() == 1) {
+                precompressor.delete(targets.get(0).path());
             }
-            return -1;
+            UploadTarget target = new UploadTarget(targets.isEmpty());
+            targets.add(target);
+            return reservation.limit(target.open(filename, contentType));
         }
+    }
 
-        public static class ParseResult {
-            public final String filename;
-            public final String contentType;
-            public final byte[] fileContent;
+    // Adds compressed copies to an upload's stream when they are wanted and worth making
+    private OutputStream compressing(OutputStream out, String sharePath, String contentType) throws IOException {
+        if (COMPRESS && Precompressor.isCompressible(contentType)) {
+            return precompressor.wrap(out, sharePath);
+        }
+        return out;
+    }
 
-            public ParseResult(String filename, String contentType, byte[] fileContent) {
-                this.filename = filename;
-                this.contentType = contentType;
-                this.fileContent = fileContent;
+    // Where a finished chunked upload is shared from, and the SHA-256 of its content
+    private record StoredUpload(String path, String hash) {
+    }
+
+    /*
+     * Turns a finished chunked upload into the path that gets shared. Its chunks arrived at
+     * arbitrary offsets, so hashing, deduplication and compression can only run now, in one
+     * pass over the finished file.
+     */
+    private StoredUpload storeFinished(UploadSession session) throws IOException {
+        File file = session.getFile();
+        ContentStore.Upload upload = DEDUP ? contentStore.newUpload(session.getFilename()) : null;
+        String path = upload != null ? upload.getPath() : file.getPath();
+        OutputStream target = upload != null ? upload : OutputStream.nullOutputStream();
+        MessageDigest digest = ContentHash.newDigest();
+        try (InputStream in = new FileInputStream(file);
+                OutputStream out = new DigestOutputStream(compressing(target, path, session.getContentType()), digest)) {
+            in.transferTo(out);
+        } catch (IOException | RuntimeException e) {
+            // Drops whatever was stored so far: the compressed copies, and the chunk references
+            // of a manifest that may never have been written, which discardStored can't read
+            precompressor.delete(path);
+            if (upload != null) {
+                upload.discard();
             }
+            throw e;
+        }
+        if (upload != null) {
+            file.delete();
+        }
+        return new StoredUpload(path, ContentHash.hex(digest.digest()));
+    }
+
+    // Deletes everything stored for an upload that could not be shared
+    private void discardStored(String path) throws IOException {
+        precompressor.delete(path);
+        if (contentStore.isManifest(path)) {
+            contentStore.release(path);
+        } else {
+            new File(path).delete();
         }
     }
 
@@ -549,44 +905,40 @@ public class FileController {
                 return;
             }
 
+            // Refuse what can't be stored before reading any of the body: the declared length
+            // gives the size away, less the multipart framing around the files
+            long declared = contentLength(exchange);
+            DiskQuota.Reservation reservation;
+            try {
+                if (quota.getMaxUpload() > 0 && declared - MAX_FRAMING > quota.getMaxUpload()) {
+                    throw new QuotaExceededException(413,
+                            "Upload is larger than the limit of " + quota.getMaxUpload() + " bytes");
+                }
+                reservation = quota.reserve(Math.max(0, declared - MAX_FRAMING));
+            } catch (QuotaExceededException e) {
+                refuse(exchange, e);
+                return;
+            }
+
+            UploadTargets targets = new UploadTargets(reservation);
             try {
                 // 1. Parse the incoming file data from the request as its multipart/form-data
                 String boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
 
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                IOUtils.copy(exchange.getRequestBody(), baos);
-                byte[] requestData = baos.toByteArray();// this is a byte[] (byte array) containing the raw data
-                // from the HTTP request body and not just the file bytes
-                // Looks like this in he requestData
+                MultipartParser parser = new MultipartParser(exchange.getRequestBody(), boundary);
                 /*
-                 * byte[] requestData = {
-                 * 45, 45, 45, 45, 45, 45, 87, 101, 98, 75, 105, 116, // "------WebKit"
-                 * 65, 108, 105, 99, 101, // "Alice"
-                 * 255, 216, 255, 224, 0, 16, 74, 70, 73, 70, // JPEG file bytes
-                 * // ... thousands more bytes
-                 * };
-                 * 
-                 * ByteArrayOutputStream baos = new ByteArrayOutputStream();->
-                 * Creates an in-memory buffer that grows dynamically as you write data to it
-                 * Think of it like a resizable container that stores bytes
-                 * 
                  * exchange.getRequestBody():->
-                 * Returns an InputStream representing the incoming HTTP request body
-                 * This could be JSON data, form data, file uploads, etc.
-                 * 
-                 * IOUtils.copy(exchange.getRequestBody(), baos);->
-                 * Reads all bytes from the request body stream and writes them to the
-                 * ByteArrayOutputStream
-                 * This is a utility method that handles the reading loop for you
-                 * 
-                 * baos.toByteArray()->
-                 * Converts the accumulated bytes into a standard byte array
-                 * Now you have the complete request body in memory
-                 * 
+                 * Returns an InputStream representing the incoming HTTP request body.
+                 * The parser reads it through a small fixed-size window, so the body is never
+                 * held in memory as a whole: a 1 GB upload uses the same few KB of heap as a
+                 * 1 KB upload.
                  */
 
-                MultipartParser parser = new MultipartParser(requestData, boundary);
-                MultipartParser.ParseResult result = parser.parse();
+                // 2. Save the content of every file part to the temporary upload directory while
+                // it is parsed
+                long parseStart = System.nanoTime();
+                List<MultipartParser.ParseResult> parts = parser.parseAll(targets);
+                PARSE_TIME.recordSince(parseStart);
                 /*
                  * Explaining what is "Parsing" Like You're a Little Kid
                  * 
@@ -648,7 +1000,7 @@ public class FileController {
                  * be!
                  */
 
-                if (result == null) {
+                if (parts.isEmpty()) {
                     String response = "Bad Request: Could not parse file content";
                     exchange.sendResponseHeaders(400, response.getBytes().length);
                     try (OutputStream os = exchange.getResponseBody()) {
@@ -657,46 +1009,30 @@ public class FileController {
                     return;
                 }
 
-                String filename = result.filename;
-                if (filename == null || filename.trim().isEmpty()) {
-                    filename = "unnamed-file";
+                // Optional limits: /upload?maxDownloads=5&expiresIn=3600 (seconds)
+                int maxDownloads = (int) queryParam(exchange, "maxDownloads", 0);
+                long ttlMillis = queryParam(exchange, "expiresIn", 0) * 1000;
+
+                // The invite code is all a downloader needs; the share server already
+                // listens for every code on one port, so nothing has to be started here
+                String jsonResponse;
+                if (parts.size() == 1) {
+                    UploadTarget target = targets.get(0);
+                    String hash = target.hash();
+                    targets.commit(target.path(), parts);
+                    int port = fileSharer.offerFile(target.path(), parts.get(0).contentType, hash, maxDownloads,
+                            ttlMillis);
+                    targets.shared();
+                    // The hash lets the uploader check what downloaders receive
+                    jsonResponse = "{\"port\": " + port + ", \"sha256\": \"" + hash + "\"}";// explained below
+                } else {
+                    // Several files are shared together and downloaded as one ZIP
+                    String bundle = targets.bundle(parts);
+                    targets.commit(bundle, parts);
+                    int port = fileSharer.offerFile(bundle, "application/zip", null, maxDownloads, ttlMillis);
+                    targets.shared();
+                    jsonResponse = "{\"port\": " + port + ", \"files\": " + parts.size() + "}";
                 }
-
-                /*
-                 * will tmp file in C drive stores multiple users files when uploaded at the
-                 * same time?
-                 * ANS: System.getProperty("java.io.tmpdir") usually points to something like
-                 * C:\Users\<username>\AppData\Local\Temp.
-                 * 
-                 * This means even if two users upload files with the same name at the same
-                 * time, their files will have different names in the temp folder because of the
-                 * random UUID prefix.
-                 * Yes, the temp folder will store multiple users' files at the same time.
-                 * Each file will have a unique name, so they won’t overwrite each other.
-                 * All files are stored in the same directory (peerlink-uploads inside the
-                 * system temp directory), but their names are unique.
-                 * 
-                 * Suppose two users upload a file called photo.jpg at the same time:
-                 * User 1’s file might be saved as:
-                 * C:\Users\<username>\AppData\Local\Temp\peerlink-uploads\c1a2b3c4-5678-1234-
-                 * 9abc-def012345678_photo.jpg
-                 * User 2’s file might be saved as:
-                 * C:\Users\<username>\AppData\Local\Temp\peerlink-uploads\9f8e7d6c-5432-4321-
-                 * 8fed-cba987654321_photo.jpg
-                 */
-                String uniqueFilename = UUID.randomUUID().toString() + "_" + new File(filename).getName();
-                String filePath = uploadDir + File.separator + uniqueFilename;
-
-                // 2. Save the file content to the temporary upload directory
-                try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                    fos.write(result.fileContent);
-                }
-
-                int port = fileSharer.offerFile(filePath);
-
-                new Thread(() -> fileSharer.startFileServer(port)).start();
-
-                String jsonResponse = "{\"port\": " + port + "}";// explained below
                 /*
                  * JSON: JavaScript Object Notation - a data format like {"port": 8081}
                  * \"port\": Escaped quotes to include quotes in the string
@@ -734,6 +1070,16 @@ public class FileController {
                     os.write(jsonResponse.getBytes());
                 }
 
+            } catch (QuotaExceededException e) {
+                // Grew past the limit or the disk while it was read
+                refuse(exchange, e);
+            } catch (IllegalStateException e) {
+                // Every invite code is taken; the upload can't be shared right now
+                String response = "Service Unavailable: " + e.getMessage();
+                exchange.sendResponseHeaders(503, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
             } catch (Exception e) {
                 System.err.println("Error processing file upload: " + e.getMessage());
                 String response = "Server error: " + e.getMessage();
@@ -741,6 +1087,233 @@ public class FileController {
                 try (OutputStream os = exchange.getResponseBody()) {
                     os.write(response.getBytes());
                 }
+            } finally {
+                // Whatever way the request ends, an upload that wasn't shared leaves nothing
+                // behind, neither files nor reserved space
+                targets.discard();
+            }
+        }
+    }
+
+    /*
+     * Chunked upload API, for large files over flaky links and for uploading over several
+     * connections at once:
+     *
+     * POST   /uploads?filename=a.iso&size=N        start a session -> {"id": "..."}
+     * PUT    /uploads/{id}?offset=N   (raw bytes)   store one chunk at that offset
+     * GET    /uploads/{id}                          which byte ranges have arrived
+     * POST   /uploads/{id}                          finish and share -> {"port": code}
+     * DELETE /uploads/{id}                          give up and delete the partial file
+     *
+     * Chunks can arrive in any order and in parallel; a failed chunk is simply sent again.
+     */
+    private class ChunkedUploadHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Access-Control-Allow-Origin", "*");
+            // Chunks are PUT and sessions DELETEd, so browsers on another origin ask first
+            headers.add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+            headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+
+            if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+
+            String method = exchange.getRequestMethod().toUpperCase();
+            // path looks like "/uploads" or "/uploads/<id>"
+            String path = exchange.getRequestURI().getPath();
+            String id = path.length() > "/uploads/".length() ? path.substring("/uploads/".length()) : null;
+
+            try {
+                if (id == null && method.equals("POST")) {
+                    String filename = queryString(exchange, "filename");
+                    long size = queryParam(exchange, "size", -1);
+                    if (filename == null || filename.isBlank() || size < 0) {
+                        sendText(exchange, 400, "Bad Request: filename and size are required");
+                        return;
+                    }
+                    String contentType = queryString(exchange, "contentType");
+                    UploadSession session = uploadSessions.create(filename,
+                            contentType != null ? contentType : "application/octet-stream", size);
+                    sendJson(exchange, 201, "{\"id\": \"" + session.getId() + "\"}");
+                    return;
+                }
+
+                UploadSession session = id == null ? null : uploadSessions.get(id);
+                if (session == null) {
+                    sendText(exchange, 404, "Not Found: Unknown upload session");
+                    return;
+                }
+
+                switch (method) {
+                    case "PUT": {
+                        long offset = queryParam(exchange, "offset", -1);
+                        if (offset < 0) {
+                            sendText(exchange, 400, "Bad Request: offset is required");
+                            return;
+                        }
+                        // Positional write straight from the request body, nothing is buffered
+                        long written = session.writeChunk(offset, exchange.getRequestBody());
+                        UPLOAD_BYTES.add(written);
+                        sendJson(exchange, 200, "{\"received\": " + written + "}");
+                        break;
+                    }
+                    case "GET":
+                        sendJson(exchange, 200, sessionJson(session));
+                        break;
+                    case "POST": {
+                        UploadSession finished = uploadSessions.finish(id);
+                        if (finished == null) {
+                            // Some bytes are still missing; tell the client which ones we have
+                            sendJson(exchange, 409, sessionJson(session));
+                            return;
+                        }
+                        StoredUpload stored;
+                        try {
+                            stored = storeFinished(finished);
+                        } catch (IOException | RuntimeException e) {
+                            // The session is gone, so the idle sweep won't clean up after it:
+                            // storeFinished has dropped its partial output, the file goes here
+                            finished.getReservation().cancel();
+                            finished.getFile().delete();
+                            throw e;
+                        }
+                        finished.getReservation().commit(stored.path(), finished.getSize());
+                        int port;
+                        try {
+                            port = fileSharer.offerFile(stored.path(), finished.getContentType(), stored.hash(), 0, 0);
+                        } catch (IllegalStateException e) {
+                            // Every invite code is taken
+                            finished.getReservation().cancel();
+                            discardStored(stored.path());
+                            sendText(exchange, 503, "Service Unavailable: " + e.getMessage());
+                            return;
+                        }
+                        sendJson(exchange, 200, "{\"port\": " + port + ", \"sha256\": \"" + stored.hash() + "\"}");
+                        break;
+                    }
+                    case "DELETE":
+                        uploadSessions.abort(id);
+                        exchange.sendResponseHeaders(204, -1);
+                        exchange.close();
+                        break;
+                    default:
+                        sendText(exchange, 405, "Method Not Allowed");
+                }
+            } catch (IllegalArgumentException e) {
+                sendText(exchange, 400, "Bad Request: " + e.getMessage());
+            } catch (IllegalStateException e) {
+                // A chunk for a session that has ended, or finish/abort while chunks are written
+                sendText(exchange, 409, "Conflict: " + e.getMessage());
+            } catch (QuotaExceededException e) {
+                refuse(exchange, e);
+            } catch (IOException e) {
+                System.err.println("Error processing chunked upload: " + e.getMessage());
+                sendText(exchange, 500, "Server error: " + e.getMessage());
+            }
+        }
+
+        private String sessionJson(UploadSession session) {
+            StringBuilder json = new StringBuilder("{\"id\": \"").append(session.getId())
+                    .append("\", \"size\": ").append(session.getSize())
+                    .append(", \"complete\": ").append(session.isComplete())
+                    .append(", \"received\": [");
+            List<ByteRange> received = session.getReceived();
+            for (int i = 0; i < received.size(); i++) {
+                if (i > 0) {
+                    json.append(", ");
+                }
+                // Ranges are [start, end] with end inclusive, like HTTP byte ranges
+                json.append('[').append(received.get(i).start).append(", ").append(received.get(i).end).append(']');
+            }
+            return json.append("]}").toString();
+        }
+
+        private void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+
+        private void sendText(HttpExchange exchange, int status, String text) throws IOException {
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
+    /*
+     * GET /metrics: counters, gauges and latency histograms in the Prometheus text format,
+     * ready to be scraped.
+     */
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                exchange.close();
+                return;
+            }
+            byte[] body = Metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
+    /*
+     * GET /admin/bandwidth shows the bandwidth limits; POST or PUT with any of ?global=,
+     * ?share= and ?client= (bytes per second, 0 = unlimited) changes them for running
+     * transfers too. Requires Authorization: Bearer <peerlink.admin.token>.
+     */
+    private class BandwidthHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (ADMIN_TOKEN == null || ADMIN_TOKEN.isEmpty()) {
+                sendText(exchange, 404, "Not Found");
+                return;
+            }
+            if (!MessageDigest.isEqual(("Bearer " + ADMIN_TOKEN).getBytes(StandardCharsets.UTF_8),
+                    String.valueOf(exchange.getRequestHeaders().getFirst("Authorization")).getBytes(StandardCharsets.UTF_8))) {
+                exchange.getResponseHeaders().add("WWW-Authenticate", "Bearer");
+                sendText(exchange, 401, "Unauthorized");
+                return;
+            }
+            String method = exchange.getRequestMethod();
+            if (method.equalsIgnoreCase("POST") || method.equalsIgnoreCase("PUT")) {
+                bandwidth.setLimits(queryParam(exchange, "global", -1), queryParam(exchange, "share", -1),
+                        queryParam(exchange, "client", -1));
+                System.out.println("Bandwidth limits set to global " + bandwidth.getGlobalLimit() + ", share "
+                        + bandwidth.getShareLimit() + ", client " + bandwidth.getClientLimit() + " bytes/s");
+            } else if (!method.equalsIgnoreCase("GET")) {
+                sendText(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            byte[] body = ("{\"global\": " + bandwidth.getGlobalLimit() + ", \"share\": " + bandwidth.getShareLimit()
+                    + ", \"client\": " + bandwidth.getClientLimit() + "}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+
+        private void sendText(HttpExchange exchange, int status, String text) throws IOException {
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
             }
         }
     }
@@ -749,6 +1322,7 @@ public class FileController {
     private class DownloadHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
             // Get the response headers object to set HTTP headers
             Headers headers = exchange.getResponseHeaders();
             // Allow requests from any origin (CORS)
@@ -766,106 +1340,173 @@ public class FileController {
                 return;
             }
 
-            // Get the request path (should contain the port number)
+            // Get the request path (should contain the invite code)
             String path = exchange.getRequestURI().getPath(); // the api path is URI
-            // path looks like "/download/8192" 8192 is the port number
-            // Extract the port number from the path (after the last '/')
+            // path looks like "/download/51234" 51234 is the invite code
+            // Extract the invite code from the path (after the last '/')
             String portStr = path.substring(path.lastIndexOf('/') + 1);
 
             try {
-                // Convert the port string to an integer
+                // Convert the invite code string to an integer
                 int port = Integer.parseInt(portStr);
 
-                // Connect to the file server running on the given port
-                try (Socket socket = new Socket("localhost", port);
-                        InputStream socketInput = socket.getInputStream()) {
-                    /*
-                     * Socket socket = new Socket("localhost", port); ->
-                     * This creates a new network connection (socket) to the local computer
-                     * (localhost) on the specified port.
-                     * It’s like dialing a phone number to connect to a specific service running on
-                     * your own computer.
-                     * 
-                     * InputStream socketInput = socket.getInputStream(); ->
-                     * This gets the input stream from the socket, which lets you read data sent
-                     * from the
-                     * other side of the connection (the file server).
-                     * Think of it as opening a pipe to receive the file data.
-                     */
-
-                    // Create a temporary file to store the downloaded data
-                    File tempFile = File.createTempFile("download-", ".tmp");
-                    /*
-                     * File.createTempFile("download-", ".tmp"):->
-                     * This creates a new temporary file on your computer.
-                     * The file’s name will start with "download-" and end with ".tmp", with
-                     * some random characters in between (e.g., download-12345.tmp).
-                     * This file is used to store the data you’re about to download from the socket.
-                     * 
-                     * File tempFile = ...:->
-                     * This saves the reference to the temporary file so you can write to it and use
-                     * it later.
-                     */
-
+                // Handshake: tell the share server which invite code we want. A browser
+                // resuming a download sends Range (and maybe If-Range); they are passed on so
+                // the sender can seek to the offset instead of resending the whole prefix.
+                // Accept-Encoding lets the sender pick a stored compressed copy. A whole-file
+                // download may ask for a segmented transfer over several connections.
+                Headers requestHeaders = exchange.getRequestHeaders();
+                boolean segmented = DOWNLOAD_STREAMS > 1 && requestHeaders.getFirst("Range") == null;
+                PeerRequest request = new PeerRequest(port, requestHeaders.getFirst("Range"),
+                        requestHeaders.getFirst("If-Range"), requestHeaders.getFirst("Accept-Encoding"),
+                        segmented ? "new" : null);
+
+                // Connect to the share server that has the file behind this code. The relay to
+                // the browser is what goes over the uplink, so the bandwidth limits apply to it.
+                try (PeerConnection peer = connectToPeer(request);
+                        BandwidthManager.Flow flow = bandwidth.open(port, clientAddress(exchange))) {
+                    Socket socket = peer.socket();
+                    InputStream socketInput = peer.input();
+                    // Read the peer's header: what the file is and how many bytes follow
+                    PeerHeader peerHeader = peer.header();
                     // Default filename in case it's not provided by the server
-                    String filename = "downloaded-file"; // Default filename
-
-                    // Write the data from the socket to the temp file
-                    try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                        // Buffer to read file data in chunks
-                        byte[] buffer = new byte[4096];
-                        // Variable to store how many bytes were read in each iteration
-                        int bytesRead;
-
-                        // Read the header line from the socket (contains filename)
-                        ByteArrayOutputStream headerBaos = new ByteArrayOutputStream();
-                        int b;
-                        // Read bytes one by one until a newline is found (end of header)
-                        while ((b = socketInput.read()) != -1) {
-                            if (b == '\n')
-                                break;
-                            headerBaos.write(b);
-                        }
-
-                        // Parse the filename from the header if present
-                        String header = headerBaos.toString().trim();
-                        if (header.startsWith("Filename: ")) {
-                            filename = header.substring("Filename: ".length());
+                    String filename = peerHeader.filename != null ? peerHeader.filename : "downloaded-file";
+                    long size = peerHeader.size;
+
+                    if (peerHeader.isError()) {
+                        // The share server refused, e.g. 404 "Unknown invite code"
+                        String response = peerHeader.error;
+                        if (peerHeader.status == 416) {
+                            // Tell the browser how big the file really is
+                            headers.add("Content-Range", "bytes */" + size);
                         }
-
-                        // Read the rest of the file data and write to disk
-                        while ((bytesRead = socketInput.read(buffer)) != -1) {
-                            fos.write(buffer, 0, bytesRead);
+                        headers.add("Content-Type", "text/plain");
+                        exchange.sendResponseHeaders(peerHeader.status, response.getBytes().length);
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            os.write(response.getBytes());
                         }
+                        return;
                     }
 
                     // Set the response headers to prompt a file download in the browser
                     headers.add("Content-Disposition", "attachment; filename=\"" + filename + "\"");
-                    headers.add("Content-Type", "application/octet-stream");
-
-                    // Send a 200 OK response with the file size
-                    exchange.sendResponseHeaders(200, tempFile.length());
-                    // Write the file data to the response body
-                    try (OutputStream os = exchange.getResponseBody();
-                            FileInputStream fis = new FileInputStream(tempFile)) {
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-                        // Read the file in chunks and send each chunk to the client
-                        while ((bytesRead = fis.read(buffer)) != -1) {
-                            os.write(buffer, 0, bytesRead);
+                    // Let the browser know it can resume this download later with a Range request.
+                    // Only content with an ETag can be resumed; a bundle's ZIP is made as it is sent.
+                    headers.add("Accept-Ranges", peerHeader.etag != null ? "bytes" : "none");
+                    // The body may depend on Accept-Encoding, so caches must keep them apart
+                    headers.add("Vary", "Accept-Encoding");
+                    if (peerHeader.encoding != null) {
+                        // The peer sent a precompressed copy; the browser decodes it while saving
+                        headers.add("Content-Encoding", peerHeader.encoding);
+                    }
+                    if (peerHeader.etag != null) {
+                        headers.add("ETag", peerHeader.etag);
+                    }
+                    if (peerHeader.modified != 0) {
+                        headers.add("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME
+                                .format(Instant.ofEpochMilli(peerHeader.modified).atZone(ZoneOffset.UTC)));
+                    }
+                    // The type the file was uploaded with, unless it is unknown
+                    String contentType = peerHeader.contentType != null ? peerHeader.contentType : "application/octet-stream";
+                    // The peer only sends the hash along with the plain bytes. It describes the
+                    // whole file, so it also goes with ranges, but only a whole file can be
+                    // checked against it on the way through.
+                    String hash = peerHeader.hash;
+                    if (hash != null) {
+                        headers.add("Repr-Digest", ContentHash.reprDigest(hash));
+                    }
+
+                    if (peerHeader.transfer != null) {
+                        // The peer accepted a segmented transfer: fetch the segments over
+                        // several connections and write them to the browser in order
+                        headers.add("Content-Type", contentType);
+                        exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+                        DOWNLOAD_TTFB.recordSince(start);
+                        try (OutputStream os = flow.wrap(exchange.getResponseBody())) {
+                            new SegmentedDownload(socket, socketInput, peer.host(), peer.port(), port,
+                                    peerHeader.transfer, size, DOWNLOAD_STREAMS, segmentExecutor)
+                                    .writeTo(hash != null ? ContentHash.verifying(os, hash, size) : os);
                         }
+                        return;
                     }
 
-                    // Delete the temporary file after sending
-                    tempFile.delete();
+                    // -1 means the peer did not announce a length and the response is sent chunked
+                    long length = peerHeader.payloadLength;
+                    // The ranges the peer is actually sending, or null for the whole file
+                    List<ByteRange> ranges = peerHeader.range != null
+                            ? ByteRange.parse(peerHeader.range, size)
+                            : null;
+
+                    /*
+                     * Relay the file instead of spooling it to a temp file first: the response
+                     * headers go out as soon as the peer header is read, and every chunk read
+                     * from the socket is written to the browser right away. With a known length
+                     * the browser can show progress; otherwise 0 selects chunked encoding.
+                     */
+                    byte[] buffer = new byte[64 * 1024];
+                    if (ranges == null) {
+                        headers.add("Content-Type", contentType);
+                        exchange.sendResponseHeaders(200, length == -1 ? 0 : length);
+                        DOWNLOAD_TTFB.recordSince(start);
+                        try (OutputStream os = flow.wrap(exchange.getResponseBody())) {
+                            // A damaged file is cut short instead of arriving complete
+                            boolean verify = hash != null && length == size;
+                            relay(socketInput, verify ? ContentHash.verifying(os, hash, length) : os, length, buffer);
+                        }
+                    } else if (ranges.size() == 1) {
+                        // 206 Partial Content: just the requested slice of the file
+                        ByteRange range = ranges.get(0);
+                        headers.add("Content-Type", contentType);
+                        headers.add("Content-Range", "bytes " + range.start + "-" + range.end + "/" + size);
+                        exchange.sendResponseHeaders(206, range.length());
+                        DOWNLOAD_TTFB.recordSince(start);
+                        try (OutputStream os = flow.wrap(exchange.getResponseBody())) {
+                            relay(socketInput, os, range.length(), buffer);
+                        }
+                    } else {
+                        // Several ranges go back as multipart/byteranges, one part per range,
+                        // in the order the peer sends them
+                        String boundary = UUID.randomUUID().toString();
+                        List<byte[]> partHeaders = new ArrayList<>();
+                        long total = 0;
+                        for (ByteRange range : ranges) {
+                            byte[] partHeader = ("--" + boundary + "\r\n"
+                                    + "Content-Type: " + contentType + "\r\n"
+                                    + "Content-Range: bytes " + range.start + "-" + range.end + "/" + size + "\r\n"
+                                    + "\r\n").getBytes(StandardCharsets.UTF_8);
+                            partHeaders.add(partHeader);
+                            total += partHeader.length + range.length() + 2;
+                        }
+                        byte[] closing = ("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+                        total += closing.length;
+
+                        headers.add("Content-Type", "multipart/byteranges; boundary=" + boundary);
+                        exchange.sendResponseHeaders(206, total);
+                        DOWNLOAD_TTFB.recordSince(start);
+                        try (OutputStream os = flow.wrap(exchange.getResponseBody())) {
+                            for (int i = 0; i < ranges.size(); i++) {
+                                os.write(partHeaders.get(i));
+                                relay(socketInput, os, ranges.get(i).length(), buffer);
+                                os.write('\r');
+                                os.write('\n');
+                            }
+                            os.write(closing);
+                        }
+                    }
 
                 } catch (IOException e) {
                     // Print an error if something goes wrong with the socket
                     System.err.println("Error downloading file from peer: " + e.getMessage());
-                    // Respond with 500 Server Error
+                    if (exchange.getResponseCode() != -1) {
+                        // The relay already started, so just drop the connection
+                        exchange.close();
+                        return;
+                    }
+                    // Respond with 500 Server Error, or 502 Bad Gateway if the node that has the
+                    // share couldn't be reached
                     String response = "Error downloading file: " + e.getMessage();
                     headers.add("Content-Type", "text/plain");
-                    exchange.sendResponseHeaders(500, response.getBytes().length);
+                    exchange.sendResponseHeaders(fileSharer.isServing(port) ? 500 : 502, response.getBytes().length);
                     try (OutputStream os = exchange.getResponseBody()) {
                         os.write(response.getBytes());
                     }
@@ -880,5 +1521,116 @@ public class FileController {
                 }
             }
         }
+
+        // An open connection to a share server, past the handshake
+        private record PeerConnection(Socket socket, InputStream input, PeerHeader header, String host, int port)
+                implements Closeable {
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        }
+
+        /*
+         * Connects to the share server that has the code and sends it the handshake: the local
+         * one for a share this node serves, otherwise the node the ring routes the code to. A
+         * share restored on a node that no longer owns its code is only there, so when the
+         * owner doesn't know the code the other nodes are asked in turn. If none of them has
+         * it, the first 404 is returned, normally the owner's, even when some of the others
+         * can't be reached. It only fails if no node answered at all.
+         */
+        private PeerConnection connectToPeer(PeerRequest request) throws IOException {
+            ClusterRing.Node local = new ClusterRing.Node("localhost", sharePort);
+            List<ClusterRing.Node> candidates = new ArrayList<>();
+            if (fileSharer.isServing(request.code) || !ring.isClustered()) {
+                candidates.add(local);
+            } else {
+                ClusterRing.Node owner = ring.owner(request.code);
+                candidates.add(owner.equals(ring.self()) ? local : owner);
+                for (ClusterRing.Node node : ring.nodes()) {
+                    if (!node.equals(owner) && !node.equals(ring.self())) {
+                        candidates.add(node);
+                    }
+                }
+            }
+            IOException failure = null;
+            // The first node that answered 404, kept open in case nobody knows the code
+            PeerConnection notFound = null;
+            boolean notFoundRemote = false;
+            for (ClusterRing.Node node : candidates) {
+                /*
+                 * new Socket(host, port) ->
+                 * This creates a new network connection (socket) to the share server, on this
+                 * computer (localhost) or on another node of the cluster.
+                 * It's like dialing a phone number to connect to a specific service.
+                 *
+                 * socket.getInputStream() ->
+                 * This gets the input stream from the socket, which lets you read data sent
+                 * from the other side of the connection (the file server).
+                 * Think of it as opening a pipe to receive the file data.
+                 */
+                Socket socket = null;
+                try {
+                    socket = new Socket(node.host(), node.port());
+                    InputStream input = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                    OutputStream output = socket.getOutputStream();
+                    output.write(request.encode());
+                    output.flush();
+                    PeerHeader header = PeerHeader.read(input);
+                    PeerConnection answer = new PeerConnection(socket, input, header, node.host(), node.port());
+                    if (header.status != 404) {
+                        if (notFound != null) {
+                            notFound.close();
+                        }
+                        return proxied(answer, node != local);
+                    }
+                    if (notFound == null) {
+                        notFound = answer;
+                        notFoundRemote = node != local;
+                    } else {
+                        answer.close();
+                    }
+                } catch (IOException e) {
+                    if (socket != null) {
+                        socket.close();
+                    }
+                    failure = e;
+                }
+            }
+            if (notFound != null) {
+                return proxied(notFound, notFoundRemote);
+            }
+            throw failure;
+        }
+
+        // Counts a connection to another node's share server
+        private PeerConnection proxied(PeerConnection connection, boolean remote) {
+            if (remote) {
+                PROXIED_DOWNLOADS.inc();
+            }
+            return connection;
+        }
+
+        /*
+         * Copies count bytes from the peer to the browser, or everything up to end of stream
+         * when count is -1. A peer that stops early is an error: the headers are already
+         * sent, so the only honest signal left is to cut the response short and let the
+         * browser report a failed download.
+         */
+        private void relay(InputStream in, OutputStream os, long count, byte[] buffer) throws IOException {
+            long relayed = 0;
+            while (count == -1 || relayed < count) {
+                int wanted = count == -1 ? buffer.length : (int) Math.min(buffer.length, count - relayed);
+                int bytesRead = in.read(buffer, 0, wanted);
+                if (bytesRead == -1) {
+                    if (count == -1) {
+                        return;
+                    }
+                    throw new EOFException("Peer closed after " + relayed + " of " + count + " bytes");
+                }
+                os.write(buffer, 0, bytesRead);
+                relayed += bytesRead;
+            }
+        }
     }
 }
@@ -0,0 +1,203 @@
+package p2p.service;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import p2p.utils.Metrics;
+import p2p.utils.TokenBucket;
+
+/**
+ * Shares the uplink between transfers: a global limit on everything sent, and limits per share
+ * and per client, all in bytes per second and adjustable while transfers are running.
+ *
+ * Every transfer opens a Flow naming its share and client, and asks it for permission before
+ * each write. A flow takes tokens from its client's bucket, its share's bucket and the global
+ * bucket in turn, always QUANTUM bytes' worth, and spends them over as many writes as it takes
+ * (deficit round robin). Waiters are queued in order at every bucket, so active transfers take
+ * turns of equal size and each gets an equal part of whichever limit holds it back, whatever
+ * size its writes are; one huge download can no longer crowd out everything else.
+ *
+ * Share and client buckets only exist while a flow uses them.
+ */
+public class BandwidthManager {
+    // Bytes granted per turn: small enough for fine-grained turns, large enough for zero-copy
+    static final int QUANTUM = 64 * 1024;
+
+    private volatile long globalLimit;
+    private volatile long shareLimit;
+    private volatile long clientLimit;
+
+    private final TokenBucket global = new TokenBucket(() -> globalLimit);
+    // Guarded by this: buckets in use, by share code and by client address
+    private final Map<Integer, Bucket> shares = new HashMap<>();
+    private final Map<String, Bucket> clients = new HashMap<>();
+    private int flows;
+
+    private static final class Bucket {
+        final TokenBucket bucket;
+        int users;
+
+        Bucket(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * Limits in bytes per second; 0 means unlimited.
+     */
+    public BandwidthManager(long globalLimit, long shareLimit, long clientLimit) {
+        setLimits(globalLimit, shareLimit, clientLimit);
+        Metrics.gauge("peerlink_bandwidth_limit_bytes", "Bandwidth limit in bytes per second, 0 if unlimited",
+                () -> this.globalLimit, "scope", "global");
+        Metrics.gauge("peerlink_bandwidth_limit_bytes", "Bandwidth limit in bytes per second, 0 if unlimited",
+                () -> this.shareLimit, "scope", "share");
+        Metrics.gauge("peerlink_bandwidth_limit_bytes", "Bandwidth limit in bytes per second, 0 if unlimited",
+                () -> this.clientLimit, "scope", "client");
+        Metrics.gauge("peerlink_bandwidth_flows", "Transfers sending under the bandwidth limits", this::flows);
+    }
+
+    /**
+     * Changes the limits; transfers already running follow the new ones from their next write.
+     * A negative value leaves that limit as it is.
+     */
+    public void setLimits(long globalLimit, long shareLimit, long clientLimit) {
+        if (globalLimit >= 0) {
+            this.globalLimit = globalLimit;
+        }
+        if (shareLimit >= 0) {
+            this.shareLimit = shareLimit;
+        }
+        if (clientLimit >= 0) {
+            this.clientLimit = clientLimit;
+        }
+    }
+
+    public long getGlobalLimit() {
+        return globalLimit;
+    }
+
+    public long getShareLimit() {
+        return shareLimit;
+    }
+
+    public long getClientLimit() {
+        return clientLimit;
+    }
+
+    synchronized int flows() {
+        return flows;
+    }
+
+    /**
+     * Starts a transfer of share to client (an address). Close the flow when it is done.
+     */
+    public synchronized Flow open(int share, String client) {
+        Bucket shareBucket = shares.computeIfAbsent(share, code -> new Bucket(new TokenBucket(() -> shareLimit)));
+        Bucket clientBucket = clients.computeIfAbsent(client, address -> new Bucket(new TokenBucket(() -> clientLimit)));
+        shareBucket.users++;
+        clientBucket.users++;
+        flows++;
+        return new Flow(share, client, shareBucket.bucket, clientBucket.bucket);
+    }
+
+    private synchronized void close(Flow flow) {
+        if (--shares.get(flow.share).users == 0) {
+            shares.remove(flow.share);
+        }
+        if (--clients.get(flow.client).users == 0) {
+            clients.remove(flow.client);
+        }
+        flows--;
+    }
+
+    /**
+     * One transfer's view of the limits.
+     */
+    public final class Flow implements Closeable {
+        private final int share;
+        private final String client;
+        private final TokenBucket[] buckets;
+        // Bytes taken from the buckets that haven't been sent yet
+        private long credit;
+        private boolean closed;
+
+        private Flow(int share, String client, TokenBucket shareBucket, TokenBucket clientBucket) {
+            this.share = share;
+            this.client = client;
+            this.buckets = new TokenBucket[] { clientBucket, shareBucket, global };
+        }
+
+        /**
+         * Waits until some of wanted bytes may be sent and returns how many; less than wanted
+         * whenever a limit applies, so call it again for the rest.
+         */
+        public long acquire(long wanted) throws InterruptedIOException {
+            if (wanted <= 0 || !isLimited()) {
+                return wanted;
+            }
+            if (credit == 0) {
+                for (TokenBucket bucket : buckets) {
+                    bucket.take(QUANTUM);
+                }
+                credit = QUANTUM;
+            }
+            long granted = Math.min(wanted, credit);
+            credit -= granted;
+            return granted;
+        }
+
+        /**
+         * Hands back bytes that were acquired but could not be sent, for the next write.
+         */
+        public void unused(long bytes) {
+            if (bytes > 0 && isLimited()) {
+                credit += bytes;
+            }
+        }
+
+        private boolean isLimited() {
+            for (TokenBucket bucket : buckets) {
+                if (bucket.isLimited()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * A stream that writes to out no faster than the limits allow.
+         */
+        public OutputStream wrap(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    while (len > 0) {
+                        int granted = (int) acquire(len);
+                        out.write(b, off, granted);
+                        off += granted;
+                        len -= granted;
+                    }
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    acquire(1);
+                    out.write(b);
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                BandwidthManager.this.close(this);
+            }
+        }
+    }
+}
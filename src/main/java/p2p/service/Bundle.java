@@ -0,0 +1,219 @@
+package p2p.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Several uploaded files shared under one invite code, downloaded as a single ZIP.
+ *
+ * Each file is stored on its own, like any other upload, and the bundle is a small manifest
+ * listing them. The ZIP is only ever produced while it is being sent: entries are written
+ * straight to the socket one after the other, so the first bytes go out at once and there is
+ * never an archive on disk. Files whose content type says they are already compressed are
+ * stored as they are, using the size and CRC-32 recorded when they were uploaded; the rest
+ * are deflated at the fastest level on the way out.
+ *
+ * Manifest format, one tab-separated line per file after the first:
+ *   bundle NAME
+ *   size  crc32 (hex)  content type  stored path  name in the ZIP
+ */
+public class Bundle {
+    public static final String SUFFIX = ".bundle";
+
+    /**
+     * One file of a bundle: where it is stored and what it is called inside the ZIP.
+     */
+    public record Entry(String name, String path, String contentType, long size, long crc) {
+    }
+
+    private final String name;
+    private final List<Entry> entries;
+
+    private Bundle(String name, List<Entry> entries) {
+        this.name = name;
+        this.entries = entries;
+    }
+
+    public static boolean isBundle(String path) {
+        return path.endsWith(SUFFIX);
+    }
+
+    /**
+     * Writes the manifest of a new bundle into dir and returns its path. Entry names are
+     * cleaned into safe relative paths, and made unique, before they are recorded.
+     *
+     * @throws IOException if a stored path holds a control character, which would break the
+     *         manifest's lines
+     */
+    public static String write(String dir, List<Entry> entries) throws IOException {
+        List<Entry> named = new ArrayList<>(entries.size());
+        Set<String> taken = new HashSet<>();
+        for (Entry entry : entries) {
+            if (entry.path().chars().anyMatch(Character::isISOControl)) {
+                throw new IOException("The stored path of " + entryName(entry.name()) + " can't go in a bundle");
+            }
+            String entryName = uniqueName(entryName(entry.name()), taken);
+            named.add(new Entry(entryName, entry.path(), entry.contentType(), entry.size(), entry.crc()));
+        }
+        String bundleName = bundleName(named);
+        Path manifest = Path.of(dir, UUID.randomUUID() + "_" + bundleName + SUFFIX);
+        try (BufferedWriter out = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+            out.write("bundle " + bundleName + "\n");
+            for (Entry entry : named) {
+                String contentType = entry.contentType().replaceAll("\\p{Cntrl}", "");
+                out.write(entry.size() + "\t" + Long.toHexString(entry.crc()) + "\t" + contentType + "\t"
+                        + entry.path() + "\t" + entry.name() + "\n");
+            }
+        }
+        return manifest.toString();
+    }
+
+    static Bundle read(String path) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(Path.of(path), StandardCharsets.UTF_8)) {
+            String first = in.readLine();
+            if (first == null || !first.startsWith("bundle ")) {
+                throw new IOException("Not a bundle: " + new File(path).getName());
+            }
+            List<Entry> entries = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                String[] fields = line.split("\t", 5);
+                if (fields.length != 5) {
+                    throw new IOException("Bundle " + new File(path).getName() + " is damaged");
+                }
+                entries.add(new Entry(fields[4], fields[3], fields[2], Long.parseLong(fields[0]),
+                        Long.parseUnsignedLong(fields[1], 16)));
+            }
+            return new Bundle(first.substring(7), entries);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bundle " + new File(path).getName() + " is damaged", e);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Streams the bundle to out as a ZIP archive, reading every file through the store.
+     * Returns the length of the archive.
+     */
+    long writeZip(OutputStream out, ContentStore store) throws IOException {
+        long[] written = new long[1];
+        ZipOutputStream zip = new ZipOutputStream(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                written[0] += len;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                written[0]++;
+            }
+        });
+        zip.setLevel(Deflater.BEST_SPEED);
+        byte[] buffer = new byte[64 * 1024];
+        ByteBuffer window = ByteBuffer.wrap(buffer);
+        for (Entry entry : entries) {
+            try (ShareContent content = store.open(entry.path())) {
+                ZipEntry zipEntry = new ZipEntry(entry.name());
+                zipEntry.setTime(content.lastModified());
+                if (!Precompressor.isCompressible(entry.contentType())) {
+                    // Deflating it again would only cost CPU; the size and CRC go in the
+                    // local header, so no data descriptor is needed
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(entry.size());
+                    zipEntry.setCompressedSize(entry.size());
+                    zipEntry.setCrc(entry.crc());
+                }
+                zip.putNextEntry(zipEntry);
+                long position = 0;
+                while (position < entry.size()) {
+                    window.clear().limit((int) Math.min(buffer.length, entry.size() - position));
+                    int read = content.read(window, position);
+                    if (read == -1) {
+                        throw new EOFException(entry.name() + " is shorter than when it was uploaded");
+                    }
+                    zip.write(buffer, 0, read);
+                    position += read;
+                }
+                // Also checks a stored entry against its size and CRC
+                zip.closeEntry();
+            }
+        }
+        zip.finish();
+        zip.flush();
+        return written[0];
+    }
+
+    // Turns a part's filename, which is a relative path for folder uploads, into a ZIP entry
+    // name that can't escape the folder it is extracted into
+    static String entryName(String filename) {
+        StringBuilder name = new StringBuilder();
+        for (String segment : filename.replace('\\', '/').split("/")) {
+            String clean = segment.replaceAll("\\p{Cntrl}", "").trim();
+            if (clean.isEmpty() || clean.equals(".") || clean.equals("..")) {
+                continue;
+            }
+            if (name.length() > 0) {
+                name.append('/');
+            }
+            name.append(clean);
+        }
+        return name.length() > 0 ? name.toString() : "unnamed-file";
+    }
+
+    // "a.txt" twice becomes "a.txt" and "a (2).txt"
+    private static String uniqueName(String name, Set<String> taken) {
+        if (taken.add(name)) {
+            return name;
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot <= name.lastIndexOf('/') + 1) {
+            dot = name.length();
+        }
+        for (int n = 2;; n++) {
+            String candidate = name.substring(0, dot) + " (" + n + ")" + name.substring(dot);
+            if (taken.add(candidate)) {
+                return candidate;
+            }
+        }
+    }
+
+    // The folder every entry is in, when a single folder was uploaded; "files" otherwise
+    private static String bundleName(List<Entry> entries) {
+        String folder = null;
+        for (Entry entry : entries) {
+            int slash = entry.name().indexOf('/');
+            String top = slash == -1 ? null : entry.name().substring(0, slash);
+            if (top == null || (folder != null && !folder.equals(top))) {
+                return "files";
+            }
+            folder = top;
+        }
+        return folder != null ? folder : "files";
+    }
+}
@@ -0,0 +1,150 @@
+package p2p.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A share stored in the ContentStore: its manifest, read back as one continuous file.
+ *
+ * A position is mapped to the chunk that holds it with a binary search over the chunk start
+ * offsets. Each call reads or transfers within a single chunk, and the chunk file stays open
+ * until a call needs a different one, so a sequential download opens every chunk once.
+ */
+class ChunkedContent implements ShareContent {
+    record Chunk(String hash, int length) {
+    }
+
+    static final class Manifest {
+        final long size;
+        final List<Chunk> chunks;
+
+        Manifest(long size, List<Chunk> chunks) {
+            this.size = size;
+            this.chunks = chunks;
+        }
+    }
+
+    private final Path manifest;
+    private final Function<String, Path> chunkPaths;
+    private final long size;
+    private final String[] hashes;
+    // Offset of each chunk within the file
+    private final long[] starts;
+    private int openIndex = -1;
+    private FileChannel openChunk;
+
+    ChunkedContent(Path manifest, Function<String, Path> chunkPaths) throws IOException {
+        this.manifest = manifest;
+        this.chunkPaths = chunkPaths;
+        Manifest parsed = readManifest(manifest);
+        this.size = parsed.size;
+        this.hashes = new String[parsed.chunks.size()];
+        this.starts = new long[parsed.chunks.size()];
+        long offset = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = parsed.chunks.get(i).hash();
+            starts[i] = offset;
+            offset += parsed.chunks.get(i).length();
+        }
+        if (offset != size) {
+            throw new IOException("Manifest " + manifest.getFileName() + " is damaged");
+        }
+    }
+
+    static Manifest readManifest(Path manifest) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(manifest)) {
+            String first = in.readLine();
+            if (first == null || !first.startsWith("size ")) {
+                throw new IOException("Not a manifest: " + manifest.getFileName());
+            }
+            long size = Long.parseLong(first.substring(5));
+            List<Chunk> chunks = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                int space = line.indexOf(' ');
+                chunks.add(new Chunk(line.substring(0, space), Integer.parseInt(line.substring(space + 1))));
+            }
+            return new Manifest(size, chunks);
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IOException("Manifest " + manifest.getFileName() + " is damaged", e);
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long lastModified() {
+        return manifest.toFile().lastModified();
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (position >= size || count <= 0) {
+            return 0;
+        }
+        int index = chunkAt(position);
+        long offset = position - starts[index];
+        long available = chunkEnd(index) - position;
+        return chunk(index).transferTo(offset, Math.min(count, available), target);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        int index = chunkAt(position);
+        long available = chunkEnd(index) - position;
+        if (dst.remaining() > available) {
+            // Don't read past this chunk; the caller comes back for the rest
+            ByteBuffer slice = dst.slice().limit((int) available);
+            int read = chunk(index).read(slice, position - starts[index]);
+            if (read > 0) {
+                dst.position(dst.position() + read);
+            }
+            return read;
+        }
+        return chunk(index).read(dst, position - starts[index]);
+    }
+
+    private int chunkAt(long position) {
+        int index = Arrays.binarySearch(starts, position);
+        // Not a chunk start: binarySearch returns -(insertion point) - 1
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private long chunkEnd(int index) {
+        return index + 1 < starts.length ? starts[index + 1] : size;
+    }
+
+    private FileChannel chunk(int index) throws IOException {
+        if (index != openIndex) {
+            if (openChunk != null) {
+                openChunk.close();
+            }
+            openChunk = FileChannel.open(chunkPaths.apply(hashes[index]), StandardOpenOption.READ);
+            openIndex = index;
+        }
+        return openChunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (openChunk != null) {
+            openChunk.close();
+        }
+    }
+}
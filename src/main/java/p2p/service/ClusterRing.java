@@ -0,0 +1,178 @@
+package p2p.service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Which node of a cluster owns each invite code.
+ *
+ * Every node is given the same static list of nodes, each named by the address of its share
+ * server, and builds the same consistent-hash ring from it: a node sits at VNODES points on a
+ * 64-bit circle, and a code belongs to the first point at or after the code's own hash. Nodes
+ * only hand out codes they own, so any node can tell from a code alone where its share lives.
+ * Adding or removing a node only moves the codes on the arcs it takes over or gives up, about
+ * one in N of them.
+ *
+ * A server that isn't part of a cluster is a ring of one node that owns every code.
+ */
+public class ClusterRing {
+    // Points per node; enough that every node gets close to an equal part of the codes
+    private static final int VNODES = 160;
+
+    /**
+     * A node, by the host and port of its share server.
+     */
+    public record Node(String host, int port) {
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final List<Node> nodes;
+    private final Node self;
+    // Sorted hashes of every point on the ring, and the node each point belongs to
+    private final long[] points;
+    private final Node[] owners;
+    // Addresses the other nodes connect from, resolved once
+    private final Set<InetAddress> addresses = new HashSet<>();
+
+    private ClusterRing(List<Node> nodes, Node self) {
+        this.nodes = List.copyOf(nodes);
+        this.self = self;
+        long[][] placed = new long[nodes.size() * VNODES][];
+        int i = 0;
+        for (int n = 0; n < nodes.size(); n++) {
+            for (int v = 0; v < VNODES; v++) {
+                placed[i++] = new long[] { pointHash(nodes.get(n) + "#" + v), n };
+            }
+        }
+        Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[placed.length];
+        this.owners = new Node[placed.length];
+        for (i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = nodes.get((int) placed[i][1]);
+        }
+        if (nodes.size() > 1) {
+            for (Node node : nodes) {
+                try {
+                    addresses.addAll(Arrays.asList(InetAddress.getAllByName(node.host())));
+                } catch (UnknownHostException e) {
+                    System.err.println("Cluster node " + node + " can't be resolved yet: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * A single server on its own, owning every code.
+     */
+    public static ClusterRing standalone(int sharePort) {
+        Node node = new Node("localhost", sharePort);
+        return new ClusterRing(List.of(node), node);
+    }
+
+    /**
+     * Builds the ring from a comma-separated list of host:port nodes, one of which is self.
+     *
+     * @throws IllegalArgumentException if a node is malformed or self isn't in the list
+     */
+    public static ClusterRing parse(String nodes, String self) {
+        List<Node> parsed = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            if (!node.isBlank()) {
+                Node next = parseNode(node.trim());
+                if (!parsed.contains(next)) {
+                    parsed.add(next);
+                }
+            }
+        }
+        if (self == null) {
+            throw new IllegalArgumentException("The cluster needs to know which node this is");
+        }
+        Node selfNode = parseNode(self.trim());
+        if (!parsed.contains(selfNode)) {
+            throw new IllegalArgumentException(selfNode + " is not one of the cluster nodes " + parsed);
+        }
+        return new ClusterRing(parsed, selfNode);
+    }
+
+    private static Node parseNode(String node) {
+        int colon = node.lastIndexOf(':');
+        try {
+            if (colon > 0) {
+                return new Node(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Cluster node " + node + " is not host:port");
+    }
+
+    public Node self() {
+        return self;
+    }
+
+    public List<Node> nodes() {
+        return nodes;
+    }
+
+    public boolean isClustered() {
+        return nodes.size() > 1;
+    }
+
+    /**
+     * The node whose share server serves code.
+     */
+    public Node owner(int code) {
+        long hash = codeHash(code);
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        // Past the last point the circle wraps around to the first
+        return owners[index == points.length ? 0 : index];
+    }
+
+    public boolean owns(int code) {
+        return owner(code).equals(self);
+    }
+
+    /**
+     * True if address belongs to one of the cluster's nodes, e.g. a node relaying a download.
+     */
+    public boolean isNode(InetAddress address) {
+        return addresses.contains(address);
+    }
+
+    // Where a node's points go; every node must compute the same ones, whatever its JVM
+    private static long pointHash(String point) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(point.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Spreads neighbouring codes over the whole circle (the MurmurHash3 finalizer)
+    static long codeHash(int code) {
+        long h = code;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,92 @@
+package p2p.service;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+
+import p2p.utils.UploadUtils;
+
+/**
+ * Hands out invite codes in O(1) and takes them back when a share goes away.
+ *
+ * Free codes wait in a ring buffer, shuffled once at startup; allocation pops the next one and
+ * release pushes a code to the back, so a freed code is not reused until every other free code
+ * has been handed out. When the ring is empty every code is taken and allocate says so instead
+ * of retrying random codes forever. In a cluster the ring only holds the codes this node owns;
+ * a code owned by another node can still be claimed by a share restored from before the cluster
+ * changed, but goes back to no ring when it is released.
+ */
+class CodeAllocator {
+    private final int first;
+    private final int range;
+    private final IntPredicate owned;
+    private final int[] ring;
+    private int head;
+    private int size;
+    // Codes owned by a live share
+    private final BitSet inUse;
+    // Codes currently sitting in the ring; claim() can take a code without removing it, so a
+    // popped code may turn out to be in use already and is skipped
+    private final BitSet inRing;
+
+    CodeAllocator() {
+        this(code -> true);
+    }
+
+    /**
+     * Hands out only the codes owned accepts.
+     */
+    CodeAllocator(IntPredicate owned) {
+        this.first = UploadUtils.FIRST_CODE;
+        this.range = UploadUtils.LAST_CODE - UploadUtils.FIRST_CODE + 1;
+        this.owned = owned;
+        this.ring = Arrays.stream(UploadUtils.shuffledCodes()).filter(owned).toArray();
+        this.size = ring.length;
+        this.inUse = new BitSet(range);
+        this.inRing = new BitSet(range);
+        for (int code : ring) {
+            inRing.set(code - first);
+        }
+    }
+
+    /**
+     * Returns a free code, or -1 if every code is in use.
+     */
+    synchronized int allocate() {
+        while (size > 0) {
+            int code = ring[head];
+            head = (head + 1) % ring.length;
+            size--;
+            inRing.clear(code - first);
+            if (!inUse.get(code - first)) {
+                inUse.set(code - first);
+                return code;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Takes a specific code, e.g. for a share restored after a restart. Returns false if the
+     * code is outside the code range or already taken.
+     */
+    synchronized boolean claim(int code) {
+        if (code < first || code >= first + range || inUse.get(code - first)) {
+            return false;
+        }
+        inUse.set(code - first);
+        return true;
+    }
+
+    synchronized void release(int code) {
+        if (code < first || code >= first + range || !inUse.get(code - first)) {
+            return;
+        }
+        inUse.clear(code - first);
+        if (!inRing.get(code - first) && owned.test(code)) {
+            inRing.set(code - first);
+            ring[(head + size) % ring.length] = code;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package p2p.service;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import p2p.utils.UploadUtils;
+
+/**
+ * Content-addressed, deduplicating store for uploads.
+ *
+ * An upload is cut into content-defined chunks as it streams in: a gear rolling hash over the
+ * bytes picks the cut points, so the same data produces the same chunks wherever it sits in a
+ * file. Each chunk is named by its SHA-256 and written only if no stored chunk has that name
+ * yet; the upload itself becomes a small manifest listing its chunks in order. Uploading the
+ * same installer twice therefore writes it once.
+ *
+ * Chunks are reference counted per manifest entry and deleted when the last manifest that uses
+ * them is released. Creating, counting and deleting a chunk all happen inside the map entry for
+ * its hash, so a chunk can't be deleted while another upload is adding a reference to it.
+ *
+ * Layout under the upload directory:
+ *   store/manifests/UUID_filename   "size N" followed by one "sha256 length" line per chunk
+ *   store/chunks/ab/abcdef...       chunk bodies, fanned out by the first hash byte
+ */
+public class ContentStore {
+    // Chunks are cut at 64 KB at the earliest, 1 MB at the latest and 256 KB on average
+    static final int MIN_CHUNK = 64 * 1024;
+    static final int MAX_CHUNK = 1024 * 1024;
+    // 18 mask bits: a cut point roughly every 2^18 bytes past the minimum
+    private static final long CUT_MASK = -1L << (64 - 18);
+    // Fixed seed: cut points must not change between runs or stored chunks would never match
+    private static final long[] GEAR = new SplittableRandom(0x5EED_C0DEL).longs(256).toArray();
+
+    private final Path manifestDir;
+    private final Path chunkDir;
+    // Chunk hash -> number of manifest entries that use it
+    private final ConcurrentHashMap<String, Integer> refs = new ConcurrentHashMap<>();
+
+    public ContentStore(String uploadDir) throws IOException {
+        Path root = Path.of(uploadDir, "store");
+        this.manifestDir = Files.createDirectories(root.resolve("manifests"));
+        this.chunkDir = Files.createDirectories(root.resolve("chunks"));
+        // Manifests left by an earlier run still own their chunks
+        try (var manifests = Files.list(manifestDir)) {
+            for (Path manifest : (Iterable<Path>) manifests::iterator) {
+                if (!manifest.getFileName().toString().endsWith(".tmp")) {
+                    for (ChunkedContent.Chunk chunk : ChunkedContent.readManifest(manifest).chunks) {
+                        refs.merge(chunk.hash(), 1, Integer::sum);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * True if the path is a manifest written by this store rather than a plain file.
+     */
+    public boolean isManifest(String path) {
+        return Path.of(path).toAbsolutePath().getParent().equals(manifestDir.toAbsolutePath());
+    }
+
+    /**
+     * Starts storing an upload. Write its bytes to the returned stream and close it to get the
+     * manifest; call discard() instead if the upload fails.
+     */
+    public Upload newUpload(String filename) {
+        return new Upload(manifestDir.resolve(UUID.randomUUID() + "_" + UploadUtils.storedName(filename)));
+    }
+
+    // Opens a share's bytes, whichever way they are stored
+    ShareContent open(String path) throws IOException {
+        if (isManifest(path)) {
+            return new ChunkedContent(Path.of(path), this::chunkPath);
+        }
+        return new FileContent(new File(path));
+    }
+
+    /**
+     * Drops a manifest and every chunk no other manifest still uses.
+     */
+    public void release(String manifestPath) throws IOException {
+        Path manifest = Path.of(manifestPath);
+        release(ChunkedContent.readManifest(manifest).chunks);
+        Files.deleteIfExists(manifest);
+    }
+
+    private void release(List<ChunkedContent.Chunk> chunks) {
+        for (ChunkedContent.Chunk chunk : chunks) {
+            refs.computeIfPresent(chunk.hash(), (hash, count) -> {
+                if (count > 1) {
+                    return count - 1;
+                }
+                try {
+                    Files.deleteIfExists(chunkPath(hash));
+                } catch (IOException e) {
+                    System.err.println("Could not delete chunk " + hash + ": " + e.getMessage());
+                }
+                return null;
+            });
+        }
+    }
+
+    // Adds a reference to a chunk, writing it first if it isn't stored yet.
+    // Returns true if the chunk was new. The file is written outside the map, so the map only
+    // ever holds a lock for the count itself.
+    private boolean store(String hash, byte[] data, int length) throws IOException {
+        // A counted chunk is on disk, and stays there while we hold our reference
+        if (refs.computeIfPresent(hash, (h, count) -> count + 1) != null) {
+            return false;
+        }
+        // Uploads storing the same new chunk at once each write it; the renames leave one copy
+        boolean written = writeChunk(hash, data, length);
+        refs.merge(hash, 1, Integer::sum);
+        // Between the write and the count, the last reference to an earlier copy may have been
+        // released and its file deleted. Now that we hold a reference nothing deletes it again.
+        if (!Files.exists(chunkPath(hash))) {
+            written |= writeChunk(hash, data, length);
+        }
+        return written;
+    }
+
+    private boolean writeChunk(String hash, byte[] data, int length) throws IOException {
+        Path target = chunkPath(hash);
+        if (Files.exists(target) && Files.size(target) == length) {
+            // Left over from an earlier run
+            return false;
+        }
+        Files.createDirectories(target.getParent());
+        // Write beside the target and rename, so a reader never sees half a chunk. The temp
+        // file is unique, since another upload may be writing the same chunk.
+        Path temp = Files.createTempFile(target.getParent(), hash, ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            out.write(data, 0, length);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    Path chunkPath(String hash) {
+        return chunkDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * One upload being cut into chunks. Memory use is one chunk buffer, however large the
+     * upload is.
+     */
+    public class Upload extends OutputStream {
+        private final Path manifest;
+        private final byte[] buffer = new byte[MAX_CHUNK];
+        private final MessageDigest digest;
+        private final List<ChunkedContent.Chunk> chunks = new ArrayList<>();
+        private int length;
+        private long hash;
+        private long size;
+        private long newBytes;
+        private boolean closed;
+
+        private Upload(Path manifest) {
+            this.manifest = manifest;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java platform is required to provide SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public String getPath() {
+            return manifest.toString();
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                // Copy as much as fits, then scan the copied bytes for a cut point
+                int take = Math.min(end - off, MAX_CHUNK - length);
+                System.arraycopy(b, off, buffer, length, take);
+                int cut = findCut(length, length + take);
+                if (cut == -1) {
+                    length += take;
+                    off += take;
+                    if (length == MAX_CHUNK) {
+                        cutChunk(MAX_CHUNK);
+                    }
+                } else {
+                    // Bytes after the cut belong to the next chunk; they are copied again then
+                    off += cut - length;
+                    length = cut;
+                    cutChunk(cut);
+                }
+            }
+        }
+
+        // Runs the rolling hash over buffer[from, to) and returns the chunk length at the
+        // first cut point, or -1 if there is none
+        private int findCut(int from, int to) {
+            // Bytes before MIN_CHUNK - 64 can't influence the hash at MIN_CHUNK, skip them
+            int i = Math.max(from, MIN_CHUNK - 64);
+            long h = hash;
+            for (; i < to; i++) {
+                h = (h << 1) + GEAR[buffer[i] & 0xff];
+                if (i + 1 >= MIN_CHUNK && (h & CUT_MASK) == 0) {
+                    hash = 0;
+                    return i + 1;
+                }
+            }
+            hash = h;
+            return -1;
+        }
+
+        private void cutChunk(int chunkLength) throws IOException {
+            digest.update(buffer, 0, chunkLength);
+            String chunkHash = HexFormat.of().formatHex(digest.digest());
+            if (store(chunkHash, buffer, chunkLength)) {
+                newBytes += chunkLength;
+            }
+            // Record it right away so discard() gives the reference back if the upload fails
+            chunks.add(new ChunkedContent.Chunk(chunkHash, chunkLength));
+            size += chunkLength;
+            length = 0;
+            hash = 0;
+        }
+
+        /**
+         * Stores the last chunk and writes the manifest.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (length > 0) {
+                cutChunk(length);
+            }
+            Path temp = manifest.resolveSibling(manifest.getFileName() + ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                out.write("size " + size + "\n");
+                for (ChunkedContent.Chunk chunk : chunks) {
+                    out.write(chunk.hash() + " " + chunk.length() + "\n");
+                }
+            }
+            Files.move(temp, manifest, StandardCopyOption.ATOMIC_MOVE);
+            System.out.printf("Stored %s: %d bytes in %d chunks, %d bytes new, %d bytes deduplicated%n",
+                    manifest.getFileName(), size, chunks.size(), newBytes, size - newBytes);
+        }
+
+        /**
+         * Gives back every chunk reference taken so far and removes the manifest, if any.
+         */
+        public void discard() {
+            closed = true;
+            release(chunks);
+            chunks.clear();
+            try {
+                Files.deleteIfExists(manifest);
+                Files.deleteIfExists(manifest.resolveSibling(manifest.getFileName() + ".tmp"));
+            } catch (IOException e) {
+                System.err.println("Could not delete " + manifest + ": " + e.getMessage());
+            }
+        }
+    }
+}
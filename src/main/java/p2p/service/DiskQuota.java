@@ -0,0 +1,198 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import p2p.utils.Metrics;
+
+/**
+ * Decides whether an upload may be stored, before and while it is read.
+ *
+ * An upload reserves its bytes before its body is read: against the quota on everything held
+ * in the upload directory, and against the free space on the disk, less what other uploads
+ * have reserved but not written yet. Reserving checks and takes in one step, so two uploads
+ * arriving together can't both be promised the last free gigabyte. Uploads of unknown size
+ * reserve as they go, a step at a time, and are stopped as soon as a step is refused or they
+ * grow past the largest upload allowed.
+ *
+ * Once stored, an upload's bytes stay counted under its path until the share is reclaimed.
+ * Sizes are those of the uploaded content; chunks saved by deduplication are not credited and
+ * compressed copies are not charged.
+ */
+public class DiskQuota {
+    // Uploads of unknown length reserve this much more each time they run out
+    private static final long GROW_STEP = 16L * 1024 * 1024;
+
+    private final File dir;
+    private final long maxUpload;
+    private final long quota;
+    private final long minFree;
+
+    // Guarded by this: bytes of stored uploads and of reservations in progress
+    private long reserved;
+    private final Map<String, Long> stored = new HashMap<>();
+    // Reserved by uploads in progress but not written yet; the disk's free space doesn't show them
+    private final AtomicLong unwritten = new AtomicLong();
+
+    /**
+     * maxUpload is the largest single upload and quota the most bytes held in dir, 0 meaning
+     * no limit for either. Uploads are refused when they would leave less than minFree bytes
+     * free on the disk.
+     */
+    public DiskQuota(File dir, long maxUpload, long quota, long minFree) {
+        this.dir = dir;
+        this.maxUpload = maxUpload;
+        this.quota = quota;
+        this.minFree = minFree;
+        Metrics.gauge("peerlink_quota_reserved_bytes", "Bytes of stored uploads and reservations in progress",
+                this::reserved);
+    }
+
+    public long getMaxUpload() {
+        return maxUpload;
+    }
+
+    synchronized long reserved() {
+        return reserved;
+    }
+
+    /**
+     * Reserves bytes for an upload about to be read; bytes may be 0 if its size isn't known.
+     *
+     * @throws QuotaExceededException with status 507 if the quota or the disk can't take it
+     */
+    public Reservation reserve(long bytes) throws QuotaExceededException {
+        Reservation reservation = new Reservation();
+        reservation.grow(bytes);
+        return reservation;
+    }
+
+    /**
+     * Counts an upload that was stored before a restart; it is on the disk already, so nothing
+     * is checked.
+     */
+    public synchronized void restore(String path, long bytes) {
+        Long previous = stored.put(path, bytes);
+        reserved += bytes - (previous != null ? previous : 0);
+    }
+
+    /**
+     * The bytes counted for the stored upload at path, 0 if it isn't counted.
+     */
+    public synchronized long stored(String path) {
+        return stored.getOrDefault(path, 0L);
+    }
+
+    /**
+     * Stops counting a stored upload, once its share has been reclaimed.
+     */
+    public synchronized void release(String path) {
+        Long size = stored.remove(path);
+        if (size != null) {
+            reserved -= size;
+        }
+    }
+
+    private synchronized void take(long bytes) throws QuotaExceededException {
+        if (quota > 0 && reserved + bytes > quota) {
+            throw new QuotaExceededException(507, "Upload quota of " + quota + " bytes is used up");
+        }
+        if (dir.getUsableSpace() - unwritten.get() - bytes < minFree) {
+            throw new QuotaExceededException(507, "Not enough disk space for the upload");
+        }
+        reserved += bytes;
+        unwritten.addAndGet(bytes);
+    }
+
+    /**
+     * The space promised to one upload. Either commit it once the upload is stored, or cancel
+     * it; cancel after commit gives back the stored bytes as well.
+     */
+    public final class Reservation {
+        private long size; // reserved
+        private long written; // counted through limit()
+        private String path; // set once committed
+
+        private void grow(long bytes) throws QuotaExceededException {
+            if (bytes > 0) {
+                take(bytes);
+                size += bytes;
+            }
+        }
+
+        /**
+         * Counts what is written to out against the reservation, reserving more when it runs
+         * out. Throws QuotaExceededException from write() once the upload grows past the
+         * largest allowed (413) or no more can be reserved (507).
+         */
+        public OutputStream limit(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    admit(len);
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    admit(1);
+                    out.write(b);
+                }
+            };
+        }
+
+        private void admit(long bytes) throws QuotaExceededException {
+            if (maxUpload > 0 && written + bytes > maxUpload) {
+                throw new QuotaExceededException(413, "Upload is larger than the limit of " + maxUpload + " bytes");
+            }
+            long needed = written + bytes - size;
+            if (needed > 0) {
+                // A step at a time, but never past the largest upload, and just what is needed
+                // when a whole step no longer fits
+                long step = maxUpload > 0 ? Math.min(GROW_STEP, maxUpload - size) : GROW_STEP;
+                try {
+                    grow(Math.max(step, needed));
+                } catch (QuotaExceededException e) {
+                    if (step <= needed) {
+                        throw e;
+                    }
+                    grow(needed);
+                }
+            }
+            written += bytes;
+            unwritten.addAndGet(-bytes);
+        }
+
+        /**
+         * Keeps exactly bytes reserved for the stored upload at path, until release(path).
+         */
+        public void commit(String path, long bytes) {
+            synchronized (DiskQuota.this) {
+                unwritten.addAndGet(-(size - written));
+                reserved += bytes - size;
+                stored.put(path, bytes);
+            }
+            this.size = bytes;
+            this.written = bytes;
+            this.path = path;
+        }
+
+        public void cancel() {
+            if (path != null) {
+                release(path);
+                return;
+            }
+            synchronized (DiskQuota.this) {
+                unwritten.addAndGet(-(size - written));
+                reserved -= size;
+            }
+            size = 0;
+            written = 0;
+        }
+    }
+}
@@ -1,100 +1,403 @@
 // This package statement declares that this file belongs to the 'p2p.service' package
 package p2p.service;
 
-// Import the UploadUtils class which contains utility methods for generating codes
-import p2p.utils.UploadUtils;
+// Import the pool of direct buffers used when zero-copy isn't possible
+import p2p.utils.BufferPool;
+// Import ByteRange to resolve the byte ranges of resumed downloads
+import p2p.utils.ByteRange;
+// Import ThreadMode to pick platform or virtual threads for transfers
+import p2p.utils.ThreadMode;
+// Import Metrics to count transfers and bytes for /metrics
+import p2p.utils.Metrics;
 
 // Import classes for file input/output operations
 import java.io.*;
-// Import classes for network communication (server and client sockets)
-import java.net.ServerSocket;
-import java.net.Socket;
-// Import HashMap to store port-to-filepath mappings
-import java.util.HashMap;
+// Import classes for network communication (client socket channels)
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+// Import List to hold the byte ranges being sent
+import java.util.List;
+// Import the map of running segmented transfers
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+// Import ExecutorService to run transfers off the share server thread
+import java.util.concurrent.ExecutorService;
+// Import Semaphore to bound the connections of segmented downloads
+import java.util.concurrent.Semaphore;
 
 // Define the FileSharer class, which manages file sharing between peers
 public class FileSharer {
 
-    // Declare a HashMap to store available files with their associated ports
-    // Key: port number (Integer), Value: file path (String)
-    private HashMap<Integer, String> availableFiles;
+    // How many clients may download the same share at once (-Dpeerlink.share.maxConcurrent)
+    private static final int MAX_CONCURRENT_PER_SHARE = Integer.getInteger("peerlink.share.maxConcurrent", 8);
+    // How many transfers may run at once across all shares (-Dpeerlink.transfer.threads)
+    private static final int TRANSFER_THREADS = Integer.getInteger("peerlink.transfer.threads", 32);
+    // How long a share lives unless the upload asks otherwise (-Dpeerlink.share.ttl, seconds, 0 = forever)
+    private static final long DEFAULT_TTL_MILLIS = Long.getLong("peerlink.share.ttl", 24 * 60 * 60) * 1000;
+    // How long a segmented transfer connection may sit idle between two segments
+    private static final int SEGMENT_IDLE_MILLIS = 30_000;
+    // Longest handshake accepted on an open transfer connection, same as the share server's
+    private static final int MAX_HANDSHAKE = 1024;
+    // Memory for popular small shares (-Dpeerlink.cache.bytes, 0 = no cache) and the largest
+    // file that goes into it (-Dpeerlink.cache.maxFile)
+    private static final long CACHE_BYTES = Long.getLong("peerlink.cache.bytes", 64L * 1024 * 1024);
+    private static final long CACHE_MAX_FILE = Long.getLong("peerlink.cache.maxFile", 1024 * 1024);
+    // Serve large plain files from shared memory mappings (-Dpeerlink.mmap=true), those of at
+    // least -Dpeerlink.mmap.minSize bytes; smaller ones are sent with transferTo as usual
+    private static final boolean MMAP = Boolean.getBoolean("peerlink.mmap");
+    private static final long MMAP_MIN_SIZE = Long.getLong("peerlink.mmap.minSize", 64L * 1024 * 1024);
+    // Each file is mapped in windows of this size, and keeps at most MMAP_WINDOWS of them mapped
+    private static final long MMAP_WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final int MMAP_WINDOWS = 16;
+
+    private static final Metrics.Gauge TRANSFERS_IN_FLIGHT = Metrics.gauge("peerlink_transfers_in_flight",
+            "Connections the share server is sending file bytes on");
+    private static final Metrics.Counter DOWNLOAD_BYTES = Metrics.counter("peerlink_bytes_total",
+            "File bytes moved, by direction", "direction", "download");
+
+    // Declare a registry to store available shares with their associated invite codes
+    // It hands out the codes, expires shares and tells us when a file can be deleted
+    private final ShareRegistry availableFiles;
+
+    // Runs the file transfers; in platform mode it is bounded so a burst of downloads can't
+    // create unlimited threads, in virtual mode every transfer gets its own virtual thread
+    private final ExecutorService transferExecutor;
+
+    // Runs the connections of segmented downloads. Each one keeps its thread until the
+    // downloader closes it, so they get a pool of their own with one slot per thread: a
+    // connection joining a transfer starts at once or is refused, it never waits in a queue
+    // behind connections that are waiting for it.
+    private final ExecutorService segmentExecutor;
+    private final Semaphore segmentSlots;
+
+    // The single listener that serves downloads for every invite code
+    private ShareServer shareServer;
+
+    // Segmented downloads in progress, by transfer id
+    private final ConcurrentHashMap<Long, Transfer> transfers = new ConcurrentHashMap<>();
+
+    // Where deduplicated uploads live; plain files are served as they are
+    private final ContentStore contentStore;
+
+    // Compressed copies of uploads, sent to clients that accept them
+    private final Precompressor precompressor;
+
+    // Small shares that keep getting downloaded, served from memory
+    private final HotFileCache hotFiles = new HotFileCache(CACHE_BYTES, CACHE_MAX_FILE);
+
+    // Large shares being served from memory mappings, null unless enabled
+    private final MappedFiles mappedFiles = MMAP ? new MappedFiles(MMAP_MIN_SIZE, MMAP_WINDOW_SIZE, MMAP_WINDOWS) : null;
+
+    // Limits how fast transfers may send, overall, per share and per client
+    private final BandwidthManager bandwidth;
+
+    // Counts the space each share's upload takes until it is reclaimed
+    private final DiskQuota quota;
+
+    // Records the live shares so they can be restored after a restart, null if they aren't kept
+    private final ShareJournal journal;
+
+    // Which codes this node hands out, and which clients are other nodes relaying downloads
+    private final ClusterRing ring;
 
     // Constructor for FileSharer class
-    public FileSharer() {
-        // Initialize the HashMap to store file-port mappings
-        availableFiles = new HashMap<>();
+    public FileSharer(ContentStore contentStore, Precompressor precompressor, BandwidthManager bandwidth,
+            DiskQuota quota, ShareJournal journal, ClusterRing ring) {
+        this.contentStore = contentStore;
+        this.precompressor = precompressor;
+        this.bandwidth = bandwidth;
+        this.quota = quota;
+        this.journal = journal;
+        this.ring = ring;
+        // Initialize the registry; files of retired shares are deleted by reclaim(). In a
+        // cluster it only hands out codes the ring routes to this node.
+        availableFiles = new ShareRegistry(this::reclaim, journal, ring::owns);
+        transferExecutor = ThreadMode.current().newExecutor("transfer", TRANSFER_THREADS);
+        segmentExecutor = ThreadMode.current().newExecutor("segment-transfer", TRANSFER_THREADS);
+        segmentSlots = new Semaphore(ThreadMode.current() == ThreadMode.VIRTUAL ? Integer.MAX_VALUE : TRANSFER_THREADS);
+        Metrics.gauge("peerlink_shares_open", "Shares the share server is serving", availableFiles::size);
     }
 
-    // Method to offer a file for sharing and get a unique port number
+    // Method to offer a file for sharing with the default limits
     public int offerFile(String filePath) {
-        // Declare a variable to store the generated port number
-        int port;
-        // Keep trying until we find an available port
-        while (true) {
-            // Generate a random port number using the utility method
-            port = UploadUtils.generateCode();
-            // Check if this port is not already in use
-            if (!availableFiles.containsKey(port)) {
-                // Store the file path with this port number
-                availableFiles.put(port, filePath);
-                // Return the port number for this file
-                return port;
-            }
-            // If port is already in use, continue the loop to try another port
-        }
-    }
-
-    // Method to start a file server on a specific port to serve a file
-    public void startFileServer(int port) {
-        // Get the file path associated with this port number
-        String filePath = availableFiles.get(port);
-        // If no file is associated with this port, print error and return
-        if (filePath == null) {
-            System.err.println("No file associated with port: " + port);
+        return offerFile(filePath, null, null, 0, 0);
+    }
+
+    // Method to offer a file for sharing and get a unique invite code.
+    // contentType and hash (hex SHA-256) are passed on to downloaders (null if unknown),
+    // maxDownloads = 0 means unlimited, ttlMillis = 0 means the default TTL.
+    // Throws IllegalStateException if every invite code is taken.
+    public int offerFile(String filePath, String contentType, String hash, int maxDownloads, long ttlMillis) {
+        long ttl = ttlMillis > 0 ? ttlMillis : DEFAULT_TTL_MILLIS;
+        long expiresAt = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+        // The registry picks a free code in O(1) and stores the share under it. The share is
+        // journaled before the registry publishes it, so its removal can't be recorded first.
+        Share share = availableFiles.add(code -> {
+            if (journal != null) {
+                journal.added(new ShareJournal.Entry(code, filePath, contentType, hash, maxDownloads, expiresAt,
+                        quota.stored(filePath), 0));
+            }
+            return new Share(code, filePath, contentType, hash, MAX_CONCURRENT_PER_SHARE, maxDownloads, expiresAt);
+        });
+        // Return the invite code for this file
+        return share.getCode();
+    }
+
+    // Serves the shares recorded in the journal again under their old invite codes; called once
+    // at startup, before the share server starts. Shares that expired or used up their downloads
+    // while the server was down are reclaimed instead. A share whose code the cluster now routes
+    // to another node is still served from here, since its file is only here; downloads that
+    // reach the new owner are looked for on the other nodes. Returns how many were restored.
+    public int restoreShares() throws IOException {
+        if (journal == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        for (ShareJournal.Entry entry : journal.load()) {
+            Share share = new Share(entry.code(), entry.path(), entry.contentType(), entry.hash(),
+                    MAX_CONCURRENT_PER_SHARE, entry.maxDownloads(), entry.expiresAt());
+            share.restoreDownloads(entry.downloads());
+            if (share.isExpired(now) || share.isExhausted() || !availableFiles.restore(share)) {
+                journal.removed(entry.code());
+                share.retire();
+                reclaim(share);
+                continue;
+            }
+            // Nothing is read from the disk here: a file that has gone missing shows up as a
+            // failed download, not as a slower start
+            quota.restore(entry.path(), entry.size());
+            if (!ring.owns(entry.code())) {
+                System.out.println("Share " + entry.code() + " now routes to " + ring.owner(entry.code())
+                        + " but stays served here");
+            }
+            restored++;
+        }
+        return restored;
+    }
+
+    // True if this node serves the share behind code, whichever node the cluster routes it to
+    public boolean isServing(int code) {
+        return availableFiles.get(code) != null;
+    }
+
+    // Called once a retired share has no downloads left: its file is no longer needed
+    private void reclaim(Share share) {
+        hotFiles.remove(share);
+        String path = share.getFilePath();
+        quota.release(path);
+        if (Bundle.isBundle(path)) {
+            // Each file of a bundle is stored like a single upload; delete them, then the list
+            int deleted = 0;
+            try {
+                for (Bundle.Entry entry : Bundle.read(path).getEntries()) {
+                    deleted += deleteStored(entry.path()) ? 1 : 0;
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read " + path + ": " + e.getMessage());
+            }
+            if (deleteStored(path)) {
+                System.out.println("Share " + share.getCode() + " removed, deleted its " + deleted + " files");
+            }
             return;
         }
+        if (deleteStored(path)) {
+            System.out.println("Share " + share.getCode() + " removed, "
+                    + (contentStore.isManifest(path) ? "released its chunks" : "deleted " + new File(path).getName()));
+        }
+    }
+
+    // Deletes one stored upload, a plain file or a manifest along with the chunks no other
+    // upload uses, and its compressed copies. Returns false if it could not be deleted.
+    private boolean deleteStored(String path) {
+        precompressor.delete(path);
+        if (contentStore.isManifest(path)) {
+            // Chunks shared with other uploads stay until their last manifest goes
+            try {
+                contentStore.release(path);
+                return true;
+            } catch (IOException e) {
+                System.err.println("Could not release " + path + ": " + e.getMessage());
+                return false;
+            }
+        }
+        File file = new File(path);
+        if (file.delete() || !file.exists()) {
+            return true;
+        }
+        System.err.println("Could not delete " + file.getPath());
+        return false;
+    }
+
+    // Method to start the single listener that serves every share
+    public void start(int port) throws IOException {
+        // Downloads for all invite codes arrive on this one port
+        shareServer = new ShareServer(this, port);
+        shareServer.start();
+    }
+
+    // Method to stop serving shares
+    public void stop() {
+        if (shareServer != null) {
+            shareServer.stop();
+        }
+        transferExecutor.shutdown();
+        segmentExecutor.shutdown();
+        availableFiles.close();
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    // Runs a share server connection's blocking work, so the selector thread never waits on it
+    void execute(Runnable task) {
+        transferExecutor.execute(task);
+    }
+
+    // Look up the share behind an invite code (null if the code is unknown or has expired)
+    Share getShare(int code) {
+        return availableFiles.get(code);
+    }
+
+    // Send a file (or the ranges it asked for) to a client whose handshake named this share
+    void sendFile(SocketChannel clientChannel, Share share, PeerRequest request) throws IOException {
+        if (!share.tryStartDownload()) {
+            if (share.isExhausted() || availableFiles.get(share.getCode()) != share) {
+                sendError(clientChannel, 404, "Unknown invite code");
+            } else {
+                sendError(clientChannel, 503, "Too many downloads in progress for this share, try again later");
+            }
+            return;
+        }
+        if (share.isExhausted()) {
+            // That was the last download allowed; stop handing out this code. The file is
+            // deleted once this download (and any others still running) has finished.
+            availableFiles.retire(share);
+            System.out.println("Share " + share.getCode() + " reached its download limit");
+        } else if (journal != null && share.getMaxDownloads() != 0) {
+            // A restart must not hand out the downloads this share has already used
+            journal.downloaded(share.getCode());
+        }
+        // Hand the transfer to the executor
+        // This keeps the share server free to accept other downloads. A client asking for a
+        // segmented download while every segment thread is taken gets the whole file instead.
+        if (request.startsTransfer() && segmentSlots.tryAcquire()) {
+            segmentExecutor.execute(new FileSenderHandler(clientChannel, share, request, null, true));
+        } else {
+            transferExecutor.execute(new FileSenderHandler(clientChannel, share, request, null, false));
+        }
+    }
 
-        // Try to create a server socket on the specified port
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            // Print a message showing which file is being served on which port
-            System.out.println("Serving file '" + new File(filePath).getName() + "' on port " + port);
-            // Wait for a client to connect and accept the connection
-            Socket clientSocket = serverSocket.accept();
-            // Print the IP address of the connected client
-            System.out.println("Client connected: " + clientSocket.getInetAddress());
+    // Add a connection to a segmented download that is already running. It doesn't count as
+    // another download, so a share limited to one download can still be fetched in segments.
+    void joinTransfer(SocketChannel clientChannel, PeerRequest request) throws IOException {
+        Transfer transfer;
+        try {
+            transfer = transfers.get(Long.parseLong(request.transfer));
+        } catch (NumberFormatException e) {
+            transfer = null;
+        }
+        if (transfer == null || transfer.share.getCode() != request.code) {
+            sendError(clientChannel, 404, "Unknown transfer");
+            return;
+        }
+        if (!segmentSlots.tryAcquire()) {
+            sendError(clientChannel, 503, "Too many segmented downloads in progress");
+            return;
+        }
+        if (!transfer.tryJoin()) {
+            segmentSlots.release();
+            sendError(clientChannel, 503, "Too many connections for this transfer");
+            return;
+        }
+        segmentExecutor.execute(new FileSenderHandler(clientChannel, transfer.share, request, transfer, true));
+    }
 
-            // Create a new thread to handle sending the file to the client
-            // This allows the server to handle multiple clients if needed
-            new Thread(new FileSenderHandler(clientSocket, filePath)).start();
+    // Registers a new segmented download under an id nobody can guess
+    private Transfer startTransfer(Share share) {
+        while (true) {
+            Transfer transfer = new Transfer(ThreadLocalRandom.current().nextLong(Long.MAX_VALUE), share);
+            if (transfers.putIfAbsent(transfer.id, transfer) == null) {
+                return transfer;
+            }
+        }
+    }
 
-        } catch (IOException e) {
-            // Print an error message if there's a problem starting the server
-            System.err.println("Error starting file server on port " + port + ": " + e.getMessage());
+    // Tell a client its request can't be served, using the same header format as a file.
+    // The status uses HTTP numbers so the receiver can pass it straight on.
+    void sendError(SocketChannel clientChannel, int status, String message) throws IOException {
+        try (clientChannel) {
+            ByteBuffer header = ByteBuffer.wrap(PeerHeader.error(status, message).encode());
+            while (header.hasRemaining()) {
+                clientChannel.write(header);
+            }
         }
     }
 
     // Inner class that handles the actual file sending to a connected client
-    private static class FileSenderHandler implements Runnable {
+    private class FileSenderHandler implements Runnable {
         // Store the client's socket connection
-        private final Socket clientSocket;
+        private final SocketChannel clientChannel;
+        // Store the share whose download slot this transfer holds
+        private final Share share;
         // Store the path to the file that needs to be sent
         private final String filePath;
+        // Store what the client asked for (whole file or byte ranges)
+        private final PeerRequest request;
+        // The segmented download this connection belongs to, if any
+        private Transfer transfer;
+        // How fast this transfer may send; null if it isn't limited
+        private BandwidthManager.Flow flow;
+        // Whether this connection runs on a segment thread and holds one of its slots
+        private final boolean segmentSlot;
 
         // Constructor for FileSenderHandler
-        public FileSenderHandler(Socket clientSocket, String filePath) {
+        public FileSenderHandler(SocketChannel clientChannel, Share share, PeerRequest request, Transfer transfer,
+                boolean segmentSlot) {
             // Store the client socket for communication
-            this.clientSocket = clientSocket;
-            // Store the file path to be sent
-            this.filePath = filePath;
+            this.clientChannel = clientChannel;
+            // Store the share and the file path to be sent
+            this.share = share;
+            this.filePath = share.getFilePath();
+            this.request = request;
+            this.transfer = transfer;
+            this.segmentSlot = segmentSlot;
         }
 
         // This method is called when the thread starts running
         @Override
         public void run() {
-            // Try to open the file and get the output stream to the client
-            try (FileInputStream fis = new FileInputStream(filePath);
-                 OutputStream oss = clientSocket.getOutputStream()) {
-                
+            // Remember where the client is, the channel can't tell us once it's closed
+            InetAddress address = clientChannel.socket().getInetAddress();
+            String client = String.valueOf(address);
+            // The API's own relay connects over loopback, and in a cluster the other nodes relay
+            // downloads of this node's shares; either is limited where it sends to the browser,
+            // so counting the bytes here as well would charge them twice
+            if (!address.isLoopbackAddress() && !ring.isNode(address)) {
+                flow = bandwidth.open(share.getCode(), address.getHostAddress());
+            }
+            TRANSFERS_IN_FLIGHT.inc();
+            // A client that accepts gzip or deflate gets the stored compressed copy, if there
+            // is one. Ranges always refer to the plain bytes, so a resumed download doesn't.
+            boolean bundle = Bundle.isBundle(filePath);
+            String encoding = request.range == null && transfer == null && !bundle
+                    ? precompressor.choose(filePath, request.acceptEncoding)
+                    : null;
+            // Open the bytes to send; a plain file, the chunks of a deduplicated upload or a
+            // compressed copy, all of which the kernel can copy to the socket for us, or a
+            // popular small share straight from memory. A bundle has nothing to open, its ZIP
+            // is made while it is sent.
+            try (ShareContent content = bundle ? null
+                    : encoding != null ? new FileContent(precompressor.variant(filePath, encoding))
+                    : openContent()) {
+                if (bundle) {
+                    sendBundle(client);
+                    return;
+                }
+
                 // Send the filename as a header before the file content
                 // This helps the client know what to name the downloaded file
 
@@ -102,35 +405,275 @@ public class FileSharer {
                 variable that contains the path to a file (for example, "C:/Users/John/Documents/report.pdf").
                 
                 For example, if the path is "C:/Users/John/Documents/report.pdf", getName() will return "report.pdf".*/
-                
-                // Create a header string with the filename
-                String header = "Filename: " + filename + "\n";
+                long size = content.size();
+                long lastModified = content.lastModified();
+                long start = System.nanoTime();
+                if (transfer != null) {
+                    // A connection that joined a segmented download only ever asks for ranges
+                    logSent(filename, client, serveSegments(content, size, request), start);
+                    return;
+                }
+                // The ETag changes whenever the file does, so a resumed download never mixes
+                // bytes from two versions of the file
+                String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified)
+                        + (encoding != null ? "-" + encoding : "") + "\"";
+
+                // Work out which bytes to send: the ranges the client asked for, or everything
+                List<ByteRange> ranges = null;
+                if (request.range != null && ByteRange.ifRangeMatches(request.ifRange, etag, lastModified)) {
+                    ranges = ByteRange.parse(request.range, size);
+                }
+
+                // Describe the file before sending it. Announcing the size and the payload
+                // length lets the receiver relay the file with a Content-Length.
+                PeerHeader header = new PeerHeader();
+                header.filename = filename;
+                header.contentType = share.getContentType();
+                header.size = size;
+                header.etag = etag;
+                header.modified = lastModified;
+                // Size and ETag describe the compressed bytes when there is an encoding; the
+                // hash is of the plain bytes, so it only goes with those
+                header.encoding = encoding;
+                header.hash = encoding == null ? share.getHash() : null;
+                if (segmentSlot && request.startsTransfer() && encoding == null && ranges == null) {
+                    // Segmented download: no body yet, the client asks for ranges on this
+                    // connection and on the others it opens for the same transfer
+                    transfer = startTransfer(share);
+                    header.transfer = String.valueOf(transfer.id);
+                    header.payloadLength = 0;
+                    writeHeader(header);
+                    logSent(filename, client, serveSegments(content, size, null), start);
+                    return;
+                }
+                if (ranges != null && ranges.isEmpty()) {
+                    // None of the requested ranges overlaps the file
+                    header.status = 416;
+                    header.error = "Range Not Satisfiable";
+                    writeHeader(header);
+                    return;
+                }
+                if (ranges == null) {
+                    ranges = List.of(new ByteRange(0, size - 1));
+                } else {
+                    header.range = ByteRange.format(ranges);
+                }
+                long length = 0;
+                for (ByteRange range : ranges) {
+                    length += range.length();
+                }
+                header.payloadLength = length;
                 // Write the header to the client
-                oss.write(header.getBytes());
-                
-                // Send the actual file content in chunks
-                // Create a buffer to read file data in chunks of 4096 bytes
-                byte[] buffer = new byte[4096];
-                // Variable to store how many bytes were read in each iteration
-                int bytesRead;
-                // Read the file in chunks and send each chunk to the client
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    // Write the chunk of data to the client
-                    oss.write(buffer, 0, bytesRead);
-                }
-                // Print a success message when the file has been sent
-                System.out.println("File '" + filename + "' sent to " + clientSocket.getInetAddress());
+                writeHeader(header);
+
+                logSent(filename, client, sendRanges(content, ranges), start);
             } catch (IOException e) {
                 // Print an error message if there's a problem sending the file
                 System.err.println("Error sending file to client: " + e.getMessage());
             } finally {
+                TRANSFERS_IN_FLIGHT.dec();
+                if (flow != null) {
+                    flow.close();
+                }
+                // Free the download slot so another client of this share can start. A segmented
+                // download holds one slot for all its connections, freed when the last one ends.
+                if (transfer == null) {
+                    availableFiles.downloadFinished(share);
+                } else if (transfer.leave()) {
+                    transfers.remove(transfer.id);
+                    availableFiles.downloadFinished(share);
+                }
                 // Always try to close the client socket, even if an error occurred
                 try {
-                    clientSocket.close();
+                    clientChannel.close();
                 } catch (IOException e) {
                     // Print an error if there's a problem closing the socket
                     System.err.println("Error closing client socket: " + e.getMessage());
                 }
+                if (segmentSlot) {
+                    segmentSlots.release();
+                }
+            }
+        }
+
+        // The share's bytes from the hot-file cache, a memory mapping of a large file, or from
+        // disk (caching them if the share has become popular)
+        private ShareContent openContent() throws IOException {
+            ShareContent cached = hotFiles.get(share);
+            if (cached != null) {
+                return cached;
+            }
+            if (mappedFiles != null && !contentStore.isManifest(filePath)) {
+                ShareContent mapped = mappedFiles.open(filePath);
+                if (mapped != null) {
+                    return mapped;
+                }
+            }
+            ShareContent content = contentStore.open(filePath);
+            try {
+                ShareContent loaded = hotFiles.load(share, content);
+                if (loaded == null) {
+                    return content;
+                }
+                content.close();
+                return loaded;
+            } catch (IOException e) {
+                content.close();
+                throw e;
+            }
+        }
+
+        // Streams a bundle as a ZIP. Its length is only known once it has been written, so the
+        // header announces none and the receiver relays it until the connection closes. Ranges
+        // and segmented transfers need a length, so a bundle is always sent whole.
+        private void sendBundle(String client) throws IOException {
+            long start = System.nanoTime();
+            Bundle bundle = Bundle.read(filePath);
+            PeerHeader header = new PeerHeader();
+            header.filename = bundle.getName() + ".zip";
+            header.contentType = share.getContentType();
+            header.modified = new File(filePath).lastModified();
+            writeHeader(header);
+            OutputStream out = Metrics.counting(Channels.newOutputStream(clientChannel), DOWNLOAD_BYTES);
+            out = new BufferedOutputStream(flow != null ? flow.wrap(out) : out, 64 * 1024);
+            logSent(header.filename, client, bundle.writeZip(out, contentStore), start);
+        }
+
+        // Print a success message with how fast the file went out
+        private void logSent(String filename, String client, long sent, long startNanos) {
+            long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+            double megabytesPerSecond = (sent / (1024.0 * 1024.0)) / (elapsedNanos / 1_000_000_000.0);
+            System.out.printf("File '%s' sent to %s (%d bytes in %d ms, %.1f MB/s%s)%n",
+                    filename, client, sent, elapsedNanos / 1_000_000, megabytesPerSecond,
+                    transfer != null ? ", segmented" : "");
+        }
+
+        private long sendRanges(ShareContent content, List<ByteRange> ranges) throws IOException {
+            long sent = 0;
+            for (ByteRange range : ranges) {
+                // Each range is read straight from its offset, the prefix is never resent
+                sent += sendRange(content, range.start, range.end + 1);
+            }
+            return sent;
+        }
+
+        /*
+         * Serves a segmented transfer connection: answers each handshake with the ranges it
+         * asks for, until the client closes the connection. first is a handshake that was
+         * already read by the share server, or null.
+         */
+        private long serveSegments(ShareContent content, long size, PeerRequest first) throws IOException {
+            clientChannel.socket().setSoTimeout(SEGMENT_IDLE_MILLIS);
+            InputStream in = new BufferedInputStream(clientChannel.socket().getInputStream(), MAX_HANDSHAKE);
+            long sent = 0;
+            PeerRequest next = first != null ? first : readHandshake(in);
+            while (next != null) {
+                List<ByteRange> ranges = next.range != null ? ByteRange.parse(next.range, size) : null;
+                if (ranges == null || ranges.isEmpty()) {
+                    writeHeader(PeerHeader.error(416, "Range Not Satisfiable"));
+                    break;
+                }
+                long length = 0;
+                for (ByteRange range : ranges) {
+                    length += range.length();
+                }
+                PeerHeader header = new PeerHeader();
+                header.size = size;
+                header.range = ByteRange.format(ranges);
+                header.payloadLength = length;
+                writeHeader(header);
+                sent += sendRanges(content, ranges);
+                next = readHandshake(in);
+            }
+            return sent;
+        }
+
+        // Reads the next handshake on an open transfer connection; null once the client is done
+        private PeerRequest readHandshake(InputStream in) throws IOException {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            int previous = -1;
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n' && previous == '\n') {
+                    return PeerRequest.parse(block.toString(StandardCharsets.UTF_8));
+                }
+                block.write(b);
+                previous = b;
+                if (block.size() > MAX_HANDSHAKE) {
+                    throw new IOException("Handshake too long");
+                }
+            }
+            if (block.size() > 0) {
+                throw new EOFException("Client closed the connection in the middle of a handshake");
+            }
+            return null;
+        }
+
+        private void writeHeader(PeerHeader header) throws IOException {
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header.encode());
+            while (headerBuffer.hasRemaining()) {
+                clientChannel.write(headerBuffer);
+            }
+        }
+
+        // Sends the bytes between position (inclusive) and end (exclusive) of the file
+        private long sendRange(ShareContent content, long position, long end) throws IOException {
+            /*
+             * transferTo() asks the kernel to move bytes from the file to the socket
+             * directly (sendfile on Linux), so the data never gets copied into a Java
+             * buffer. It may send less than asked for, so keep going from where it stopped.
+             */
+            long from = position;
+            while (position < end) {
+                long allowed = allowance(end - position);
+                long sent = content.transferTo(position, allowed, clientChannel);
+                if (flow != null) {
+                    flow.unused(allowed - Math.max(sent, 0));
+                }
+                if (sent <= 0) {
+                    // The platform couldn't make progress with zero-copy, finish the normal way
+                    break;
+                }
+                position += sent;
+                DOWNLOAD_BYTES.add(sent);
+            }
+            if (position < end) {
+                position += copyWithBuffer(content, position, end);
+            }
+            return position - from;
+        }
+
+        // How many of wanted bytes may be sent now, waiting for the bandwidth limits if needed
+        private long allowance(long wanted) throws InterruptedIOException {
+            return flow != null ? flow.acquire(wanted) : wanted;
+        }
+
+        // Fallback copy through a pooled direct buffer, used only when transferTo stalls
+        private long copyWithBuffer(ShareContent content, long position, long end) throws IOException {
+            ByteBuffer buffer = BufferPool.acquire();
+            try {
+                long copied = 0;
+                while (position + copied < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), allowance(end - position - copied)));
+                    int read = content.read(buffer, position + copied);
+                    if (flow != null) {
+                        flow.unused(buffer.limit() - Math.max(read, 0));
+                    }
+                    if (read == -1) {
+                        // The file got shorter while we were sending it
+                        break;
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        clientChannel.write(buffer);
+                    }
+                    copied += read;
+                    DOWNLOAD_BYTES.add(read);
+                }
+                return copied;
+            } finally {
+                BufferPool.release(buffer);
             }
         }
     }
@@ -0,0 +1,204 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import p2p.utils.Metrics;
+
+/**
+ * Keeps small, popular shares in memory so their downloads don't touch the disk.
+ *
+ * Entries are keyed by invite code and hold the whole file in a direct ByteBuffer, outside the
+ * Java heap, that the socket can be written from without another copy. The cache has a byte
+ * budget and evicts the least recently used shares to stay within it.
+ *
+ * A share is only admitted the second time it is downloaded, the "doorkeeper" of TinyLFU: a
+ * file fetched once and never again doesn't push out the files that are actually popular.
+ * Entries remember the Share they were loaded for, so a code that is reused for another upload
+ * never serves the old bytes.
+ */
+class HotFileCache {
+    private static final Metrics.Counter HITS = Metrics.counter("peerlink_hot_cache_requests_total",
+            "Downloads looked up in the hot-file cache, by result", "result", "hit");
+    private static final Metrics.Counter MISSES = Metrics.counter("peerlink_hot_cache_requests_total",
+            "Downloads looked up in the hot-file cache, by result", "result", "miss");
+    // Shares seen once are remembered up to this many, then the doorkeeper starts over
+    private static final int DOORKEEPER_SIZE = 4096;
+
+    private final long budget;
+    private final long maxFileSize;
+
+    // Guarded by this: code -> entry, in least recently used first order
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    // Shares that missed once; a second miss admits them
+    private final ConcurrentHashMap<Integer, Share> doorkeeper = new ConcurrentHashMap<>();
+
+    private record Entry(Share share, ByteBuffer data, long lastModified) {
+    }
+
+    /**
+     * budget is the most bytes held in total; files larger than maxFileSize are never cached.
+     * A budget of 0 turns the cache off.
+     */
+    HotFileCache(long budget, long maxFileSize) {
+        this.budget = budget;
+        this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+        Metrics.gauge("peerlink_hot_cache_bytes", "Bytes of shares held in the hot-file cache", this::bytes);
+        Metrics.gauge("peerlink_hot_cache_entries", "Shares held in the hot-file cache", this::size);
+    }
+
+    /**
+     * The cached bytes of a share, or null on a miss.
+     */
+    ShareContent get(Share share) {
+        if (budget <= 0) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(share.getCode());
+            if (entry != null && entry.share != share) {
+                // Left over from an earlier share with the same code
+                evict(share.getCode());
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            MISSES.inc();
+            return null;
+        }
+        HITS.inc();
+        return new MemoryContent(entry.data, entry.lastModified);
+    }
+
+    /**
+     * Called after a miss with the content opened from disk. If the share has earned a place,
+     * the content is read into memory and the cached copy is returned (source is then no longer
+     * needed); otherwise returns null and source should be served as it is.
+     */
+    ShareContent load(Share share, ShareContent source) throws IOException {
+        long size = source.size();
+        if (budget <= 0 || size > maxFileSize || size > budget) {
+            return null;
+        }
+        if (doorkeeper.get(share.getCode()) != share) {
+            // First request of this share (or the code changed hands): remember it and move on
+            if (doorkeeper.size() >= DOORKEEPER_SIZE) {
+                doorkeeper.clear();
+            }
+            doorkeeper.put(share.getCode(), share);
+            return null;
+        }
+        doorkeeper.remove(share.getCode(), share);
+
+        ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+        while (data.hasRemaining()) {
+            if (source.read(data, data.position()) == -1) {
+                // The file is shorter than it said; don't cache a partial copy
+                return null;
+            }
+        }
+        data.flip();
+        ByteBuffer readOnly = data.asReadOnlyBuffer();
+        long lastModified = source.lastModified();
+        synchronized (this) {
+            evict(share.getCode());
+            entries.put(share.getCode(), new Entry(share, readOnly, lastModified));
+            bytes += size;
+            // Drop the least recently used shares until the budget holds
+            Iterator<Entry> oldest = entries.values().iterator();
+            while (bytes > budget && oldest.hasNext()) {
+                Entry entry = oldest.next();
+                oldest.remove();
+                bytes -= entry.data.capacity();
+            }
+        }
+        return new MemoryContent(readOnly, lastModified);
+    }
+
+    /**
+     * Forgets a share, once its file is reclaimed.
+     */
+    void remove(Share share) {
+        doorkeeper.remove(share.getCode(), share);
+        synchronized (this) {
+            Entry entry = entries.get(share.getCode());
+            if (entry != null && entry.share == share) {
+                evict(share.getCode());
+            }
+        }
+    }
+
+    private void evict(int code) {
+        Entry entry = entries.remove(code);
+        if (entry != null) {
+            bytes -= entry.data.capacity();
+        }
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * A cached share. Every download gets its own view of the shared buffer, so they never
+     * disturb each other's position.
+     */
+    private static final class MemoryContent implements ShareContent {
+        private final ByteBuffer data;
+        private final long lastModified;
+
+        MemoryContent(ByteBuffer data, long lastModified) {
+            this.data = data;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public long size() {
+            return data.capacity();
+        }
+
+        @Override
+        public long lastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            if (position >= data.capacity() || count <= 0) {
+                return 0;
+            }
+            ByteBuffer slice = data.duplicate();
+            slice.position((int) position).limit((int) Math.min(data.capacity(), position + count));
+            return target.write(slice);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            if (position >= data.capacity()) {
+                return -1;
+            }
+            ByteBuffer slice = data.duplicate();
+            int length = (int) Math.min(dst.remaining(), data.capacity() - position);
+            slice.position((int) position).limit((int) position + length);
+            dst.put(slice);
+            return length;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release; the buffer belongs to the cache
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import p2p.utils.Metrics;
+
+/**
+ * Serves large shares from memory-mapped windows of the file.
+ *
+ * Everyone downloading the same file at the same time uses the same mappings, so they read
+ * the same page-cache pages without a read() call or a private copy per downloader. A file is
+ * mapped in fixed-size windows as downloads reach them rather than all at once, and only the
+ * most recently used windows of each file stay mapped, so a multi-gigabyte share can't use up
+ * the address space. Windows that fall out are unmapped by the GC once no download still
+ * holds them.
+ *
+ * The JDK has no madvise; windows are touched front to back by sequential downloads, which is
+ * the pattern the kernel's own read-ahead on page faults is built for.
+ */
+class MappedFiles {
+    private final long minSize;
+    private final long windowSize;
+    private final int maxWindows;
+
+    // Guarded by this: files being served, by path
+    private final Map<String, MappedFile> files = new HashMap<>();
+
+    /**
+     * Files smaller than minSize aren't mapped. windowSize is the size of each mapping and
+     * maxWindows how many of them one file keeps.
+     */
+    MappedFiles(long minSize, long windowSize, int maxWindows) {
+        this.minSize = minSize;
+        this.windowSize = Math.min(windowSize, Integer.MAX_VALUE);
+        this.maxWindows = maxWindows;
+        Metrics.gauge("peerlink_mapped_files", "Files being served from memory mappings", this::size);
+    }
+
+    /**
+     * Opens a mapped view of the file at path, or returns null if it is too small to be worth
+     * mapping and should be served the normal way.
+     */
+    ShareContent open(String path) throws IOException {
+        File file = new File(path);
+        if (file.length() < minSize) {
+            return null;
+        }
+        synchronized (this) {
+            MappedFile mapped = files.get(path);
+            if (mapped == null) {
+                mapped = new MappedFile(path, FileChannel.open(file.toPath(), StandardOpenOption.READ), file.lastModified());
+                files.put(path, mapped);
+            }
+            mapped.users++;
+            return new MappedContent(mapped);
+        }
+    }
+
+    synchronized int size() {
+        return files.size();
+    }
+
+    private synchronized void close(MappedFile mapped) throws IOException {
+        if (--mapped.users == 0) {
+            files.remove(mapped.path);
+            // Closing the channel doesn't unmap anything; the windows go once they are collected
+            mapped.channel.close();
+        }
+    }
+
+    private final class MappedFile {
+        final String path;
+        final FileChannel channel;
+        final long size;
+        final long lastModified;
+        // Guarded by MappedFiles.this
+        int users;
+
+        // Guarded by windows: mapped windows by index, least recently used first
+        private final LinkedHashMap<Long, MappedByteBuffer> windows = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+                return size() > maxWindows;
+            }
+        };
+
+        MappedFile(String path, FileChannel channel, long lastModified) throws IOException {
+            this.path = path;
+            this.channel = channel;
+            this.size = channel.size();
+            this.lastModified = lastModified;
+        }
+
+        // A private view of the window holding position, positioned there
+        ByteBuffer window(long position) throws IOException {
+            long index = position / windowSize;
+            MappedByteBuffer window;
+            synchronized (windows) {
+                window = windows.get(index);
+                if (window == null) {
+                    long start = index * windowSize;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+                    windows.put(index, window);
+                }
+            }
+            return window.duplicate().position((int) (position - index * windowSize));
+        }
+    }
+
+    /**
+     * One download's handle on a mapped file.
+     */
+    private final class MappedContent implements ShareContent {
+        private final MappedFile file;
+        private boolean closed;
+
+        MappedContent(MappedFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public long size() {
+            return file.size;
+        }
+
+        @Override
+        public long lastModified() {
+            return file.lastModified;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            if (position >= file.size || count <= 0) {
+                return 0;
+            }
+            ByteBuffer window = file.window(position);
+            window.limit((int) Math.min(window.limit(), window.position() + count));
+            return target.write(window);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (position >= file.size) {
+                return -1;
+            }
+            ByteBuffer window = file.window(position);
+            int length = Math.min(dst.remaining(), window.remaining());
+            window.limit(window.position() + length);
+            dst.put(window);
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                MappedFiles.this.close(file);
+            }
+        }
+    }
+}
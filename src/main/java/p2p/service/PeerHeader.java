@@ -0,0 +1,161 @@
+package p2p.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * The header the share server sends before a file, a segment of one, or instead of it when
+ * the request fails.
+ *
+ * It is a binary frame with everything the receiver needs before the first payload byte:
+ * <pre>
+ * magic        4 bytes  "PLNK"
+ * version      1 byte
+ * flags        1 byte   which of the optional fields below are present
+ * length       4 bytes  size of the rest of the header
+ * status       2 bytes  0, or the HTTP status of an error
+ * size         8 bytes  size of the file, -1 if unknown
+ * payload      8 bytes  bytes that follow the header, -1 if unknown (sent until EOF)
+ * modified     8 bytes  last-modified time in milliseconds
+ * filename, content type, ETag           strings
+ * hash, encoding, range, transfer, error strings, only if their flag is set
+ * </pre>
+ * Strings are written with DataOutputStream.writeUTF. The payload length is known before
+ * anything is relayed, so the receiver can announce a Content-Length and tell a cut-off
+ * transfer from a finished one. A later version may only append fields; the length lets an
+ * older reader skip them.
+ */
+public class PeerHeader {
+    static final int MAGIC = 0x504C4E4B; // "PLNK"
+    static final int VERSION = 1;
+    // Far more than any real header, small enough that a bogus length can't exhaust memory
+    private static final int MAX_LENGTH = 64 * 1024;
+
+    private static final int FLAG_HASH = 1;
+    private static final int FLAG_ENCODING = 2;
+    private static final int FLAG_RANGE = 4;
+    private static final int FLAG_TRANSFER = 8;
+    private static final int FLAG_ERROR = 16;
+
+    public int status; // 0 unless the request failed
+    public long size = -1;
+    public long payloadLength = -1;
+    public long modified;
+    public String filename;
+    public String contentType;
+    public String etag;
+    public String hash; // hex SHA-256 of the file, null if not known
+    public String encoding; // "gzip" or "deflate" when the payload is a compressed copy
+    public String range; // the ranges being sent, e.g. "bytes=0-99,200-299"; null for the whole file
+    public String transfer; // id of the segmented transfer this connection serves
+    public String error; // message that goes with a non-zero status
+
+    // A header that only reports a failure, e.g. 404 "Unknown invite code"
+    public static PeerHeader error(int status, String message) {
+        PeerHeader header = new PeerHeader();
+        header.status = status;
+        header.error = message;
+        return header;
+    }
+
+    public boolean isError() {
+        return status != 0;
+    }
+
+    public byte[] encode() {
+        int flags = (hash != null ? FLAG_HASH : 0)
+                | (encoding != null ? FLAG_ENCODING : 0)
+                | (range != null ? FLAG_RANGE : 0)
+                | (transfer != null ? FLAG_TRANSFER : 0)
+                | (error != null ? FLAG_ERROR : 0);
+        try {
+            ByteArrayOutputStream fields = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(fields);
+            out.writeShort(status);
+            out.writeLong(size);
+            out.writeLong(payloadLength);
+            out.writeLong(modified);
+            out.writeUTF(filename != null ? filename : "");
+            out.writeUTF(contentType != null ? contentType : "");
+            out.writeUTF(etag != null ? etag : "");
+            for (String optional : new String[] { hash, encoding, range, transfer, error }) {
+                if (optional != null) {
+                    out.writeUTF(optional);
+                }
+            }
+
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(10 + fields.size());
+            DataOutputStream header = new DataOutputStream(frame);
+            header.writeInt(MAGIC);
+            header.writeByte(VERSION);
+            header.writeByte(flags);
+            header.writeInt(fields.size());
+            fields.writeTo(header);
+            return frame.toByteArray();
+        } catch (IOException e) {
+            // Writing to memory doesn't fail
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads one header, leaving in positioned at the first payload byte.
+     *
+     * @throws EOFException if the peer closed the connection before or inside the header
+     * @throws IOException if what arrived isn't a PeerLink header
+     */
+    public static PeerHeader read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int magic;
+        try {
+            magic = data.readInt();
+        } catch (EOFException e) {
+            throw new EOFException("Peer closed the connection before sending a file");
+        }
+        if (magic != MAGIC) {
+            throw new IOException("Peer did not answer with a PeerLink header");
+        }
+        int version = data.readUnsignedByte();
+        if (version < VERSION) {
+            throw new IOException("Unsupported peer protocol version " + version);
+        }
+        int flags = data.readUnsignedByte();
+        int length = data.readInt();
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Peer header has a bad length: " + length);
+        }
+        byte[] body = new byte[length];
+        data.readFully(body);
+
+        DataInputStream fields = new DataInputStream(new ByteArrayInputStream(body));
+        PeerHeader header = new PeerHeader();
+        try {
+            header.status = fields.readUnsignedShort();
+            header.size = fields.readLong();
+            header.payloadLength = fields.readLong();
+            header.modified = fields.readLong();
+            header.filename = emptyToNull(fields.readUTF());
+            header.contentType = emptyToNull(fields.readUTF());
+            header.etag = emptyToNull(fields.readUTF());
+            header.hash = (flags & FLAG_HASH) != 0 ? fields.readUTF() : null;
+            header.encoding = (flags & FLAG_ENCODING) != 0 ? fields.readUTF() : null;
+            header.range = (flags & FLAG_RANGE) != 0 ? fields.readUTF() : null;
+            header.transfer = (flags & FLAG_TRANSFER) != 0 ? fields.readUTF() : null;
+            header.error = (flags & FLAG_ERROR) != 0 ? fields.readUTF() : null;
+        } catch (EOFException e) {
+            throw new IOException("Peer header is shorter than its fields", e);
+        }
+        // Anything left was added by a newer version
+        return header;
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,102 @@
+package p2p.service;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The handshake a downloader sends to the share server: which share it wants and, optionally,
+ * which part of it.
+ *
+ * On the wire it is a block of "Name: value" lines ended by a blank line:
+ * <pre>
+ * Code: 51234
+ * Range: bytes=1000-
+ * If-Range: "5f5e100-18b3c2a1f00"
+ * Accept-Encoding: gzip, deflate
+ *
+ * </pre>
+ * Range, If-Range and Accept-Encoding use the HTTP syntax, so the download side can pass the
+ * browser's headers through unchanged and the sender can seek straight to the requested
+ * offsets or pick a compressed copy.
+ *
+ * A segmented download starts with "Transfer: new". The sender answers with the file's header
+ * and a transfer id, then keeps the connection open and answers one handshake with a Range
+ * after another. More connections join with "Transfer: id" and work the same way, without
+ * counting as extra downloads of the share.
+ */
+public class PeerRequest {
+    public final int code;
+    public final String range; // null for the whole file
+    public final String ifRange; // null when the range is unconditional
+    public final String acceptEncoding; // null if only the plain bytes will do
+    public final String transfer; // "new", the id of a transfer to join, or null
+
+    public PeerRequest(int code, String range, String ifRange, String acceptEncoding, String transfer) {
+        this.code = code;
+        this.range = range;
+        this.ifRange = ifRange;
+        this.acceptEncoding = acceptEncoding;
+        this.transfer = transfer;
+    }
+
+    // A handshake for the next segment on an open transfer connection
+    public static PeerRequest segment(int code, String transfer, String range) {
+        return new PeerRequest(code, range, null, null, transfer);
+    }
+
+    public boolean startsTransfer() {
+        return "new".equals(transfer);
+    }
+
+    public boolean joinsTransfer() {
+        return transfer != null && !startsTransfer();
+    }
+
+    public byte[] encode() {
+        StringBuilder handshake = new StringBuilder("Code: ").append(code).append('\n');
+        if (range != null) {
+            handshake.append("Range: ").append(range).append('\n');
+        }
+        if (ifRange != null) {
+            handshake.append("If-Range: ").append(ifRange).append('\n');
+        }
+        if (acceptEncoding != null) {
+            handshake.append("Accept-Encoding: ").append(acceptEncoding).append('\n');
+        }
+        if (transfer != null) {
+            handshake.append("Transfer: ").append(transfer).append('\n');
+        }
+        handshake.append('\n');
+        return handshake.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a handshake block. A missing or malformed code comes back as -1, which never
+     * matches a share.
+     */
+    static PeerRequest parse(String block) {
+        int code = -1;
+        String range = null;
+        String ifRange = null;
+        String acceptEncoding = null;
+        String transfer = null;
+        for (String line : block.split("\n")) {
+            line = line.trim();
+            if (line.startsWith("Code: ")) {
+                try {
+                    code = Integer.parseInt(line.substring("Code: ".length()).trim());
+                } catch (NumberFormatException e) {
+                    code = -1;
+                }
+            } else if (line.startsWith("Range: ")) {
+                range = line.substring("Range: ".length()).trim();
+            } else if (line.startsWith("If-Range: ")) {
+                ifRange = line.substring("If-Range: ".length()).trim();
+            } else if (line.startsWith("Accept-Encoding: ")) {
+                acceptEncoding = line.substring("Accept-Encoding: ".length()).trim();
+            } else if (line.startsWith("Transfer: ")) {
+                transfer = line.substring("Transfer: ".length()).trim();
+            }
+        }
+        return new PeerRequest(code, range, ifRange, acceptEncoding, transfer);
+    }
+}
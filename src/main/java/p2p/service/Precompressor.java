@@ -0,0 +1,225 @@
+package p2p.service;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps compressed copies of uploads so downloads can be sent with a Content-Encoding without
+ * compressing anything at download time.
+ *
+ * The copies are made in the same pass that stores the upload: every byte written to the
+ * upload is also fed to a gzip encoder (best ratio) and a zlib "deflate" encoder at its fastest
+ * level. A copy is only kept if it saves at least a tenth of the size, so files that don't
+ * compress cost nothing at download time. Content types that are already compressed (images,
+ * video, archives...) are passed through untouched.
+ *
+ * Copies live in uploadDir/compressed, named after the share's file plus .gz or .zz.
+ */
+public class Precompressor {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    // Types whose bytes are already compressed; compressing them again only burns CPU
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/vnd.rar", "application/x-bzip2", "application/x-xz",
+            "application/zstd", "application/pdf", "application/x-tar", "application/java-archive",
+            "application/vnd.android.package-archive", "application/epub+zip",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation");
+
+    private final File dir;
+
+    public Precompressor(String uploadDir) {
+        this.dir = new File(uploadDir, "compressed");
+        dir.mkdirs();
+    }
+
+    /**
+     * True unless the content type says the bytes are already compressed. Images other than
+     * SVG and BMP, audio and video are treated as compressed.
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return true;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        int semicolon = type.indexOf(';');
+        if (semicolon != -1) {
+            type = type.substring(0, semicolon);
+        }
+        type = type.trim();
+        if (type.startsWith("image/")) {
+            return type.equals("image/svg+xml") || type.equals("image/bmp");
+        }
+        return !type.startsWith("video/") && !type.startsWith("audio/") && !COMPRESSED_TYPES.contains(type);
+    }
+
+    /**
+     * Wraps the stream an upload is written to so compressed copies are made alongside it.
+     * sharePath is the path the upload will be shared under. Closing the returned stream closes
+     * the wrapped one and decides which copies to keep.
+     */
+    public OutputStream wrap(OutputStream out, String sharePath) throws IOException {
+        return new CompressingStream(out, sharePath);
+    }
+
+    /**
+     * The stored copy for an encoding, or null if there is none.
+     */
+    File variant(String sharePath, String encoding) {
+        File file = variantFile(sharePath, encoding);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Picks the smallest stored copy the client accepts, or null to send the file as it is.
+     */
+    String choose(String sharePath, String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        String best = null;
+        long bestSize = Long.MAX_VALUE;
+        for (String encoding : new String[] { GZIP, DEFLATE }) {
+            File file = variant(sharePath, encoding);
+            if (file != null && file.length() < bestSize && accepts(acceptEncoding, encoding)) {
+                best = encoding;
+                bestSize = file.length();
+            }
+        }
+        return best;
+    }
+
+    // True if an Accept-Encoding header allows the encoding (listed, or *, without q=0)
+    static boolean accepts(String acceptEncoding, String encoding) {
+        boolean wildcard = false;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        refused = Double.parseDouble(param.substring(2)) <= 0;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            if (name.equals(encoding)) {
+                return !refused;
+            }
+            if (name.equals("*")) {
+                wildcard = !refused;
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * Deletes the compressed copies of a share.
+     */
+    public void delete(String sharePath) {
+        variantFile(sharePath, GZIP).delete();
+        variantFile(sharePath, DEFLATE).delete();
+    }
+
+    private File variantFile(String sharePath, String encoding) {
+        String suffix = encoding.equals(GZIP) ? ".gz" : ".zz";
+        return new File(dir, new File(sharePath).getName() + suffix);
+    }
+
+    /*
+     * Tees everything written to it into the upload and both encoders.
+     */
+    private class CompressingStream extends OutputStream {
+        private final OutputStream out;
+        private final String sharePath;
+        private final Deflater fastDeflater = new Deflater(Deflater.BEST_SPEED);
+        private final GZIPOutputStream gzip;
+        private final DeflaterOutputStream deflate;
+        private long size;
+        private boolean closed;
+
+        CompressingStream(OutputStream out, String sharePath) throws IOException {
+            this.out = out;
+            this.sharePath = sharePath;
+            // GZIPOutputStream has no level parameter; its deflater is set up before any
+            // byte is written
+            this.gzip = new GZIPOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(variantFile(sharePath, GZIP)), 64 * 1024), 64 * 1024) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            };
+            try {
+                this.deflate = new DeflaterOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(variantFile(sharePath, DEFLATE)), 64 * 1024), fastDeflater, 64 * 1024);
+            } catch (IOException e) {
+                gzip.close();
+                fastDeflater.end();
+                delete(sharePath);
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            gzip.write(b, off, len);
+            deflate.write(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // Every stream is closed whichever of them fails, and a copy that may be cut short
+            // is deleted rather than served
+            boolean complete = false;
+            try {
+                try {
+                    gzip.close();
+                } finally {
+                    try {
+                        deflate.close();
+                    } finally {
+                        fastDeflater.end();
+                        out.close();
+                    }
+                }
+                complete = true;
+            } finally {
+                if (!complete) {
+                    delete(sharePath);
+                }
+            }
+            // Keep a copy only if it is at least 10% smaller than the file itself
+            for (String encoding : new String[] { GZIP, DEFLATE }) {
+                File file = variantFile(sharePath, encoding);
+                if (file.length() > size - size / 10) {
+                    file.delete();
+                }
+            }
+        }
+    }
+}
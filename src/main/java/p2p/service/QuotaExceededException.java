@@ -0,0 +1,21 @@
+package p2p.service;
+
+import java.io.IOException;
+
+/**
+ * An upload was refused, or stopped part way, because it is too large (status 413) or there
+ * is no room left to store it (status 507).
+ */
+public class QuotaExceededException extends IOException {
+    private final int status;
+
+    public QuotaExceededException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    // The HTTP status to answer with
+    public int getStatus() {
+        return status;
+    }
+}
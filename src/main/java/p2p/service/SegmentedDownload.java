@@ -0,0 +1,335 @@
+package p2p.service;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Downloads one share over several connections at once and writes it out in order.
+ *
+ * A single TCP stream over a long, lossy path tops out well below the link's capacity, while
+ * several streams side by side fill it. The file is split into fixed-size segments; each
+ * stream keeps asking the share server for the next segment nobody has taken yet, and the
+ * caller's thread writes finished segments to the output strictly in file order. At most a
+ * few segments beyond the one being written are held in memory, so a stalled stream makes the
+ * others wait instead of filling the heap.
+ *
+ * The number of streams is tuned while the download runs. It starts at two; after each stream
+ * has delivered a couple of segments the combined throughput is compared with what the
+ * streams managed before the last one was added. Another stream is only opened while the last
+ * one brought in at least half of a stream's worth of extra throughput, so a path that is
+ * already full stops growing after one useless stream. A stream the share server turns away
+ * because it is serving too many segmented downloads gives its segment back to the others and
+ * the download stops growing.
+ */
+public class SegmentedDownload {
+    static final int SEGMENT_SIZE = 2 * 1024 * 1024;
+    private static final int INITIAL_STREAMS = 2;
+    // Segments each stream delivers before the throughput is judged
+    private static final int SEGMENTS_PER_SAMPLE = 2;
+
+    private final String host;
+    private final int port;
+    private final int code;
+    private final String transferId;
+    private final long size;
+    private final int maxStreams;
+    private final ExecutorService executor;
+    private final int segmentCount;
+
+    // Guarded by this: finished segments waiting to be written, keyed by index - nextToWrite
+    private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>();
+    private final byte[][] finished;
+    private int nextToClaim;
+    private int nextToWrite;
+    private int streams;
+    private int liveStreams;
+    // Segments given back by refused streams, and streams still waiting for their first answer
+    private final ArrayDeque<Integer> returned = new ArrayDeque<>();
+    private int pendingJoins;
+    private boolean refused;
+    // The control connection once it has no segments left; held open, not waited on
+    private Socket heldControl;
+    private IOException failure;
+
+    /**
+     * control is the connection that started the transfer; its header has been read and it
+     * becomes the first stream. It is closed when the download ends.
+     */
+    public SegmentedDownload(Socket control, InputStream controlInput, String host, int port, int code,
+            String transferId, long size, int maxStreams, ExecutorService executor) {
+        this.host = host;
+        this.port = port;
+        this.code = code;
+        this.transferId = transferId;
+        this.size = size;
+        this.maxStreams = Math.max(1, Math.min(maxStreams, Transfer.MAX_CONNECTIONS));
+        this.executor = executor;
+        this.segmentCount = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        // One buffered segment per stream plus one being written
+        this.finished = new byte[this.maxStreams + 1][];
+        startStream(control, controlInput, true);
+    }
+
+    /**
+     * Writes the whole file to out, returning once every segment is written. Throws if a
+     * stream fails; the other streams stop at their next segment.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        long sampleStart = System.nanoTime();
+        int sampleFrom = 0;
+        double lastRate = 0;
+        boolean growing = true;
+        try {
+            while (streams() < Math.min(INITIAL_STREAMS, maxStreams) && segmentCount > streams()) {
+                addStream();
+            }
+            for (int index = 0; index < segmentCount; index++) {
+                byte[] segment = awaitSegment(index);
+                out.write(segment, 0, segmentLength(index));
+                segmentWritten(segment);
+
+                int written = index + 1;
+                if (growing && written - sampleFrom >= streams() * SEGMENTS_PER_SAMPLE) {
+                    long now = System.nanoTime();
+                    double rate = (double) (written - sampleFrom) * SEGMENT_SIZE / Math.max(1, now - sampleStart);
+                    int current = streams();
+                    // The newest stream must add at least half a stream's worth of throughput
+                    if (refused()) {
+                        growing = false;
+                    } else if (lastRate == 0 || rate - lastRate >= 0.5 * lastRate / Math.max(1, current - 1)) {
+                        if (current < maxStreams && segmentCount - written > current) {
+                            addStream();
+                        } else {
+                            growing = false;
+                        }
+                    } else {
+                        growing = false;
+                    }
+                    lastRate = rate;
+                    sampleFrom = written;
+                    sampleStart = now;
+                }
+            }
+        } finally {
+            stop();
+        }
+        System.out.println("Segmented download of share " + code + " used " + streams() + " streams");
+    }
+
+    private int segmentLength(int index) {
+        return (int) Math.min(SEGMENT_SIZE, size - (long) index * SEGMENT_SIZE);
+    }
+
+    private synchronized int streams() {
+        return streams;
+    }
+
+    private synchronized boolean refused() {
+        return refused;
+    }
+
+    private void addStream() {
+        try {
+            Socket socket = new Socket(host, port);
+            startStream(socket, new BufferedInputStream(socket.getInputStream(), 64 * 1024), false);
+        } catch (IOException e) {
+            // The streams already running can finish the download on their own
+            System.err.println("Could not open another download stream: " + e.getMessage());
+        }
+    }
+
+    private synchronized void startStream(Socket socket, InputStream in, boolean control) {
+        streams++;
+        liveStreams++;
+        executor.execute(() -> runStream(socket, in, control));
+    }
+
+    // One stream: claim the next segment, fetch it, hand it over, repeat
+    private void runStream(Socket socket, InputStream in, boolean control) {
+        boolean held = false;
+        // Joined connections name the transfer in their first handshake and may be refused in
+        // the answer to it; the control connection was already accepted
+        boolean answered = control;
+        // Whether a segment was claimed on a joined connection that hasn't been answered yet
+        boolean pending = false;
+        try {
+            OutputStream out = socket.getOutputStream();
+            int index;
+            while ((index = claimSegment(!answered)) != -1) {
+                pending = !answered;
+                long start = (long) index * SEGMENT_SIZE;
+                String range = "bytes=" + start + "-" + (start + segmentLength(index) - 1);
+                out.write(PeerRequest.segment(code, answered ? null : transferId, range).encode());
+                out.flush();
+                PeerHeader header = PeerHeader.read(in);
+                if (!answered) {
+                    answered = true;
+                    pending = false;
+                    if (joinAnswered(index, header)) {
+                        return;
+                    }
+                }
+                byte[] segment = fetch(in, header, index);
+                segmentFetched(index, segment);
+            }
+            if (control) {
+                // The transfer ends when its last connection closes; keep it open until the
+                // download is over so late streams can still join it, without holding a thread
+                held = holdControl(socket);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            if (!held) {
+                closeQuietly(socket);
+            }
+            synchronized (this) {
+                if (pending) {
+                    pendingJoins--;
+                }
+                liveStreams--;
+                notifyAll();
+            }
+        }
+    }
+
+    // Called with the first answer on a joined connection. Returns true if the share server
+    // refused it for being busy, in which case its segment goes back to the other streams.
+    private synchronized boolean joinAnswered(int index, PeerHeader header) {
+        pendingJoins--;
+        notifyAll();
+        if (header.status != 503) {
+            return false;
+        }
+        System.err.println("Share server refused another download stream: " + header.error);
+        returned.push(index);
+        streams--;
+        refused = true;
+        return true;
+    }
+
+    private synchronized boolean holdControl(Socket socket) {
+        if (failure != null) {
+            return false;
+        }
+        heldControl = socket;
+        return true;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing more is read from it
+        }
+    }
+
+    private byte[] fetch(InputStream in, PeerHeader header, int index) throws IOException {
+        if (header.isError()) {
+            throw new IOException("Peer refused segment " + index + ": " + header.status + " " + header.error);
+        }
+        int length = segmentLength(index);
+        if (header.payloadLength != length) {
+            throw new IOException("Peer sent the wrong length for segment " + index);
+        }
+        byte[] segment = takeBuffer();
+        int read = 0;
+        while (read < length) {
+            int n = in.read(segment, read, length - read);
+            if (n == -1) {
+                throw new EOFException("Peer closed in the middle of segment " + index);
+            }
+            read += n;
+        }
+        return segment;
+    }
+
+    // Next segment for a stream, waiting while too many are buffered; -1 when none are left.
+    // While a joined stream hasn't been answered yet its segment may still come back, so the
+    // other streams wait for that before they finish. join is true for a joined stream's first
+    // segment.
+    private synchronized int claimSegment(boolean join) throws IOException {
+        while (failure == null) {
+            if (!returned.isEmpty()) {
+                pendingJoins += join ? 1 : 0;
+                return returned.pop();
+            }
+            if (nextToClaim < segmentCount) {
+                if (nextToClaim - nextToWrite < finished.length) {
+                    pendingJoins += join ? 1 : 0;
+                    return nextToClaim++;
+                }
+            } else if (pendingJoins == 0) {
+                return -1;
+            }
+            waitInterruptibly();
+        }
+        return -1;
+    }
+
+    private synchronized byte[] takeBuffer() {
+        byte[] buffer = freeBuffers.poll();
+        return buffer != null ? buffer : new byte[SEGMENT_SIZE];
+    }
+
+    private synchronized void segmentFetched(int index, byte[] segment) {
+        finished[index % finished.length] = segment;
+        notifyAll();
+    }
+
+    private synchronized byte[] awaitSegment(int index) throws IOException {
+        while (finished[index % finished.length] == null) {
+            if (failure != null) {
+                throw failure;
+            }
+            if (liveStreams == 0) {
+                throw new IOException("Every download stream has closed");
+            }
+            waitInterruptibly();
+        }
+        return finished[index % finished.length];
+    }
+
+    private synchronized void segmentWritten(byte[] segment) {
+        finished[nextToWrite % finished.length] = null;
+        nextToWrite++;
+        freeBuffers.push(segment);
+        notifyAll();
+    }
+
+    private synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        notifyAll();
+    }
+
+    // Makes the streams stop at their next segment and closes them once they have, then ends
+    // the transfer by closing the control connection
+    private synchronized void stop() {
+        if (failure == null) {
+            failure = new IOException("Download finished");
+        }
+        notifyAll();
+        freeBuffers.clear();
+        if (heldControl != null) {
+            closeQuietly(heldControl);
+            heldControl = null;
+        }
+    }
+
+    private void waitInterruptibly() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading", e);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package p2p.service;
+
+/**
+ * One shared file and the limits on how it may be downloaded.
+ *
+ * A share can be downloaded by several clients at once, up to maxConcurrent at a time. It can
+ * also be limited to a total number of downloads and/or an expiry time, after which the
+ * ShareRegistry retires it. A retired share accepts no new downloads; its file is reclaimed
+ * once the downloads still running have finished.
+ *
+ * State changes are synchronized on the share itself, so shares never contend with each
+ * other.
+ */
+public class Share {
+    private final int code;
+    private final String filePath;
+    private final String contentType; // as uploaded, null if unknown
+    private final String hash; // hex SHA-256 of the content, null if unknown
+    private final int maxConcurrent;
+    private final int maxDownloads; // 0 means unlimited
+    private final long expiresAt; // System.currentTimeMillis() deadline, 0 means never
+    private int active;
+    private int downloads;
+    private boolean retired;
+
+    public Share(int code, String filePath, String contentType, String hash, int maxConcurrent, int maxDownloads,
+            long expiresAt) {
+        this.code = code;
+        this.filePath = filePath;
+        this.contentType = contentType;
+        this.hash = hash;
+        this.maxConcurrent = maxConcurrent;
+        this.maxDownloads = maxDownloads;
+        this.expiresAt = expiresAt;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public synchronized int getDownloads() {
+        return downloads;
+    }
+
+    /**
+     * Picks up the download count of a share restored after a restart.
+     */
+    synchronized void restoreDownloads(int downloads) {
+        this.downloads = downloads;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt != 0 && now >= expiresAt;
+    }
+
+    /**
+     * True once every allowed download has been started.
+     */
+    public synchronized boolean isExhausted() {
+        return maxDownloads != 0 && downloads >= maxDownloads;
+    }
+
+    /**
+     * Claims a concurrent download slot and counts the download. Returns false if the share is
+     * already serving maxConcurrent clients, has no downloads left or has been retired.
+     */
+    synchronized boolean tryStartDownload() {
+        if (retired || active >= maxConcurrent || (maxDownloads != 0 && downloads >= maxDownloads)) {
+            return false;
+        }
+        active++;
+        downloads++;
+        return true;
+    }
+
+    /**
+     * Frees a download slot. Returns true if this was the last download of a retired share,
+     * meaning its file can now be reclaimed.
+     */
+    synchronized boolean finishDownload() {
+        active--;
+        return retired && active == 0;
+    }
+
+    /**
+     * Stops the share from starting new downloads. Returns true if nothing is downloading it,
+     * meaning its file can be reclaimed right away.
+     */
+    synchronized boolean retire() {
+        retired = true;
+        return active == 0;
+    }
+}
@@ -0,0 +1,31 @@
+package p2p.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The bytes behind a share, as FileSenderHandler sees them.
+ *
+ * A share is either a plain file in the upload directory or a manifest of chunks in the
+ * ContentStore. Both are read by position, so ranges can be served from any offset, and both
+ * hand their bytes to the socket with transferTo where the platform allows it.
+ */
+interface ShareContent extends Closeable {
+
+    long size() throws IOException;
+
+    long lastModified();
+
+    /**
+     * Sends up to count bytes starting at position. Like FileChannel.transferTo it may send
+     * fewer bytes than asked for; it returns 0 when it can't make progress.
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    /**
+     * Reads into dst starting at position. Returns -1 at the end of the content.
+     */
+    int read(ByteBuffer dst, long position) throws IOException;
+}
@@ -0,0 +1,258 @@
+package p2p.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record of the live shares, so invite codes survive a restart.
+ *
+ * Every share added, every download of a share with a download limit and every share retired
+ * appends one small binary record: its length, a CRC-32 of its body, then the body. Loading
+ * reads the file front to back once and keeps the last state of each code; a record that is
+ * cut short or fails its checksum (the process died while writing it) ends the replay there.
+ * Loading then rewrites the file with one record per live share, and the journal is rewritten
+ * the same way whenever it holds more than twice as many records as there are live shares, so
+ * it never grows much beyond the shares it describes.
+ *
+ * Records are written to the file as they happen but not forced to the disk, so a crash of the
+ * process loses nothing; only losing power can cost the last few records.
+ */
+public class ShareJournal {
+    private static final int MAGIC = 0x504c4a31; // "PLJ1"
+    private static final byte ADDED = 1;
+    private static final byte DOWNLOADED = 2;
+    private static final byte REMOVED = 3;
+    // Largest record body; paths and content types are far shorter
+    private static final int MAX_RECORD = 64 * 1024;
+    // Don't bother compacting a journal smaller than this many records
+    private static final int COMPACT_MIN = 4096;
+
+    /**
+     * A live share as recorded: everything needed to serve it again under the same code.
+     */
+    public record Entry(int code, String path, String contentType, String hash, int maxDownloads, long expiresAt,
+            long size, int downloads) {
+    }
+
+    private final File file;
+    // Guarded by this: live shares by code, the open journal and how many records it holds
+    private final Map<Integer, Entry> live = new HashMap<>();
+    private FileChannel channel;
+    private int records;
+
+    public ShareJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Replays the journal and opens it for appending. Returns the shares that were live when it
+     * was last written.
+     */
+    public synchronized Collection<Entry> load() throws IOException {
+        live.clear();
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a share journal");
+            }
+            valid = 4;
+            CRC32 crc = new CRC32();
+            byte[] body = new byte[MAX_RECORD];
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD) {
+                    break;
+                }
+                in.readFully(body, 0, length);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(body, 0, length)));
+                valid += 8 + length;
+            }
+        } catch (FileNotFoundException e) {
+            // First start: nothing to restore
+        } catch (EOFException e) {
+            // Ends at a record boundary, or in the middle of a record that was never finished
+        }
+        if (valid < file.length()) {
+            System.err.println("Share journal: ignored " + (file.length() - valid) + " damaged bytes at the end");
+        }
+        List<Entry> entries = new ArrayList<>(live.values());
+        compact();
+        return entries;
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        int code = in.readInt();
+        switch (type) {
+            case ADDED:
+                long expiresAt = in.readLong();
+                int maxDownloads = in.readInt();
+                int downloads = in.readInt();
+                long size = in.readLong();
+                String path = in.readUTF();
+                String contentType = in.readUTF();
+                String hash = in.readUTF();
+                live.put(code, new Entry(code, path, contentType.isEmpty() ? null : contentType,
+                        hash.isEmpty() ? null : hash, maxDownloads, expiresAt, size, downloads));
+                break;
+            case DOWNLOADED:
+                live.computeIfPresent(code, (c, entry) -> withDownloads(entry, entry.downloads() + 1));
+                break;
+            case REMOVED:
+                live.remove(code);
+                break;
+            default:
+                throw new IOException("Unknown share journal record " + type);
+        }
+    }
+
+    /**
+     * Records a new share.
+     */
+    public synchronized void added(Entry entry) {
+        live.put(entry.code(), entry);
+        append(body -> writeAdded(body, entry));
+    }
+
+    /**
+     * Records one more download of a share; only worth it for shares with a download limit.
+     */
+    public synchronized void downloaded(int code) {
+        if (live.computeIfPresent(code, (c, entry) -> withDownloads(entry, entry.downloads() + 1)) != null) {
+            append(body -> {
+                body.writeByte(DOWNLOADED);
+                body.writeInt(code);
+            });
+        }
+    }
+
+    /**
+     * Records that a share is gone. Must be written before its code can be handed out again.
+     */
+    public synchronized void removed(int code) {
+        if (live.remove(code) != null) {
+            append(body -> {
+                body.writeByte(REMOVED);
+                body.writeInt(code);
+            });
+        }
+    }
+
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Could not close the share journal: " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    private interface RecordBody {
+        void write(DataOutputStream body) throws IOException;
+    }
+
+    // Guarded by this. A journal that can't be written is reported, not fatal: sharing goes on
+    // and only the restart suffers.
+    private void append(RecordBody record) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            record.write(new DataOutputStream(bytes));
+            byte[] body = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            ByteBuffer buffer = ByteBuffer.allocate(8 + body.length);
+            buffer.putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (++records > COMPACT_MIN && records > 2 * live.size()) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write the share journal: " + e.getMessage());
+        }
+    }
+
+    // Guarded by this: rewrites the journal as one record per live share, swapping the new file
+    // in only once it is complete and on disk
+    private void compact() throws IOException {
+        File next = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(next);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024))) {
+            out.writeInt(MAGIC);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream body = new DataOutputStream(bytes);
+            CRC32 crc = new CRC32();
+            for (Entry entry : live.values()) {
+                bytes.reset();
+                writeAdded(body, entry);
+                crc.reset();
+                crc.update(bytes.toByteArray());
+                out.writeInt(bytes.size());
+                out.writeInt((int) crc.getValue());
+                bytes.writeTo(out);
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        close();
+        try {
+            Files.move(next.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            records = live.size();
+        } finally {
+            // Keeps appending to the old journal if the new one couldn't replace it
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+    }
+
+    private static void writeAdded(DataOutputStream body, Entry entry) throws IOException {
+        body.writeByte(ADDED);
+        body.writeInt(entry.code());
+        body.writeLong(entry.expiresAt());
+        body.writeInt(entry.maxDownloads());
+        body.writeInt(entry.downloads());
+        body.writeLong(entry.size());
+        body.writeUTF(entry.path());
+        body.writeUTF(entry.contentType() != null ? entry.contentType() : "");
+        body.writeUTF(entry.hash() != null ? entry.hash() : "");
+    }
+
+    private static Entry withDownloads(Entry entry, int downloads) {
+        return new Entry(entry.code(), entry.path(), entry.contentType(), entry.hash(), entry.maxDownloads(),
+                entry.expiresAt(), entry.size(), downloads);
+    }
+}
@@ -0,0 +1,136 @@
+package p2p.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
+import p2p.utils.TimerWheel;
+
+/**
+ * Thread-safe table of live shares, keyed by invite code.
+ *
+ * Lookups and registrations go through a ConcurrentHashMap, so HTTP workers, the share server
+ * and transfer threads never serialize on a single lock. Codes come from a CodeAllocator and go
+ * back to it when a share is retired. Shares with a TTL are put on a timer wheel that retires
+ * them when they expire; once a retired share has no downloads left, the reclaimer is called to
+ * free its file. With a journal, a retired share is recorded as gone before its code can be
+ * handed out again, so a restart never brings it back under a code that now means another file.
+ */
+public class ShareRegistry {
+    // One-second ticks; 512 slots cover about 8.5 minutes per revolution of the wheel
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SLOTS = 512;
+
+    private final ConcurrentHashMap<Integer, Share> shares = new ConcurrentHashMap<>();
+    private final CodeAllocator codes;
+    private final TimerWheel<Share> expiryWheel;
+    private final Consumer<Share> reclaimer;
+    private final ShareJournal journal; // null if shares aren't kept across restarts
+
+    public ShareRegistry(Consumer<Share> reclaimer) {
+        this(reclaimer, null);
+    }
+
+    public ShareRegistry(Consumer<Share> reclaimer, ShareJournal journal) {
+        this(reclaimer, journal, code -> true);
+    }
+
+    /**
+     * owned picks the codes this registry may hand out, those a cluster routes to this node.
+     */
+    public ShareRegistry(Consumer<Share> reclaimer, ShareJournal journal, IntPredicate owned) {
+        this.codes = new CodeAllocator(owned);
+        this.reclaimer = reclaimer;
+        this.journal = journal;
+        this.expiryWheel = new TimerWheel<>("share-expiry", TICK_MILLIS, WHEEL_SLOTS, this::expire);
+    }
+
+    /**
+     * Allocates a code and registers the share the factory builds for it.
+     *
+     * @throws IllegalStateException if every invite code is in use
+     */
+    public Share add(IntFunction<Share> factory) {
+        int code = codes.allocate();
+        if (code == -1) {
+            throw new IllegalStateException("All invite codes are in use");
+        }
+        Share share = factory.apply(code);
+        shares.put(code, share);
+        if (share.getExpiresAt() != 0) {
+            expiryWheel.schedule(share, share.getExpiresAt());
+        }
+        return share;
+    }
+
+    /**
+     * Registers a share restored after a restart under the code it had before. Returns false if
+     * that code is outside the code range or already taken.
+     */
+    public boolean restore(Share share) {
+        if (!codes.claim(share.getCode())) {
+            return false;
+        }
+        shares.put(share.getCode(), share);
+        if (share.getExpiresAt() != 0) {
+            expiryWheel.schedule(share, share.getExpiresAt());
+        }
+        return true;
+    }
+
+    /**
+     * Returns the live share for a code, or null if there is none. An expired share that the
+     * sweeper hasn't reached yet is retired here instead of being served.
+     */
+    public Share get(int code) {
+        Share share = shares.get(code);
+        if (share != null && share.isExpired(System.currentTimeMillis())) {
+            expire(share);
+            return null;
+        }
+        return share;
+    }
+
+    /**
+     * Removes a share and frees its code. Its file is reclaimed now, or when the last running
+     * download of it finishes.
+     */
+    public void retire(Share share) {
+        if (!shares.remove(share.getCode(), share)) {
+            // Already retired
+            return;
+        }
+        if (journal != null) {
+            journal.removed(share.getCode());
+        }
+        codes.release(share.getCode());
+        if (share.retire()) {
+            reclaimer.accept(share);
+        }
+    }
+
+    /**
+     * Must be called when a download started with Share.tryStartDownload ends.
+     */
+    public void downloadFinished(Share share) {
+        if (share.finishDownload()) {
+            reclaimer.accept(share);
+        }
+    }
+
+    public int size() {
+        return shares.size();
+    }
+
+    public void close() {
+        expiryWheel.stop();
+    }
+
+    private void expire(Share share) {
+        if (shares.get(share.getCode()) == share) {
+            System.out.println("Share " + share.getCode() + " expired");
+            retire(share);
+        }
+    }
+}
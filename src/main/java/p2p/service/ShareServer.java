@@ -0,0 +1,264 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import p2p.utils.Metrics;
+
+/**
+ * Single-port listener for every share.
+ *
+ * Instead of one ServerSocket per upload, all downloads connect to this one port and send the
+ * invite code in a handshake (see {@link PeerRequest}). One selector thread accepts connections
+ * and reads handshakes without blocking, so an idle share costs nothing but its map entry in
+ * FileSharer. Once the code is known, the connection is handed to FileSharer's transfer
+ * threads, which switch it to blocking mode, look the share up and send the file; the selector
+ * thread never waits on a client or a lock. A connection that hasn't sent its whole handshake within
+ * -Dpeerlink.share.handshakeTimeout seconds (default 10) is closed.
+ */
+public class ShareServer implements Runnable {
+    // A handshake is a few short lines; anything longer is not a PeerLink client
+    private static final int MAX_HANDSHAKE = 1024;
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = Long.getLong("peerlink.share.handshakeTimeout", 10) * 1000;
+
+    private static final Metrics.Counter HANDSHAKES_TIMED_OUT = Metrics.counter(
+            "peerlink_share_handshakes_timed_out_total",
+            "Share server connections closed for not finishing their handshake in time");
+
+    private final FileSharer fileSharer;
+    private final int port;
+    private final long handshakeNanos;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    // Connections still sending their handshake, oldest first. They all get the same time, so
+    // the first one is always the next to run out. Only touched by the selector thread.
+    private final ArrayDeque<SelectionKey> pending = new ArrayDeque<>();
+
+    public ShareServer(FileSharer fileSharer, int port) {
+        this(fileSharer, port, HANDSHAKE_TIMEOUT_MILLIS);
+    }
+
+    ShareServer(FileSharer fileSharer, int port, long handshakeMillis) {
+        this.fileSharer = fileSharer;
+        this.port = port;
+        this.handshakeNanos = handshakeMillis * 1_000_000;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        // Every registered key but the listening one is a connection still sending its handshake
+        Metrics.gauge("peerlink_share_handshakes_pending", "Share server connections waiting for a handshake",
+                () -> selector.isOpen() ? Math.max(0, selector.keys().size() - 1) : 0);
+        Metrics.gauge("peerlink_share_listeners_open", "Listening sockets of the share server",
+                () -> serverChannel != null && serverChannel.isOpen() ? 1 : 0);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        Thread thread = new Thread(this, "share-server");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Share server listening on port " + port);
+    }
+
+    public void stop() {
+        try {
+            selector.close();
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error stopping share server: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void run() {
+        // Connections whose handshake is complete, waiting to leave the selector
+        List<Handoff> handoffs = new ArrayList<>();
+        try {
+            while (selector.isOpen()) {
+                selector.select(untilNextDeadline());
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        readHandshake(key, handoffs);
+                    }
+                }
+                if (!handoffs.isEmpty()) {
+                    // A channel can only go back to blocking mode once its cancelled key has
+                    // been flushed out of the selector, which the next select does
+                    selector.selectNow();
+                    for (Handoff handoff : handoffs) {
+                        try {
+                            fileSharer.execute(() -> dispatch(handoff));
+                        } catch (RejectedExecutionException e) {
+                            // The server is stopping
+                            closeQuietly(handoff.client);
+                        }
+                    }
+                    handoffs.clear();
+                }
+                closeStale();
+            }
+        } catch (ClosedSelectorException e) {
+            // stop() was called
+        } catch (IOException e) {
+            System.err.println("Share server stopped: " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = serverChannel.accept();
+        if (client == null) {
+            return;
+        }
+        client.configureBlocking(false);
+        Handshake handshake = new Handshake(System.nanoTime() + handshakeNanos);
+        pending.add(client.register(selector, SelectionKey.OP_READ, handshake));
+    }
+
+    // How long select may block: until the oldest handshake runs out, or 0 (no limit) if none
+    // is pending. Keys of connections that have already left are dropped on the way.
+    private long untilNextDeadline() {
+        while (!pending.isEmpty() && !pending.peek().isValid()) {
+            pending.poll();
+        }
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        long nanos = ((Handshake) pending.peek().attachment()).deadline - System.nanoTime();
+        return Math.max(1, (nanos + 999_999) / 1_000_000);
+    }
+
+    // Closes the connections that are still sending their handshake past their deadline
+    private void closeStale() {
+        long now = System.nanoTime();
+        while (!pending.isEmpty()) {
+            SelectionKey key = pending.peek();
+            if (key.isValid()) {
+                if (((Handshake) key.attachment()).deadline - now > 0) {
+                    return;
+                }
+                close(key);
+                HANDSHAKES_TIMED_OUT.inc();
+            }
+            pending.poll();
+        }
+    }
+
+    private void readHandshake(SelectionKey key, List<Handoff> handoffs) {
+        SocketChannel client = (SocketChannel) key.channel();
+        ByteBuffer buffer = ((Handshake) key.attachment()).buffer;
+        try {
+            if (client.read(buffer) == -1) {
+                close(key);
+                return;
+            }
+            int end = endOfHandshake(buffer);
+            if (end == -1) {
+                if (!buffer.hasRemaining()) {
+                    close(key);
+                }
+                return;
+            }
+            String block = new String(buffer.array(), 0, end, StandardCharsets.UTF_8);
+            key.cancel();
+            handoffs.add(new Handoff(client, PeerRequest.parse(block)));
+        } catch (IOException e) {
+            close(key);
+        }
+    }
+
+    // Runs on a transfer thread
+    private void dispatch(Handoff handoff) {
+        try {
+            handoff.client.configureBlocking(true);
+            if (handoff.request.joinsTransfer()) {
+                // Another connection for a segmented download that is already running
+                fileSharer.joinTransfer(handoff.client, handoff.request);
+                return;
+            }
+            int code = handoff.request.code;
+            Share share = code == -1 ? null : fileSharer.getShare(code);
+            if (share == null) {
+                fileSharer.sendError(handoff.client, 404, "Unknown invite code");
+                return;
+            }
+            System.out.println("Client connected: " + handoff.client.socket().getInetAddress()
+                    + " for share " + code + (handoff.request.range != null ? " (" + handoff.request.range + ")" : ""));
+            fileSharer.sendFile(handoff.client, share, handoff.request);
+        } catch (IOException e) {
+            System.err.println("Error handing off share connection: " + e.getMessage());
+            closeQuietly(handoff.client);
+        } catch (RejectedExecutionException e) {
+            // The server stopped before the transfer could start
+            closeQuietly(handoff.client);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException ignored) {
+            // Nothing left to do with this connection
+        }
+    }
+
+    // The handshake ends with a blank line; returns where it starts, or -1 if not read yet
+    private static int endOfHandshake(ByteBuffer buffer) {
+        for (int i = 1; i < buffer.position(); i++) {
+            if (buffer.get(i) == '\n' && buffer.get(i - 1) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // Closing a broken connection
+        }
+    }
+
+    // What the selector keeps for a connection until its handshake has arrived
+    private static class Handshake {
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_HANDSHAKE);
+        final long deadline;
+
+        Handshake(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    private static class Handoff {
+        final SocketChannel client;
+        final PeerRequest request;
+
+        Handoff(SocketChannel client, PeerRequest request) {
+            this.client = client;
+            this.request = request;
+        }
+    }
+}
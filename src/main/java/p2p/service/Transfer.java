@@ -0,0 +1,41 @@
+package p2p.service;
+
+/**
+ * One segmented download of a share, served over several connections at once.
+ *
+ * The whole transfer counts as a single download: the share's slot is taken when the first
+ * connection asks for a transfer and handed back when its last connection closes. The first
+ * connection stays open for the whole download, so the transfer can't end while the
+ * downloader is still opening more connections.
+ */
+class Transfer {
+    // Connections one downloader may open for the same transfer
+    static final int MAX_CONNECTIONS = 16;
+
+    final long id;
+    final Share share;
+    private int connections = 1;
+
+    Transfer(long id, Share share) {
+        this.id = id;
+        this.share = share;
+    }
+
+    /**
+     * Adds a connection. Returns false if the transfer has ended or has MAX_CONNECTIONS open.
+     */
+    synchronized boolean tryJoin() {
+        if (connections == 0 || connections >= MAX_CONNECTIONS) {
+            return false;
+        }
+        connections++;
+        return true;
+    }
+
+    /**
+     * Removes a connection. Returns true if it was the last one, which ends the transfer.
+     */
+    synchronized boolean leave() {
+        return --connections == 0;
+    }
+}
@@ -0,0 +1,188 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import p2p.utils.ByteRange;
+
+/**
+ * One chunked upload in progress.
+ *
+ * The target file is preallocated to its final size when the session is created. Chunks may
+ * then arrive in any order and over several connections at once: each one is written with
+ * positional writes at its own offset, so writers never have to coordinate, and the session
+ * only keeps track of which byte ranges have arrived. The file is only closed once no chunk is
+ * being written to it.
+ */
+public class UploadSession {
+    private final String id;
+    private final String filename;
+    private final String contentType;
+    private final long size;
+    private final File file;
+    private final FileChannel channel;
+    // Disk space held for the file until it is shared or the session is aborted
+    private final DiskQuota.Reservation reservation;
+    // Received byte ranges, merged: start -> end (exclusive)
+    private final TreeMap<Long, Long> received = new TreeMap<>();
+    private volatile long lastActivity = System.currentTimeMillis();
+    // Guarded by this: chunks being written right now, and whether the file has been closed
+    private int writers;
+    private boolean closed;
+
+    public UploadSession(String id, String filename, String contentType, long size, File file,
+            DiskQuota.Reservation reservation) throws IOException {
+        this.id = id;
+        this.reservation = reservation;
+        this.filename = filename;
+        this.contentType = contentType;
+        this.size = size;
+        this.file = file;
+        // Reserve the whole file up front so chunks can land anywhere in it
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public DiskQuota.Reservation getReservation() {
+        return reservation;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * True while a chunk is being written; such a session isn't idle however long it takes.
+     */
+    public synchronized boolean isWriting() {
+        return writers > 0;
+    }
+
+    /**
+     * Writes a chunk read from in at the given offset. Chunks may overlap chunks that were
+     * already written (a retried request); the same bytes simply land in the same place.
+     * Returns the number of bytes written.
+     *
+     * @throws IllegalStateException if the session has already been finished or aborted
+     */
+    public long writeChunk(long offset, InputStream in) throws IOException {
+        if (offset < 0 || offset > size) {
+            throw new IllegalArgumentException("Offset " + offset + " is outside the file (size " + size + ")");
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The upload session has ended");
+            }
+            writers++;
+        }
+        lastActivity = System.currentTimeMillis();
+        byte[] bytes = new byte[64 * 1024];
+        long position = offset;
+        try {
+            int read;
+            while ((read = in.read(bytes)) != -1) {
+                if (position + read > size) {
+                    throw new IllegalArgumentException("Chunk at offset " + offset + " runs past the end of the file");
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+                while (buffer.hasRemaining()) {
+                    // Positional write: safe to run concurrently with other chunks
+                    position += channel.write(buffer, position);
+                }
+            }
+        } finally {
+            // Record whatever made it to disk, even if the chunk was cut short
+            if (position > offset) {
+                markReceived(offset, position);
+            }
+            lastActivity = System.currentTimeMillis();
+            synchronized (this) {
+                writers--;
+            }
+        }
+        return position - offset;
+    }
+
+    private synchronized void markReceived(long start, long end) {
+        // Merge with any ranges this one touches or overlaps
+        Map.Entry<Long, Long> before = received.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = received.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            received.remove(next.getKey());
+        }
+        received.put(start, end);
+    }
+
+    /**
+     * The byte ranges received so far, merged and in order.
+     */
+    public synchronized List<ByteRange> getReceived() {
+        List<ByteRange> ranges = new ArrayList<>();
+        for (Map.Entry<Long, Long> range : received.entrySet()) {
+            ranges.add(new ByteRange(range.getKey(), range.getValue() - 1));
+        }
+        return ranges;
+    }
+
+    public synchronized boolean isComplete() {
+        if (size == 0) {
+            return true;
+        }
+        Map.Entry<Long, Long> first = received.firstEntry();
+        return first != null && first.getKey() == 0 && first.getValue() == size;
+    }
+
+    /**
+     * Closes the file, after which no more chunks are accepted. Returns false, and leaves the
+     * session open, while a chunk is still being written.
+     */
+    public boolean close() throws IOException {
+        synchronized (this) {
+            if (writers > 0) {
+                return false;
+            }
+            if (closed) {
+                return true;
+            }
+            closed = true;
+        }
+        channel.close();
+        return true;
+    }
+}
@@ -0,0 +1,138 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import p2p.utils.TimerWheel;
+import p2p.utils.UploadUtils;
+
+/**
+ * Keeps track of the chunked uploads that are still in progress.
+ *
+ * A session that receives no chunk for idleMillis is abandoned: a timer wheel checks each
+ * session once its idle time could have passed and aborts it, which deletes its file and gives
+ * back its reserved space. A session still busy writing a chunk, or written to since, is
+ * checked again later.
+ */
+public class UploadSessions {
+    private static final int WHEEL_SLOTS = 512;
+
+    private final ConcurrentHashMap<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final String uploadDir;
+    private final DiskQuota quota;
+    private final long idleMillis;
+    private final TimerWheel<UploadSession> idleWheel;
+
+    public UploadSessions(String uploadDir, DiskQuota quota, long idleMillis) {
+        this.uploadDir = uploadDir;
+        this.quota = quota;
+        this.idleMillis = idleMillis;
+        // Ticks of about a tenth of the idle time, at most a second
+        long tickMillis = Math.max(10, Math.min(1000, idleMillis / 10));
+        this.idleWheel = new TimerWheel<>("upload-idle", tickMillis, WHEEL_SLOTS, this::checkIdle);
+    }
+
+    /**
+     * Starts a session and preallocates its file in the upload directory. The whole size is
+     * reserved first, so a session that can't be stored is refused before any chunk is sent.
+     *
+     * @throws QuotaExceededException if the file is too large or there is no room for it
+     */
+    public UploadSession create(String filename, String contentType, long size) throws IOException {
+        if (quota.getMaxUpload() > 0 && size > quota.getMaxUpload()) {
+            throw new QuotaExceededException(413, "Upload is larger than the limit of " + quota.getMaxUpload() + " bytes");
+        }
+        DiskQuota.Reservation reservation = quota.reserve(size);
+        String id = UUID.randomUUID().toString();
+        // Same naming as single-request uploads, so the file looks the same once it's shared
+        File file = new File(uploadDir, id + "_" + UploadUtils.storedName(filename));
+        UploadSession session;
+        try {
+            session = new UploadSession(id, filename, contentType, size, file, reservation);
+        } catch (IOException | RuntimeException e) {
+            reservation.cancel();
+            throw e;
+        }
+        sessions.put(id, session);
+        idleWheel.schedule(session, session.getLastActivity() + idleMillis);
+        return session;
+    }
+
+    public UploadSession get(String id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * Ends a session that is complete. Returns null (and keeps the session) if some bytes are
+     * still missing, so the client can send them and try again.
+     *
+     * @throws IllegalStateException if a chunk is still being written
+     */
+    public UploadSession finish(String id) throws IOException {
+        UploadSession session = sessions.get(id);
+        if (session == null || !session.isComplete()) {
+            return null;
+        }
+        // Closing first stops new chunks; whoever then removes the session owns its file
+        if (!session.close()) {
+            throw new IllegalStateException("Chunks are still being written");
+        }
+        return sessions.remove(id, session) ? session : null;
+    }
+
+    /**
+     * Drops a session and deletes whatever was uploaded so far.
+     *
+     * @throws IllegalStateException if a chunk is still being written
+     */
+    public boolean abort(String id) throws IOException {
+        UploadSession session = sessions.get(id);
+        if (session == null) {
+            return false;
+        }
+        if (!session.close()) {
+            throw new IllegalStateException("Chunks are still being written");
+        }
+        if (!sessions.remove(id, session)) {
+            return false;
+        }
+        session.getFile().delete();
+        session.getReservation().cancel();
+        return true;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public void close() {
+        idleWheel.stop();
+    }
+
+    private void checkIdle(UploadSession session) {
+        if (sessions.get(session.getId()) != session) {
+            // Finished or aborted in the meantime
+            return;
+        }
+        long idleSince = session.getLastActivity();
+        if (!session.isWriting() && System.currentTimeMillis() - idleSince >= idleMillis) {
+            try {
+                if (abort(session.getId())) {
+                    System.out.println("Upload session " + session.getId() + " abandoned, deleted "
+                            + session.getFile().getName());
+                }
+                return;
+            } catch (IllegalStateException e) {
+                // A chunk started just now; look again later
+            } catch (IOException e) {
+                System.err.println("Could not abort upload session " + session.getId() + ": " + e.getMessage());
+                return;
+            }
+        }
+        long now = System.currentTimeMillis();
+        long deadline = idleSince + idleMillis;
+        idleWheel.schedule(session, deadline > now ? deadline : now + idleMillis);
+    }
+}
@@ -0,0 +1,41 @@
+package p2p.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small pool of large direct buffers for transfers that can't use zero-copy.
+ *
+ * Direct buffers are expensive to allocate and are only freed by the GC, so they are kept
+ * and reused rather than created per transfer. The pool never holds more than
+ * MAX_POOLED idle buffers; extra buffers handed back are simply dropped.
+ */
+public class BufferPool {
+    public static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_POOLED = 16;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private BufferPool() {
+    }
+
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = POOL.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        POOLED.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOL.offer(buffer);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+}
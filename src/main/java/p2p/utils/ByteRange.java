@@ -0,0 +1,116 @@
+package p2p.utils;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An inclusive byte range of a file, as used by HTTP Range requests.
+ */
+public class ByteRange {
+    // More ranges than this in one request is not a resuming browser, just ignore the header
+    private static final int MAX_RANGES = 16;
+
+    public final long start;
+    public final long end; // inclusive
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Parses a Range header value such as "bytes=0-99,200-,-50" against a file of the given
+     * size. Returns null when the header is malformed (the whole file should be sent) and an
+     * empty list when no range overlaps the file (416 Range Not Satisfiable).
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash == -1) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start;
+                long end;
+                if (first.isEmpty()) {
+                    // "-500" means the last 500 bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                    if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+                        return null;
+                    }
+                }
+                if (start < size && start <= end) {
+                    ranges.add(new ByteRange(start, end));
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Formats resolved ranges the way parse reads them back, e.g. "bytes=0-99,200-999".
+     */
+    public static String format(List<ByteRange> ranges) {
+        StringBuilder builder = new StringBuilder("bytes=");
+        for (int i = 0; i < ranges.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(ranges.get(i).start).append('-').append(ranges.get(i).end);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Evaluates an If-Range header: the range may only be applied if the validator still
+     * matches the file. A strong ETag must match exactly; a date must equal the file's
+     * modification time (to the second, as HTTP dates have no finer resolution).
+     */
+    public static boolean ifRangeMatches(String ifRange, String etag, long lastModifiedMillis) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        if (ifRange.startsWith("W/")) {
+            // Weak validators can't be used for ranges
+            return false;
+        }
+        try {
+            long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return date == lastModifiedMillis / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+}
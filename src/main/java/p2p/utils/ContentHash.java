@@ -0,0 +1,73 @@
+package p2p.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HexFormat;
+
+/**
+ * SHA-256 of a share's content, computed while it streams past.
+ *
+ * Uploads are hashed as they are written and downloads as they are relayed, so integrity
+ * checking never costs a second read of the file. The JDK's SHA-256 uses the CPU's SHA
+ * instructions where there are any.
+ */
+public final class ContentHash {
+
+    private ContentHash() {
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to have SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Lowercase hex of a finished digest, as stored with shares and returned by /upload
+    public static String hex(byte[] digest) {
+        return HexFormat.of().formatHex(digest);
+    }
+
+    // Value of an RFC 9530 Repr-Digest header for a hex SHA-256
+    public static String reprDigest(String hex) {
+        return "sha-256=:" + Base64.getEncoder().encodeToString(HexFormat.of().parseHex(hex)) + ":";
+    }
+
+    /**
+     * Passes exactly length bytes to out while hashing them, and checks the hash before the
+     * last of them is written. If the content doesn't match, that final write throws instead,
+     * so the receiver gets a transfer that is visibly cut short rather than a complete-looking
+     * corrupt file.
+     */
+    public static OutputStream verifying(OutputStream out, String expectedHex, long length) {
+        byte[] expected = HexFormat.of().parseHex(expectedHex);
+        MessageDigest digest = newDigest();
+        return new FilterOutputStream(out) {
+            private long written;
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (written + len > length) {
+                    throw new IOException("Received more than the " + length + " bytes announced");
+                }
+                digest.update(b, off, len);
+                if (written + len == length && !MessageDigest.isEqual(digest.digest(), expected)) {
+                    throw new IOException("Content does not match its SHA-256 " + expectedHex);
+                }
+                out.write(b, off, len);
+                written += len;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+        };
+    }
+}
@@ -0,0 +1,262 @@
+package p2p.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide counters, gauges and latency histograms, rendered in the Prometheus text format
+ * for the /metrics endpoint.
+ *
+ * Everything on the hot path is a LongAdder: concurrent updates land in separate cells instead
+ * of fighting over one memory location, so recording costs a few nanoseconds even with
+ * hundreds of transfers in flight. Values are only summed up when /metrics is scraped.
+ *
+ * Metrics are registered once, usually from static fields, and looked up by name plus labels;
+ * registering the same series again returns the existing one.
+ */
+public final class Metrics {
+    // name -> family, sorted so the output is stable between scrapes
+    private static final Map<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * A counter such as peerlink_bytes_total. labels are alternating names and values.
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").series.computeIfAbsent(labels(labels), key -> new Counter());
+    }
+
+    /**
+     * A value that goes up and down, such as the number of uploads in flight.
+     */
+    public static Gauge gauge(String name, String help, String... labels) {
+        return (Gauge) family(name, help, "gauge").series.computeIfAbsent(labels(labels), key -> new Gauge());
+    }
+
+    /**
+     * A gauge read from elsewhere when scraped, such as an executor's queue length. Registering
+     * the same series again replaces the supplier.
+     */
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "gauge").series.put(labels(labels), new SuppliedGauge(value));
+    }
+
+    /**
+     * A latency histogram, recorded in nanoseconds and exported in seconds.
+     */
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, "histogram").series.computeIfAbsent(labels(labels), key -> new Histogram());
+    }
+
+    /**
+     * Wraps a stream so every byte written through it is added to a counter as it goes.
+     */
+    public static OutputStream counting(OutputStream out, Counter bytes) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytes.add(len);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytes.add(1);
+            }
+        };
+    }
+
+    /**
+     * Everything registered, in the Prometheus text exposition format.
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family> entry : FAMILIES.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Series> series : family.series.entrySet()) {
+                series.getValue().render(out, name, series.getKey());
+            }
+        }
+        return out.toString();
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = FAMILIES.computeIfAbsent(name, key -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    // {a="1",b="2"} or "" without labels
+    private static String labels(String... labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"").append(labels[i + 1].replace("\"", "\\\"")).append('"');
+        }
+        return text.append('}').toString();
+    }
+
+    private static final class Family {
+        final String help;
+        final String type;
+        // labels -> series
+        final Map<String, Series> series = new ConcurrentHashMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private interface Series {
+        void render(StringBuilder out, String name, String labels);
+    }
+
+    public static final class Counter implements Series {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void render(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ').append(value.sum()).append('\n');
+        }
+    }
+
+    public static final class Gauge implements Series {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void dec() {
+            value.decrement();
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void render(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ').append(value.sum()).append('\n');
+        }
+    }
+
+    private static final class SuppliedGauge implements Series {
+        private final LongSupplier value;
+
+        SuppliedGauge(LongSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public void render(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ').append(value.getAsLong()).append('\n');
+        }
+    }
+
+    /**
+     * Log-linear histogram in the spirit of HdrHistogram: every power of two between 64
+     * microseconds and about 70 minutes is split into two buckets, so any recorded value is
+     * within 50% of its bucket bound whatever its magnitude. The bucket is found with a couple
+     * of bit operations and recording is a single LongAdder increment.
+     */
+    public static final class Histogram implements Series {
+        // Values up to 2^6 us share the first bucket; the last bucket ends at 2^32 us
+        private static final int MIN_EXPONENT = 6;
+        private static final int MAX_EXPONENT = 32;
+        private static final int BUCKETS = (MAX_EXPONENT - MIN_EXPONENT) * 2 + 1;
+
+        // The last cell counts values above the largest bound
+        private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            counts[bucket(Math.max(0, nanos) / 1000)].increment();
+            sumNanos.add(Math.max(0, nanos));
+        }
+
+        // Records the time since startNanos (a System.nanoTime() value)
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        static int bucket(long micros) {
+            if (micros <= 1L << MIN_EXPONENT) {
+                return 0;
+            }
+            // Bounds are 1.5 * 2^e and 2^(e+1); a value exactly on a bound belongs below it
+            long value = micros - 1;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent >= MAX_EXPONENT) {
+                return BUCKETS;
+            }
+            int half = (int) ((value >>> (exponent - 1)) & 1);
+            return (exponent - MIN_EXPONENT) * 2 + half + 1;
+        }
+
+        // Upper bound of a bucket, in microseconds
+        static long upperBound(int bucket) {
+            if (bucket == 0) {
+                return 1L << MIN_EXPONENT;
+            }
+            int exponent = (bucket - 1) / 2 + MIN_EXPONENT;
+            return (bucket - 1) % 2 == 0 ? (3L << exponent) / 2 : 1L << (exponent + 1);
+        }
+
+        @Override
+        public void render(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += counts[i].sum();
+                out.append(name).append("_bucket").append(prefix).append("le=\"")
+                        .append(String.format(Locale.ROOT, "%.6f", upperBound(i) / 1_000_000.0))
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += counts[BUCKETS].sum();
+            out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum").append(labels).append(' ')
+                    .append(String.format(Locale.ROOT, "%.6f", sumNanos.sum() / 1_000_000_000.0)).append('\n');
+            out.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streaming multipart/form-data parser.
+ *
+ * The request body is read through one fixed-size window, so memory use per upload stays
+ * constant no matter how large the file is. Part bodies are handed to a {@link PartTarget}
+ * as they are scanned instead of being collected into a byte array first.
+ */
+public class MultipartParser {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_LINE = 8 * 1024;
+
+    private final InputStream input;
+    // "\r\n--" + boundary: every part body ends right before this sequence
+    private final byte[] delimiter;
+    // Horspool shift for every byte value, computed once per boundary
+    private final int[] delimiterSkips;
+    private final byte[] buffer;
+    private int head; // index of the first unread byte in buffer
+    private int tail; // index one past the last valid byte in buffer
+    private boolean eof;
+    private boolean finished; // set once the closing "--boundary--" has been read
+
+    // Headers of the part the parser is currently positioned on
+    private String partFilename;
+    private String partContentType;
+
+    public MultipartParser(InputStream input, String boundary) {
+        this.input = input;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.delimiterSkips = skipTable(delimiter);
+        this.buffer = new byte[Math.max(BUFFER_SIZE, delimiter.length * 4)];
+        // The very first boundary is not preceded by CRLF. Seeding the window with one lets the
+        // preamble be skipped by the same scan that finds the end of every other part.
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        tail = 2;
+    }
+
+    /**
+     * Receives the body of a file part. The returned stream is written to while the request is
+     * still being read and is closed by the parser once the part ends.
+     */
+    public interface PartTarget {
+        OutputStream open(String filename, String contentType) throws IOException;
+    }
+
+    /**
+     * Streams the first part that carries a filename into the target and consumes the rest of
+     * the request body. Returns null if the request contains no file part.
+     */
+    public ParseResult parse(PartTarget target) throws IOException {
+        List<ParseResult> parts = parse(target, 1);
+        return parts.isEmpty() ? null : parts.get(0);
+    }
+
+    /**
+     * Streams every part that carries a filename into the target, one after the other, in the
+     * order they arrive. Returns an empty list if the request contains no file part.
+     */
+    public List<ParseResult> parseAll(PartTarget target) throws IOException {
+        return parse(target, Integer.MAX_VALUE);
+    }
+
+    private List<ParseResult> parse(PartTarget target, int maxParts) throws IOException {
+        List<ParseResult> parts = new ArrayList<>();
+        // Skip the preamble up to the first boundary
+        copyBody(null);
+        while (parts.size() < maxParts && nextPart()) {
+            if (partFilename == null) {
+                // Plain form field, nothing to keep
+                copyBody(null);
+                continue;
+            }
+            long size;
+            try (OutputStream out = target.open(partFilename, partContentType)) {
+                size = copyBody(out);
+            }
+            parts.add(new ParseResult(partFilename, partContentType, size));
+        }
+        drain();
+        return parts;
+    }
+
+    /**
+     * Positions the parser on the next part, reading its headers. Returns false once the
+     * closing boundary has been consumed.
+     */
+    private boolean nextPart() throws IOException {
+        if (finished) {
+            return false;
+        }
+        // After a boundary comes either "--" (end of the body) or CRLF (another part follows)
+        if (!ensure(2)) {
+            throw new IOException("Unexpected end of multipart stream after boundary");
+        }
+        if (buffer[head] == '-' && buffer[head + 1] == '-') {
+            head += 2;
+            finished = true;
+            return false;
+        }
+        // Skip optional transport padding and the CRLF that ends the boundary line
+        readLine();
+
+        partFilename = null;
+        partContentType = "application/octet-stream"; // Default
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Disposition")) {
+                partFilename = headerParameter(value, "filename");
+            } else if (name.equalsIgnoreCase("Content-Type")) {
+                partContentType = value;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the current part body into out (or discards it when out is null) and consumes
+     * the delimiter that ends it. Returns the number of body bytes.
+     */
+    private long copyBody(OutputStream out) throws IOException {
+        long total = 0;
+        while (true) {
+            int match = findSequence(buffer, head, tail, delimiter);
+            if (match != -1) {
+                total += emit(out, match);
+                head = match + delimiter.length;
+                return total;
+            }
+            // No delimiter in the window yet. Everything except a possible delimiter prefix at
+            // the end is body data and can be passed on before the window is refilled.
+            int safeEnd = Math.max(head, tail - delimiter.length + 1);
+            total += emit(out, safeEnd);
+            if (!fill()) {
+                throw new IOException("Unexpected end of multipart stream: missing boundary");
+            }
+        }
+    }
+
+    private int emit(OutputStream out, int end) throws IOException {
+        int length = end - head;
+        if (out != null && length > 0) {
+            out.write(buffer, head, length);
+        }
+        head = end;
+        return length;
+    }
+
+    /**
+     * Reads one CRLF-terminated header line. Header bytes are decoded as UTF-8, which is what
+     * browsers use for non-ASCII filenames.
+     */
+    private String readLine() throws IOException {
+        while (true) {
+            for (int i = head; i + 1 < tail; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                    String line = new String(buffer, head, i - head, StandardCharsets.UTF_8);
+                    head = i + 2;
+                    return line;
+                }
+            }
+            if (tail - head > MAX_HEADER_LINE) {
+                throw new IOException("Multipart header line too long");
+            }
+            if (!fill()) {
+                throw new IOException("Unexpected end of multipart stream in part headers");
+            }
+        }
+    }
+
+    /**
+     * Makes sure at least count unread bytes are in the window.
+     */
+    private boolean ensure(int count) throws IOException {
+        while (tail - head < count) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compacts the window and reads more of the request body into it. Returns false at end of
+     * stream.
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        int read = input.read(buffer, tail, buffer.length - tail);
+        if (read == -1) {
+            eof = true;
+            return false;
+        }
+        tail += read;
+        return true;
+    }
+
+    /**
+     * Reads whatever follows the closing boundary so the connection can be reused.
+     */
+    private void drain() throws IOException {
+        head = tail;
+        while (fill()) {
+            head = tail;
+        }
+    }
+
+    /**
+     * Boyer-Moore-Horspool search for sequence in data[startPos, endPos). Each attempt compares
+     * the window from its last byte backwards; on a mismatch the window jumps ahead by the
+     * distance from the last occurrence of the byte under its end to the end of the sequence.
+     * Body bytes rarely occur in a boundary, so most attempts skip the whole delimiter length
+     * after a single comparison instead of advancing one byte.
+     */
+    int findSequence(byte[] data, int startPos, int endPos, byte[] sequence) {
+        int[] skips = Arrays.equals(sequence, delimiter) ? delimiterSkips : skipTable(sequence);
+        int last = sequence.length - 1;
+        int i = startPos;
+        while (i <= endPos - sequence.length) {
+            byte end = data[i + last];
+            if (end == sequence[last]) {
+                int j = last - 1;
+                while (j >= 0 && data[i + j] == sequence[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += skips[end & 0xFF];
+        }
+        return -1;
+    }
+
+    // How far the window may move when the byte under its last position is b
+    private static int[] skipTable(byte[] sequence) {
+        int[] skips = new int[256];
+        Arrays.fill(skips, sequence.length);
+        for (int i = 0; i < sequence.length - 1; i++) {
+            skips[sequence[i] & 0xFF] = sequence.length - 1 - i;
+        }
+        return skips;
+    }
+
+    private static String headerParameter(String headerValue, String parameter) {
+        String marker = parameter + "=";
+        int start = headerValue.toLowerCase(Locale.ROOT).indexOf(marker);
+        if (start == -1) {
+            return null;
+        }
+        start += marker.length();
+        if (start < headerValue.length() && headerValue.charAt(start) == '"') {
+            int end = headerValue.indexOf('"', start + 1);
+            return end == -1 ? headerValue.substring(start + 1) : headerValue.substring(start + 1, end);
+        }
+        int end = headerValue.indexOf(';', start);
+        return (end == -1 ? headerValue.substring(start) : headerValue.substring(start, end)).trim();
+    }
+
+    public static class ParseResult {
+        public final String filename;
+        public final String contentType;
+        public final long size;
+
+        public ParseResult(String filename, String contentType, long size) {
+            this.filename = filename;
+            this.contentType = contentType;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package p2p.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses how the server runs blocking work: on fixed pools of platform threads, or on one
+ * virtual thread per task.
+ *
+ * Selected at startup with -Dpeerlink.threads=virtual (default: platform). In virtual mode the
+ * handlers keep their plain blocking I/O, but a slow upload or download only parks a cheap
+ * virtual thread, so tens of thousands of transfers can be in flight without one of them
+ * blocking an unrelated API call.
+ */
+public enum ThreadMode {
+    PLATFORM,
+    VIRTUAL;
+
+    public static ThreadMode current() {
+        String mode = System.getProperty("peerlink.threads", "platform");
+        return mode.equalsIgnoreCase("virtual") ? VIRTUAL : PLATFORM;
+    }
+
+    /**
+     * Creates an executor for the given kind of work. platformThreads is the pool size used in
+     * platform mode; virtual mode has no pool to size.
+     *
+     * Platform pools report their queue depth and busy threads to /metrics; in virtual mode
+     * nothing ever waits in a queue.
+     */
+    public ExecutorService newExecutor(String name, int platformThreads) {
+        if (this == VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+        }
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(platformThreads, namedFactory(name));
+        Metrics.gauge("peerlink_executor_queue_depth", "Tasks waiting for a thread, by pool",
+                () -> pool.getQueue().size(), "pool", name);
+        Metrics.gauge("peerlink_executor_active_threads", "Threads running a task, by pool",
+                pool::getActiveCount, "pool", name);
+        return pool;
+    }
+
+    private static ThreadFactory namedFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> new Thread(runnable, name + "-" + counter.getAndIncrement());
+    }
+}
@@ -0,0 +1,99 @@
+package p2p.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel for large numbers of coarse deadlines.
+ *
+ * Scheduling drops the item into the slot its deadline falls in, which is O(1) no matter how
+ * many items are waiting. A single thread advances one slot per tick and fires the items in
+ * that slot whose deadline has passed; items due in a later revolution of the wheel simply
+ * stay in their slot until they come around again. A deadline in the slot being fired or
+ * one the wheel has already passed goes into the next slot, so it fires on the next tick
+ * instead of a whole revolution late.
+ */
+public class TimerWheel<T> {
+    private final long tickMillis;
+    private final List<ConcurrentLinkedQueue<Entry<T>>> slots;
+    private final Consumer<T> onExpire;
+    private final Thread thread;
+    private final long startMillis;
+    // The last tick the wheel thread has reached; its slot may be firing right now
+    private volatile long currentTick;
+    private volatile boolean running = true;
+
+    public TimerWheel(String name, long tickMillis, int slotCount, Consumer<T> onExpire) {
+        this.tickMillis = tickMillis;
+        this.onExpire = onExpire;
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ConcurrentLinkedQueue<>());
+        }
+        this.startMillis = System.currentTimeMillis();
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void schedule(T item, long deadlineMillis) {
+        // Round up to the next tick so nothing fires early
+        long tick = Math.max(currentTick + 1, (deadlineMillis - startMillis + tickMillis - 1) / tickMillis);
+        ConcurrentLinkedQueue<Entry<T>> slot = slots.get((int) (tick % slots.size()));
+        Entry<T> entry = new Entry<>(item, deadlineMillis);
+        slot.add(entry);
+        // The wheel may have reached that slot while the entry was being added; if it is still
+        // there it would wait a whole revolution, so move it on
+        if (currentTick >= tick && slot.remove(entry)) {
+            schedule(item, deadlineMillis);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void run() {
+        long tick = 0;
+        while (running) {
+            long next = startMillis + (tick + 1) * tickMillis;
+            long sleep = next - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            tick++;
+            currentTick = tick;
+            long now = System.currentTimeMillis();
+            Iterator<Entry<T>> entries = slots.get((int) (tick % slots.size())).iterator();
+            while (entries.hasNext()) {
+                Entry<T> entry = entries.next();
+                if (entry.deadlineMillis <= now) {
+                    entries.remove();
+                    try {
+                        onExpire.accept(entry.item);
+                    } catch (RuntimeException e) {
+                        System.err.println("Error in " + thread.getName() + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Entry<T> {
+        final T item;
+        final long deadlineMillis;
+
+        Entry(T item, long deadlineMillis) {
+            this.item = item;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+}
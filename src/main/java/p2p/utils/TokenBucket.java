@@ -0,0 +1,71 @@
+package p2p.utils;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket that limits a byte rate, e.g. what one share may send per second.
+ *
+ * Tokens accrue at the current rate, which is read on every call so a limit changed at runtime
+ * takes effect at once, and up to a tenth of a second's worth can be saved up for a burst.
+ * Callers that have to wait queue on a fair lock and are served strictly in arrival order.
+ * When every caller takes the same small quantum per write, that makes the bucket a
+ * round-robin scheduler: each active transfer gets an equal share of the rate, however large
+ * its file is.
+ */
+public class TokenBucket {
+    // Longest single sleep, so a raised limit is noticed quickly
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final LongSupplier rate;
+    private final ReentrantLock queue = new ReentrantLock(true);
+    // Guarded by queue
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * rate supplies the limit in bytes per second; 0 or less means unlimited.
+     */
+    public TokenBucket(LongSupplier rate) {
+        this.rate = rate;
+    }
+
+    public boolean isLimited() {
+        return rate.getAsLong() > 0;
+    }
+
+    /**
+     * Takes count tokens, waiting until they have accrued and every earlier caller has been
+     * served. Returns at once while the bucket is unlimited.
+     *
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public void take(long count) throws InterruptedIOException {
+        queue.lock();
+        try {
+            while (true) {
+                long limit = rate.getAsLong();
+                if (limit <= 0) {
+                    return;
+                }
+                long now = System.nanoTime();
+                double capacity = Math.max(count, limit / 10.0);
+                tokens = Math.min(capacity, tokens + Math.min(now - refilledAt, 1_000_000_000L) * (limit / 1e9));
+                refilledAt = now;
+                if (tokens >= count) {
+                    tokens -= count;
+                    return;
+                }
+                long waitNanos = (long) Math.ceil((count - tokens) * 1e9 / limit);
+                TimeUnit.NANOSECONDS.sleep(Math.min(waitNanos, MAX_WAIT_NANOS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        } finally {
+            queue.unlock();
+        }
+    }
+}
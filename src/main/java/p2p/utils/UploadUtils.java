@@ -1,15 +1,37 @@
 package p2p.utils;
 
-import java.util.Random;
+import java.io.File;
+import java.security.SecureRandom;
 
 public class UploadUtils {
 
-    public static Integer generateCode(){
-        int DYNAMIC_STARTING_PORT = 49152;
-        int DYNAMIC_ENDING_PORT = 65535;
+    // Invite codes are six digits: short enough to read out, with room for 900k live shares
+    public static final int FIRST_CODE = 100000;
+    public static final int LAST_CODE = 999999;
 
-        Random random = new Random();
-        return random.nextInt(DYNAMIC_ENDING_PORT-DYNAMIC_STARTING_PORT) + DYNAMIC_STARTING_PORT;
+    // Every invite code in random order, so consecutive uploads don't get guessable codes. The
+    // order is the code sequence itself, so it comes from SecureRandom: java.util.Random's
+    // 48-bit state could be recovered from a few codes and the rest predicted.
+    public static int[] shuffledCodes(){
+        int[] codes = new int[LAST_CODE - FIRST_CODE + 1];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = FIRST_CODE + i;
+        }
+        SecureRandom random = new SecureRandom();
+        for (int i = codes.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = codes[i];
+            codes[i] = codes[j];
+            codes[j] = swap;
+        }
+        return codes;
     }
 
-}
\ No newline at end of file
+    // The part of a client's filename an upload is stored under, after its random prefix: the
+    // last path segment without control characters. Stored paths end up in tab- and
+    // line-separated files such as bundle manifests, so a tab or newline must never reach them.
+    public static String storedName(String filename) {
+        return new File(filename).getName().replaceAll("\\p{Cntrl}", "");
+    }
+
+}
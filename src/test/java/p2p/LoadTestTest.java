@@ -0,0 +1,52 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LoadTestTest {
+
+    @Test
+    public void parsesSizeSuffixes() {
+        assertEquals(512, LoadTest.SizeDistribution.bytes("512"));
+        assertEquals(4096, LoadTest.SizeDistribution.bytes("4k"));
+        assertEquals(3L << 20, LoadTest.SizeDistribution.bytes("3M"));
+        assertEquals(1L << 30, LoadTest.SizeDistribution.bytes("1g"));
+    }
+
+    @Test
+    public void drawsSizesWithinTheirRanges() {
+        LoadTest.SizeDistribution sizes = LoadTest.SizeDistribution.parse("4k:1,1m-8m:1");
+        for (int i = 0; i < 1000; i++) {
+            long size = sizes.next();
+            assertTrue(size == 4096 || (size >= 1L << 20 && size <= 8L << 20), "size " + size);
+        }
+    }
+
+    @Test
+    public void latencyBucketsHoldTheirValues() {
+        for (long micros = 0; micros < 1 << 22; micros = micros * 5 / 4 + 1) {
+            int bucket = LoadTest.LatencyHistogram.bucket(micros);
+            long upper = LoadTest.LatencyHistogram.upperBound(bucket);
+            assertTrue(upper >= micros, micros + " above the bound of its bucket");
+            // 32 buckets per power of two: the bound is within about 3% of the value
+            assertTrue(upper <= micros + micros / 32 + 1, micros + " in a bucket that is too wide");
+            if (bucket > 0) {
+                assertTrue(LoadTest.LatencyHistogram.upperBound(bucket - 1) < micros);
+            }
+        }
+    }
+
+    @Test
+    public void percentilesFollowTheRecordedValues() {
+        LoadTest.LatencyHistogram histogram = new LoadTest.LatencyHistogram();
+        for (int ms = 1; ms <= 1000; ms++) {
+            histogram.record(ms * 1_000_000L);
+        }
+        long p50 = histogram.percentile(50);
+        long p999 = histogram.percentile(99.9);
+        assertTrue(p50 >= 500_000 && p50 <= 520_000, "p50 " + p50);
+        assertTrue(p999 >= 999_000 && p999 <= 1_040_000, "p99.9 " + p999);
+    }
+}
@@ -0,0 +1,139 @@
+package p2p.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileControllerTest {
+
+    @TempDir
+    Path dir;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private String tmpdir;
+    private FileController controller;
+    private String api;
+
+    @BeforeEach
+    public void startController() throws IOException {
+        // Uploads go to java.io.tmpdir/peerlink-uploads
+        tmpdir = System.getProperty("java.io.tmpdir");
+        System.setProperty("java.io.tmpdir", dir.toString());
+        int apiPort = freePort();
+        controller = new FileController(apiPort, freePort());
+        controller.start();
+        api = "http://localhost:" + apiPort;
+    }
+
+    @AfterEach
+    public void stopController() {
+        controller.stop();
+        System.setProperty("java.io.tmpdir", tmpdir);
+    }
+
+    @Test
+    public void chunkedUploadThenRangedDownloads() throws Exception {
+        byte[] data = new byte[300_000];
+        new Random(3).nextBytes(data);
+
+        // Upload the second half first; the session reports the ranges it has
+        String id = field(send("POST", "/uploads?filename=data.bin&size=" + data.length, null).body(), "id");
+        send("PUT", "/uploads/" + id + "?offset=150000", Arrays.copyOfRange(data, 150_000, 300_000));
+        assertTrue(send("GET", "/uploads/" + id, null).body().contains("[[150000, 299999]]"));
+        send("PUT", "/uploads/" + id + "?offset=0", Arrays.copyOfRange(data, 0, 150_000));
+        assertTrue(send("GET", "/uploads/" + id, null).body().contains("[[0, 299999]]"));
+        String code = field(send("POST", "/uploads/" + id, null).body(), "port");
+
+        HttpResponse<byte[]> whole = download(code, null, null);
+        assertEquals(200, whole.statusCode());
+        assertArrayEquals(data, whole.body());
+        assertEquals("bytes", whole.headers().firstValue("Accept-Ranges").orElse(null));
+        String etag = whole.headers().firstValue("ETag").orElse(null);
+        assertNotNull(etag);
+
+        HttpResponse<byte[]> slice = download(code, "bytes=1000-1999", null);
+        assertEquals(206, slice.statusCode());
+        assertEquals("bytes 1000-1999/300000", slice.headers().firstValue("Content-Range").orElse(null));
+        assertArrayEquals(Arrays.copyOfRange(data, 1000, 2000), slice.body());
+
+        // A resumed download picks up from the offset, and a suffix range gives the tail
+        HttpResponse<byte[]> resumed = download(code, "bytes=299000-", etag);
+        assertEquals(206, resumed.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(data, 299_000, 300_000), resumed.body());
+        assertArrayEquals(Arrays.copyOfRange(data, 299_950, 300_000), download(code, "bytes=-50", null).body());
+
+        // An If-Range for another version of the file gets the whole file again
+        HttpResponse<byte[]> changed = download(code, "bytes=1000-1999", "\"0-0\"");
+        assertEquals(200, changed.statusCode());
+        assertArrayEquals(data, changed.body());
+
+        HttpResponse<byte[]> parts = download(code, "bytes=0-9,20-29", null);
+        assertEquals(206, parts.statusCode());
+        assertTrue(parts.headers().firstValue("Content-Type").orElse("").startsWith("multipart/byteranges"));
+        String body = new String(parts.body(), StandardCharsets.ISO_8859_1);
+        assertTrue(body.contains("Content-Range: bytes 0-9/300000"));
+        assertTrue(body.contains("Content-Range: bytes 20-29/300000"));
+
+        HttpResponse<byte[]> outside = download(code, "bytes=300000-", null);
+        assertEquals(416, outside.statusCode());
+        assertEquals("bytes */300000", outside.headers().firstValue("Content-Range").orElse(null));
+    }
+
+    @Test
+    public void unknownCodesAreNotFound() throws Exception {
+        assertEquals(404, download("123456", null, null).statusCode());
+        assertEquals(400, download("abc", null, null).statusCode());
+    }
+
+    private HttpResponse<String> send(String method, String path, byte[] body) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(api + path))
+                .method(method, body != null ? HttpRequest.BodyPublishers.ofByteArray(body)
+                        : HttpRequest.BodyPublishers.noBody())
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertTrue(response.statusCode() < 300, method + " " + path + ": " + response.body());
+        return response;
+    }
+
+    private HttpResponse<byte[]> download(String code, String range, String ifRange) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(api + "/download/" + code));
+        if (range != null) {
+            request.header("Range", range);
+        }
+        if (ifRange != null) {
+            request.header("If-Range", ifRange);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static String field(String json, String name) {
+        Matcher matcher = Pattern.compile("\"" + name + "\": \"?([^\",}]+)").matcher(json);
+        assertTrue(matcher.find(), json);
+        return matcher.group(1);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
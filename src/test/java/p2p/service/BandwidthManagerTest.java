@@ -0,0 +1,62 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class BandwidthManagerTest {
+
+    @Test
+    public void transfersTakeTurnsUnderTheGlobalLimit() throws Exception {
+        BandwidthManager bandwidth = new BandwidthManager(4 * 1024 * 1024, 0, 0);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong big = new AtomicLong();
+        AtomicLong small = new AtomicLong();
+        // One transfer writes 1 MB at a time, the other 16 KB; the large writes must not
+        // crowd out the small ones
+        Thread first = send(bandwidth.open(1, "10.0.0.1"), 1024 * 1024, big, running);
+        Thread second = send(bandwidth.open(2, "10.0.0.2"), 16 * 1024, small, running);
+        Thread.sleep(1000);
+        running.set(false);
+        first.join();
+        second.join();
+
+        long total = big.get() + small.get();
+        assertTrue(total < 7 * 1024 * 1024, "sent " + total);
+        assertTrue(small.get() > total / 3, "small transfer got " + small.get() + " of " + total);
+        assertEquals(0, bandwidth.flows());
+    }
+
+    @Test
+    public void unlimitedFlowsAreNotHeldBack() throws IOException {
+        BandwidthManager bandwidth = new BandwidthManager(0, 0, 0);
+        try (BandwidthManager.Flow flow = bandwidth.open(1, "10.0.0.1")) {
+            assertEquals(1L << 40, flow.acquire(1L << 40));
+            bandwidth.setLimits(-1, 1024 * 1024, -1);
+            assertEquals(BandwidthManager.QUANTUM, flow.acquire(1L << 40));
+        }
+    }
+
+    private static Thread send(BandwidthManager.Flow flow, int writeSize, AtomicLong sent, AtomicBoolean running) {
+        Thread thread = new Thread(() -> {
+            byte[] data = new byte[writeSize];
+            try (flow; OutputStream out = flow.wrap(OutputStream.nullOutputStream())) {
+                while (running.get()) {
+                    out.write(data);
+                    sent.addAndGet(writeSize);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,98 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.utils.UploadUtils;
+
+public class BundleTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void streamsEveryFileAsOneZip() throws IOException {
+        byte[] photo = new byte[200_000];
+        new Random(5).nextBytes(photo);
+        byte[] notes = "notes\n".repeat(10_000).getBytes(StandardCharsets.UTF_8);
+        String manifest = Bundle.write(dir.toString(), List.of(
+                entry("holiday/photo.jpg", "image/jpeg", photo),
+                entry("holiday/notes.txt", "text/plain", notes),
+                entry("holiday/notes.txt", "text/plain", notes)));
+
+        Bundle bundle = Bundle.read(manifest);
+        assertEquals("holiday", bundle.getName());
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        long length = bundle.writeZip(zip, new ContentStore(dir.toString()));
+        assertEquals(zip.size(), length);
+
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()))) {
+            ZipEntry entry = in.getNextEntry();
+            assertEquals("holiday/photo.jpg", entry.getName());
+            // Already compressed, so stored with the CRC from the upload
+            assertEquals(ZipEntry.STORED, entry.getMethod());
+            assertArrayEquals(photo, in.readAllBytes());
+
+            entry = in.getNextEntry();
+            assertEquals("holiday/notes.txt", entry.getName());
+            assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+            assertArrayEquals(notes, in.readAllBytes());
+
+            assertEquals("holiday/notes (2).txt", in.getNextEntry().getName());
+            assertArrayEquals(notes, in.readAllBytes());
+            assertNull(in.getNextEntry());
+        }
+        assertTrue(length < photo.length + notes.length);
+    }
+
+    @Test
+    public void entryNamesStayInsideTheArchive() {
+        assertEquals("etc/passwd", Bundle.entryName("../../etc/passwd"));
+        assertEquals("a/b.txt", Bundle.entryName("/a\\./b.txt"));
+        assertEquals("unnamed-file", Bundle.entryName(".."));
+    }
+
+    @Test
+    public void storedPathsCantBreakTheManifest() throws IOException {
+        // A filename with a tab and a newline is stored without them
+        String stored = UploadUtils.storedName("tab\there\nand.txt");
+        assertEquals("tabhereand.txt", stored);
+        Path file = Files.writeString(dir.resolve("1234_" + stored), "x");
+        String manifest = Bundle.write(dir.toString(),
+                List.of(new Bundle.Entry("tab\there.txt", file.toString(), "text/plain\n", 1, 0)));
+        Bundle.Entry read = Bundle.read(manifest).getEntries().get(0);
+        assertEquals(file.toString(), read.path());
+        assertEquals("tabhere.txt", read.name());
+        assertEquals("text/plain", read.contentType());
+
+        // A path that would still split the line is refused rather than recorded
+        assertThrows(IOException.class, () -> Bundle.write(dir.toString(),
+                List.of(new Bundle.Entry("a.txt", dir.resolve("a\tb").toString(), "text/plain", 1, 0))));
+    }
+
+    private Bundle.Entry entry(String name, String contentType, byte[] data) throws IOException {
+        Path file = Files.createTempFile(dir, "part", null);
+        Files.write(file, data);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return new Bundle.Entry(name, file.toString(), contentType, data.length, crc.getValue());
+    }
+}
@@ -0,0 +1,86 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import p2p.utils.UploadUtils;
+
+public class ClusterRingTest {
+    private static final String NODES = "node1:9090,node2:9090,node3:9090";
+
+    @Test
+    public void everyNodeRoutesACodeToTheSameOwner() {
+        ClusterRing first = ClusterRing.parse(NODES, "node1:9090");
+        ClusterRing second = ClusterRing.parse(NODES, "node2:9090");
+        Map<ClusterRing.Node, Integer> owned = new HashMap<>();
+        for (int code = UploadUtils.FIRST_CODE; code <= UploadUtils.LAST_CODE; code++) {
+            ClusterRing.Node owner = first.owner(code);
+            assertEquals(owner, second.owner(code));
+            owned.merge(owner, 1, Integer::sum);
+        }
+        // Close to a third of the codes each
+        int total = UploadUtils.LAST_CODE - UploadUtils.FIRST_CODE + 1;
+        for (int count : owned.values()) {
+            assertTrue(Math.abs(count - total / 3) < total / 10, owned.toString());
+        }
+    }
+
+    @Test
+    public void aNewNodeOnlyTakesItsShareOfTheCodes() {
+        ClusterRing three = ClusterRing.parse(NODES, "node1:9090");
+        ClusterRing four = ClusterRing.parse(NODES + ",node4:9090", "node1:9090");
+        int moved = 0;
+        int total = UploadUtils.LAST_CODE - UploadUtils.FIRST_CODE + 1;
+        for (int code = UploadUtils.FIRST_CODE; code <= UploadUtils.LAST_CODE; code++) {
+            if (!three.owner(code).equals(four.owner(code))) {
+                // Codes only ever move to the new node
+                assertEquals("node4", four.owner(code).host());
+                moved++;
+            }
+        }
+        assertTrue(moved > total / 6 && moved < total / 3, moved + " of " + total + " codes moved");
+    }
+
+    @Test
+    public void nodesOnlyHandOutTheirOwnCodes() {
+        ClusterRing ring = ClusterRing.parse(NODES, "node2:9090");
+        CodeAllocator allocator = new CodeAllocator(ring::owns);
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(ring.owns(allocator.allocate()));
+        }
+        // A share restored from before the ring changed keeps its code, which is never handed
+        // out here once it is released
+        int foreign = UploadUtils.FIRST_CODE;
+        while (ring.owns(foreign)) {
+            foreign++;
+        }
+        assertTrue(allocator.claim(foreign));
+        allocator.release(foreign);
+        int code;
+        while ((code = allocator.allocate()) != -1) {
+            assertTrue(code != foreign);
+        }
+    }
+
+    @Test
+    public void standaloneOwnsEveryCode() {
+        ClusterRing ring = ClusterRing.standalone(9090);
+        assertFalse(ring.isClustered());
+        assertTrue(ring.owns(UploadUtils.FIRST_CODE));
+        assertTrue(ring.owns(UploadUtils.LAST_CODE));
+    }
+
+    @Test
+    public void rejectsAConfigurationWithoutThisNode() {
+        assertThrows(IllegalArgumentException.class, () -> ClusterRing.parse(NODES, "node9:9090"));
+        assertThrows(IllegalArgumentException.class, () -> ClusterRing.parse(NODES, null));
+        assertThrows(IllegalArgumentException.class, () -> ClusterRing.parse("node1", "node1"));
+    }
+}
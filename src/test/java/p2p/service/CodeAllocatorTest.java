@@ -0,0 +1,47 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+
+import org.junit.jupiter.api.Test;
+
+import p2p.utils.UploadUtils;
+
+public class CodeAllocatorTest {
+
+    @Test
+    public void handsOutEveryCodeOnceThenReportsExhaustion() {
+        CodeAllocator allocator = new CodeAllocator();
+        int total = UploadUtils.LAST_CODE - UploadUtils.FIRST_CODE + 1;
+        BitSet seen = new BitSet(total);
+        for (int i = 0; i < total; i++) {
+            int code = allocator.allocate();
+            assertTrue(code >= UploadUtils.FIRST_CODE && code <= UploadUtils.LAST_CODE);
+            assertFalse(seen.get(code - UploadUtils.FIRST_CODE));
+            seen.set(code - UploadUtils.FIRST_CODE);
+        }
+        assertEquals(-1, allocator.allocate());
+
+        allocator.release(123456);
+        assertEquals(123456, allocator.allocate());
+        assertEquals(-1, allocator.allocate());
+    }
+
+    @Test
+    public void claimedCodesAreSkipped() {
+        CodeAllocator allocator = new CodeAllocator();
+        assertTrue(allocator.claim(500000));
+        assertFalse(allocator.claim(500000));
+        int total = UploadUtils.LAST_CODE - UploadUtils.FIRST_CODE + 1;
+        for (int i = 0; i < total - 1; i++) {
+            assertTrue(allocator.allocate() != 500000);
+        }
+        assertEquals(-1, allocator.allocate());
+
+        allocator.release(500000);
+        assertEquals(500000, allocator.allocate());
+    }
+}
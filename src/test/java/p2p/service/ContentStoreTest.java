@@ -0,0 +1,149 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ContentStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void identicalUploadsShareTheirChunks() throws IOException {
+        ContentStore store = new ContentStore(dir.toString());
+        byte[] data = randomBytes(3 * 1024 * 1024);
+
+        String first = store(store, data, 8192);
+        long chunkCount = countChunks();
+        assertTrue(chunkCount >= 3);
+        // Different write sizes must not move the cut points
+        String second = store(store, data, 1000);
+        assertEquals(chunkCount, countChunks());
+
+        assertArrayEquals(data, readAll(store, first));
+        assertArrayEquals(data, readAll(store, second));
+
+        store.release(first);
+        assertEquals(chunkCount, countChunks());
+        assertArrayEquals(data, readAll(store, second));
+        store.release(second);
+        assertEquals(0, countChunks());
+    }
+
+    @Test
+    public void editedFileOnlyAddsChunksAroundTheEdit() throws IOException {
+        ContentStore store = new ContentStore(dir.toString());
+        byte[] data = randomBytes(4 * 1024 * 1024);
+        store(store, data, 65536);
+        long before = countChunks();
+
+        // Insert a few bytes in the middle: content-defined cuts realign right after it
+        byte[] edited = new byte[data.length + 7];
+        System.arraycopy(data, 0, edited, 0, 2_000_000);
+        System.arraycopy(data, 2_000_000, edited, 2_000_007, data.length - 2_000_000);
+        String path = store(store, edited, 65536);
+
+        assertTrue(countChunks() - before <= 2);
+        assertArrayEquals(edited, readAll(store, path));
+    }
+
+    @Test
+    public void servesRangesAcrossChunkBoundaries() throws IOException {
+        ContentStore store = new ContentStore(dir.toString());
+        byte[] data = randomBytes(2 * 1024 * 1024 + 123);
+        String path = store(store, data, 4096);
+        assertTrue(store.isManifest(path));
+        assertFalse(store.isManifest(dir.resolve("plain.bin").toString()));
+
+        try (ShareContent content = store.open(path)) {
+            assertEquals(data.length, content.size());
+            ByteBuffer buffer = ByteBuffer.allocate(700_000);
+            long position = 500_000;
+            while (buffer.hasRemaining()) {
+                int read = content.read(buffer, position + buffer.position());
+                assertTrue(read > 0);
+            }
+            byte[] expected = new byte[700_000];
+            System.arraycopy(data, 500_000, expected, 0, expected.length);
+            assertArrayEquals(expected, buffer.array());
+            assertEquals(-1, content.read(ByteBuffer.allocate(1), data.length));
+        }
+    }
+
+    @Test
+    public void concurrentUploadsOfTheSameDataKeepEveryChunk() throws Exception {
+        ContentStore store = new ContentStore(dir.toString());
+        byte[] data = randomBytes(2 * 1024 * 1024);
+        String kept = store(store, data, 65536);
+        long chunkCount = countChunks();
+
+        // Uploads of the same chunks race each other and a release of the first copy
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> uploads = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                uploads.add(executor.submit(() -> store(store, data, 65536)));
+            }
+            store.release(kept);
+            for (Future<String> upload : uploads) {
+                assertArrayEquals(data, readAll(store, upload.get()));
+            }
+            assertEquals(chunkCount, countChunks());
+            for (Future<String> upload : uploads) {
+                store.release(upload.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, countChunks());
+    }
+
+    private static String store(ContentStore store, byte[] data, int writeSize) throws IOException {
+        ContentStore.Upload upload = store.newUpload("data.bin");
+        for (int off = 0; off < data.length; off += writeSize) {
+            upload.write(data, off, Math.min(writeSize, data.length - off));
+        }
+        upload.close();
+        assertEquals(data.length, upload.getSize());
+        return upload.getPath();
+    }
+
+    private static byte[] readAll(ContentStore store, String path) throws IOException {
+        try (ShareContent content = store.open(path)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) content.size());
+            while (buffer.hasRemaining() && content.read(buffer, buffer.position()) > 0) {
+                // keep reading
+            }
+            return buffer.array();
+        }
+    }
+
+    private long countChunks() throws IOException {
+        try (Stream<Path> files = Files.walk(dir.resolve("store").resolve("chunks"))) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,55 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DiskQuotaTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void uploadsAreRefusedOnceTheQuotaIsTaken() throws IOException {
+        DiskQuota quota = new DiskQuota(dir.toFile(), 0, 1000, 0);
+        DiskQuota.Reservation first = quota.reserve(600);
+        QuotaExceededException refused = assertThrows(QuotaExceededException.class, () -> quota.reserve(600));
+        assertEquals(507, refused.getStatus());
+
+        // A stored upload keeps its bytes until its share is reclaimed
+        first.commit("a.txt", 500);
+        assertEquals(500, quota.reserved());
+        quota.reserve(500).cancel();
+        quota.release("a.txt");
+        assertEquals(0, quota.reserved());
+        quota.reserve(1000);
+    }
+
+    @Test
+    public void uploadsOfUnknownSizeAreStoppedAtTheLimit() throws IOException {
+        DiskQuota quota = new DiskQuota(dir.toFile(), 100, 0, 0);
+        DiskQuota.Reservation reservation = quota.reserve(0);
+        OutputStream out = reservation.limit(OutputStream.nullOutputStream());
+        out.write(new byte[60]);
+        out.write(new byte[40]);
+        QuotaExceededException refused = assertThrows(QuotaExceededException.class, () -> out.write(1));
+        assertEquals(413, refused.getStatus());
+
+        reservation.cancel();
+        assertEquals(0, quota.reserved());
+    }
+
+    @Test
+    public void uploadsLeaveTheMinimumFreeSpace() {
+        long free = dir.toFile().getUsableSpace();
+        DiskQuota quota = new DiskQuota(dir.toFile(), 0, 0, free);
+        QuotaExceededException refused = assertThrows(QuotaExceededException.class, () -> quota.reserve(free));
+        assertEquals(507, refused.getStatus());
+    }
+}
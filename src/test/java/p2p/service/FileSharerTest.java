@@ -0,0 +1,53 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.utils.UploadUtils;
+
+public class FileSharerTest {
+    private static final String NODES = "node1:9090,node2:9090";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void sharesKeepTheirFilesWhenTheRingMovesTheirCode() throws IOException {
+        // A code the two-node ring gives to node2, shared on node1 while it was on its own
+        ClusterRing ring = ClusterRing.parse(NODES, "node1:9090");
+        int code = UploadUtils.FIRST_CODE;
+        while (ring.owns(code)) {
+            code++;
+        }
+        Path upload = Files.writeString(dir.resolve("upload.txt"), "hello");
+        File journalFile = dir.resolve("shares.journal").toFile();
+        ShareJournal journal = new ShareJournal(journalFile);
+        journal.load();
+        journal.added(new ShareJournal.Entry(code, upload.toString(), "text/plain", null, 0, 0, 5, 0));
+        journal.close();
+
+        DiskQuota quota = new DiskQuota(dir.toFile(), 0, 0, 0);
+        FileSharer sharer = new FileSharer(new ContentStore(dir.toString()), new Precompressor(dir.toString()),
+                new BandwidthManager(0, 0, 0), quota, new ShareJournal(journalFile), ring);
+        try {
+            assertEquals(1, sharer.restoreShares());
+            assertTrue(sharer.isServing(code));
+            assertTrue(Files.exists(upload));
+            assertEquals(5, quota.reserved());
+            // New uploads only get codes node1 owns
+            assertTrue(ring.owns(sharer.offerFile(upload.toString())));
+        } finally {
+            sharer.stop();
+        }
+        assertFalse(new ShareJournal(journalFile).load().isEmpty());
+    }
+}
@@ -0,0 +1,123 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class HotFileCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void admitsAShareOnItsSecondDownload() throws IOException {
+        HotFileCache cache = new HotFileCache(1024 * 1024, 64 * 1024);
+        byte[] data = randomBytes(10_000);
+        Share share = share(1, data);
+
+        assertNull(cache.get(share));
+        assertNull(load(cache, share));
+        assertNull(cache.get(share));
+        try (ShareContent loaded = load(cache, share)) {
+            assertNotNull(loaded);
+            assertArrayEquals(data, readAll(loaded));
+        }
+        try (ShareContent cached = cache.get(share)) {
+            assertNotNull(cached);
+            assertEquals(data.length, cached.size());
+            assertArrayEquals(data, readAll(cached));
+
+            // Reads from the middle see the right bytes
+            ByteBuffer slice = ByteBuffer.allocate(100);
+            assertEquals(100, cached.read(slice, 5000));
+            byte[] expected = new byte[100];
+            System.arraycopy(data, 5000, expected, 0, 100);
+            assertArrayEquals(expected, slice.array());
+            assertEquals(-1, cached.read(ByteBuffer.allocate(1), data.length));
+        }
+    }
+
+    @Test
+    public void neverCachesLargeFiles() throws IOException {
+        HotFileCache cache = new HotFileCache(1024 * 1024, 1000);
+        Share share = share(1, randomBytes(1001));
+        assertNull(load(cache, share));
+        assertNull(load(cache, share));
+        assertNull(cache.get(share));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedShare() throws IOException {
+        HotFileCache cache = new HotFileCache(25_000, 64 * 1024);
+        Share a = share(1, randomBytes(10_000));
+        Share b = share(2, randomBytes(10_000));
+        Share c = share(3, randomBytes(10_000));
+        admit(cache, a);
+        admit(cache, b);
+        // Using a makes b the oldest
+        assertNotNull(cache.get(a));
+        admit(cache, c);
+
+        assertNotNull(cache.get(a));
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(c));
+        assertEquals(20_000, cache.bytes());
+    }
+
+    @Test
+    public void doesNotServeAnEarlierShareWithTheSameCode() throws IOException {
+        HotFileCache cache = new HotFileCache(1024 * 1024, 64 * 1024);
+        Share old = share(7, randomBytes(1000));
+        admit(cache, old);
+        Share reused = share(7, randomBytes(1000));
+        assertNull(cache.get(reused));
+        assertEquals(0, cache.size());
+
+        admit(cache, reused);
+        cache.remove(old);
+        assertNotNull(cache.get(reused));
+        cache.remove(reused);
+        assertNull(cache.get(reused));
+        assertEquals(0, cache.bytes());
+    }
+
+    private void admit(HotFileCache cache, Share share) throws IOException {
+        load(cache, share);
+        assertNotNull(load(cache, share));
+    }
+
+    private ShareContent load(HotFileCache cache, Share share) throws IOException {
+        try (FileContent source = new FileContent(Path.of(share.getFilePath()).toFile())) {
+            return cache.load(share, source);
+        }
+    }
+
+    private Share share(int code, byte[] data) throws IOException {
+        Path file = Files.createTempFile(dir, "share", ".bin");
+        Files.write(file, data);
+        return new Share(code, file.toString(), null, null, 8, 0, 0);
+    }
+
+    private static byte[] readAll(ShareContent content) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) content.size());
+        while (buffer.hasRemaining() && content.read(buffer, buffer.position()) != -1) {
+        }
+        return buffer.array();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
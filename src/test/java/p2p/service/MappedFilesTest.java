@@ -0,0 +1,78 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MappedFilesTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void leavesSmallFilesAlone() throws IOException {
+        MappedFiles mapped = new MappedFiles(1000, 256, 2);
+        assertNull(mapped.open(write(new byte[999]).toString()));
+    }
+
+    @Test
+    public void transfersAcrossWindowBoundaries() throws IOException {
+        byte[] data = randomBytes(10_000);
+        // Tiny windows, only two kept, so the transfer maps and drops many of them
+        MappedFiles mapped = new MappedFiles(1000, 256, 2);
+        try (ShareContent content = mapped.open(write(data).toString())) {
+            assertEquals(data.length, content.size());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = 100;
+            while (position < 9_000) {
+                position += content.transferTo(position, 9_000 - position, target);
+            }
+            assertArrayEquals(Arrays.copyOfRange(data, 100, 9_000), out.toByteArray());
+
+            ByteBuffer buffer = ByteBuffer.allocate(data.length);
+            while (content.read(buffer, buffer.position()) != -1) {
+            }
+            assertArrayEquals(data, buffer.array());
+        }
+    }
+
+    @Test
+    public void sharesOneMappingBetweenDownloads() throws IOException {
+        MappedFiles mapped = new MappedFiles(1000, 4096, 4);
+        String path = write(randomBytes(5000)).toString();
+        ShareContent first = mapped.open(path);
+        ShareContent second = mapped.open(path);
+        assertEquals(1, mapped.size());
+        first.close();
+        first.close();
+        assertEquals(1, mapped.size());
+        second.close();
+        assertEquals(0, mapped.size());
+    }
+
+    private Path write(byte[] data) throws IOException {
+        Path file = Files.createTempFile(dir, "share", ".bin");
+        Files.write(file, data);
+        return file;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
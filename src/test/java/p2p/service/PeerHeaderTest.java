@@ -0,0 +1,102 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+public class PeerHeaderTest {
+
+    @Test
+    public void roundTripsEveryField() throws IOException {
+        PeerHeader header = new PeerHeader();
+        header.filename = "résumé.pdf";
+        header.contentType = "application/pdf";
+        header.size = 5_000_000_000L;
+        header.payloadLength = 100;
+        header.modified = 1_700_000_000_000L;
+        header.etag = "\"12a05f200-18bcfe56800\"";
+        header.hash = "ab".repeat(32);
+        header.encoding = "gzip";
+        header.range = "bytes 0-49,100-149";
+        header.transfer = "12345";
+
+        byte[] payload = "payload".getBytes(StandardCharsets.US_ASCII);
+        InputStream in = new ByteArrayInputStream(concat(header.encode(), payload));
+        PeerHeader read = PeerHeader.read(in);
+
+        assertFalse(read.isError());
+        assertEquals(header.filename, read.filename);
+        assertEquals(header.contentType, read.contentType);
+        assertEquals(header.size, read.size);
+        assertEquals(header.payloadLength, read.payloadLength);
+        assertEquals(header.modified, read.modified);
+        assertEquals(header.etag, read.etag);
+        assertEquals(header.hash, read.hash);
+        assertEquals(header.encoding, read.encoding);
+        assertEquals(header.range, read.range);
+        assertEquals(header.transfer, read.transfer);
+        assertNull(read.error);
+        // The stream is left at the first payload byte
+        assertEquals("payload", new String(in.readAllBytes(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void carriesErrors() throws IOException {
+        PeerHeader read = PeerHeader.read(new ByteArrayInputStream(PeerHeader.error(404, "Unknown invite code").encode()));
+        assertTrue(read.isError());
+        assertEquals(404, read.status);
+        assertEquals("Unknown invite code", read.error);
+        assertNull(read.filename);
+        assertEquals(-1, read.size);
+    }
+
+    @Test
+    public void rejectsWhatIsNotAHeader() {
+        byte[] text = "Filename: a.txt\n\n".getBytes(StandardCharsets.US_ASCII);
+        assertThrows(IOException.class, () -> PeerHeader.read(new ByteArrayInputStream(text)));
+        assertThrows(EOFException.class, () -> PeerHeader.read(new ByteArrayInputStream(new byte[0])));
+
+        byte[] full = PeerHeader.error(503, "Busy").encode();
+        byte[] truncated = Arrays.copyOf(full, full.length - 2);
+        assertThrows(EOFException.class, () -> PeerHeader.read(new ByteArrayInputStream(truncated)));
+    }
+
+    @Test
+    public void skipsFieldsAddedByNewerVersions() throws IOException {
+        PeerHeader header = new PeerHeader();
+        header.filename = "a.txt";
+        header.payloadLength = 3;
+        byte[] encoded = header.encode();
+        // Same header from a version 2 sender that appends 4 bytes of its own
+        ByteBuffer newer = ByteBuffer.allocate(encoded.length + 4 + 3);
+        newer.put(encoded);
+        newer.put(4, (byte) 2);
+        newer.putInt(6, ByteBuffer.wrap(encoded).getInt(6) + 4);
+        newer.putInt(0xCAFEBABE);
+        newer.put("abc".getBytes(StandardCharsets.US_ASCII));
+
+        InputStream in = new ByteArrayInputStream(newer.array());
+        assertEquals("a.txt", PeerHeader.read(in).filename);
+        assertEquals("abc", new String(in.readAllBytes(), StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(a);
+        out.writeBytes(b);
+        return out.toByteArray();
+    }
+}
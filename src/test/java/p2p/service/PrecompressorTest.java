@@ -0,0 +1,114 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PrecompressorTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void keepsGzipAndDeflateCopiesOfCompressibleUploads() throws IOException {
+        Precompressor precompressor = new Precompressor(dir.toString());
+        String sharePath = dir.resolve("notes.txt").toString();
+        byte[] text = "the same line again and again\n".repeat(5_000).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        try (OutputStream out = precompressor.wrap(stored, sharePath)) {
+            out.write(text);
+        }
+        assertArrayEquals(text, stored.toByteArray());
+
+        try (InputStream in = new GZIPInputStream(new FileInputStream(precompressor.variant(sharePath, "gzip")))) {
+            assertArrayEquals(text, in.readAllBytes());
+        }
+        try (InputStream in = new InflaterInputStream(new FileInputStream(precompressor.variant(sharePath, "deflate")))) {
+            assertArrayEquals(text, in.readAllBytes());
+        }
+
+        precompressor.delete(sharePath);
+        assertNull(precompressor.variant(sharePath, "gzip"));
+        assertNull(precompressor.variant(sharePath, "deflate"));
+    }
+
+    @Test
+    public void dropsCopiesThatSaveTooLittle() throws IOException {
+        Precompressor precompressor = new Precompressor(dir.toString());
+        String sharePath = dir.resolve("random.bin").toString();
+        byte[] noise = new byte[100_000];
+        new Random(7).nextBytes(noise);
+        try (OutputStream out = precompressor.wrap(OutputStream.nullOutputStream(), sharePath)) {
+            out.write(noise);
+        }
+        assertNull(precompressor.variant(sharePath, "gzip"));
+        assertNull(precompressor.choose(sharePath, "gzip, deflate"));
+    }
+
+    @Test
+    public void choosesTheSmallestCopyTheClientAccepts() throws IOException {
+        Precompressor precompressor = new Precompressor(dir.toString());
+        String sharePath = dir.resolve("page.html").toString();
+        try (OutputStream out = precompressor.wrap(OutputStream.nullOutputStream(), sharePath)) {
+            out.write("<p>hello</p>\n".repeat(10_000).getBytes(StandardCharsets.UTF_8));
+        }
+        // gzip is written at the best level and deflate at the fastest, so gzip is smaller
+        assertTrue(precompressor.variant(sharePath, "gzip").length()
+                < precompressor.variant(sharePath, "deflate").length());
+        assertEquals("gzip", precompressor.choose(sharePath, "gzip, deflate, br"));
+        assertEquals("gzip", precompressor.choose(sharePath, "*"));
+        assertEquals("deflate", precompressor.choose(sharePath, "gzip;q=0, deflate"));
+        assertEquals("deflate", precompressor.choose(sharePath, "deflate"));
+        assertNull(precompressor.choose(sharePath, "br"));
+        assertNull(precompressor.choose(sharePath, "*;q=0"));
+        assertNull(precompressor.choose(sharePath, null));
+    }
+
+    @Test
+    public void aFailedCloseLeavesNoCopies() throws IOException {
+        Precompressor precompressor = new Precompressor(dir.toString());
+        String sharePath = dir.resolve("broken.txt").toString();
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void close() throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        OutputStream out = precompressor.wrap(failing, sharePath);
+        out.write("compress me please\n".repeat(1_000).getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, out::close);
+        assertNull(precompressor.variant(sharePath, "gzip"));
+        assertNull(precompressor.variant(sharePath, "deflate"));
+    }
+
+    @Test
+    public void alreadyCompressedTypesAreLeftAlone() {
+        assertTrue(Precompressor.isCompressible("text/plain; charset=utf-8"));
+        assertTrue(Precompressor.isCompressible("image/svg+xml"));
+        assertTrue(Precompressor.isCompressible(null));
+        assertFalse(Precompressor.isCompressible("image/jpeg"));
+        assertFalse(Precompressor.isCompressible("Application/ZIP"));
+        assertFalse(Precompressor.isCompressible("video/mp4"));
+    }
+}
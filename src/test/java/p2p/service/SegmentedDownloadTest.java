@@ -0,0 +1,203 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.utils.ByteRange;
+
+public class SegmentedDownloadTest {
+
+    @TempDir
+    Path dir;
+
+    private FileSharer sharer;
+    private int port;
+
+    @BeforeEach
+    public void startSharer() throws IOException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        sharer = new FileSharer(new ContentStore(dir.toString()), new Precompressor(dir.toString()),
+                new BandwidthManager(0, 0, 0), new DiskQuota(dir.toFile(), 0, 0, 0), null,
+                ClusterRing.standalone(port));
+        sharer.start(port);
+    }
+
+    @AfterEach
+    public void stopSharer() {
+        sharer.stop();
+    }
+
+    @Test
+    public void downloadsAShareOverSeveralConnections() throws Exception {
+        byte[] data = randomBytes(5 * SegmentedDownload.SEGMENT_SIZE + 12345);
+        Path upload = Files.write(dir.resolve("big.bin"), data);
+        // The joined connections don't count as downloads, so one allowed download is enough
+        int code = sharer.offerFile(upload.toString(), "application/octet-stream", null, 1, 0);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            start(port, code, 4, executor).writeTo(out);
+            assertArrayEquals(data, out.toByteArray());
+        } finally {
+            executor.shutdown();
+        }
+        // Closing the last connection ends the transfer, which was the share's only download
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Files.exists(upload) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse(Files.exists(upload));
+    }
+
+    @Test
+    public void theControlConnectionDoesNotHoldAThreadUntilTheEnd() throws Exception {
+        byte[] data = randomBytes(1000);
+        int code = sharer.offerFile(Files.write(dir.resolve("small.bin"), data).toString());
+
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+        try {
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            boolean[] idle = new boolean[1];
+            OutputStream out = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    received.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    // The download isn't over yet, but its only stream has nothing left to do
+                    long deadline = System.currentTimeMillis() + 5000;
+                    while (executor.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+                        Thread.onSpinWait();
+                    }
+                    idle[0] = executor.getActiveCount() == 0;
+                    received.write(b, off, len);
+                }
+            };
+            start(port, code, 1, executor).writeTo(out);
+            assertTrue(idle[0]);
+            assertArrayEquals(data, received.toByteArray());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void refusedStreamsGiveTheirSegmentBack() throws Exception {
+        byte[] data = randomBytes(3 * SegmentedDownload.SEGMENT_SIZE + 1);
+        AtomicInteger refused = new AtomicInteger();
+        CountDownLatch joined = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (ServerSocket server = new ServerSocket(0)) {
+            // A share server that serves the control connection only once another connection
+            // has been turned away, so that connection is sure to have claimed a segment
+            Thread serving = new Thread(() -> {
+                try (Socket control = server.accept()) {
+                    executor.execute(() -> refuseJoins(server, refused, joined));
+                    InputStream in = new BufferedInputStream(control.getInputStream());
+                    String handshake;
+                    while ((handshake = readHandshake(in)) != null) {
+                        joined.await(5, TimeUnit.SECONDS);
+                        List<ByteRange> ranges = ByteRange.parse(PeerRequest.parse(handshake).range, data.length);
+                        ByteRange range = ranges.get(0);
+                        PeerHeader header = new PeerHeader();
+                        header.size = data.length;
+                        header.range = ByteRange.format(ranges);
+                        header.payloadLength = range.length();
+                        control.getOutputStream().write(header.encode());
+                        control.getOutputStream().write(data, (int) range.start, (int) range.length());
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // The test fails on the missing bytes
+                }
+            });
+            serving.start();
+
+            Socket control = new Socket("localhost", server.getLocalPort());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new SegmentedDownload(control, new BufferedInputStream(control.getInputStream()), "localhost",
+                    server.getLocalPort(), 1, "1", data.length, 4, executor).writeTo(out);
+
+            assertArrayEquals(data, out.toByteArray());
+            assertTrue(refused.get() >= 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void refuseJoins(ServerSocket server, AtomicInteger refused, CountDownLatch joined) {
+        while (true) {
+            try (Socket join = server.accept()) {
+                String handshake = readHandshake(new BufferedInputStream(join.getInputStream()));
+                assertNotNull(PeerRequest.parse(handshake).range);
+                join.getOutputStream().write(PeerHeader.error(503, "Too many segmented downloads").encode());
+                refused.incrementAndGet();
+                joined.countDown();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private static SegmentedDownload start(int port, int code, int streams, ExecutorService executor)
+            throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.getOutputStream().write(new PeerRequest(code, null, null, null, "new").encode());
+        InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+        PeerHeader header = PeerHeader.read(in);
+        assertNotNull(header.transfer);
+        return new SegmentedDownload(socket, in, "localhost", port, code, header.transfer, header.size, streams,
+                executor);
+    }
+
+    // One handshake block, or null once the client has closed the connection
+    private static String readHandshake(InputStream in) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        int previous = -1;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n' && previous == '\n') {
+                return block.toString(StandardCharsets.UTF_8);
+            }
+            block.write(b);
+            previous = b;
+        }
+        return null;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,87 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShareJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void replaysTheLiveShares() throws IOException {
+        File file = dir.resolve("shares.journal").toFile();
+        ShareJournal journal = new ShareJournal(file);
+        assertTrue(journal.load().isEmpty());
+        journal.added(entry(100_001, "a.txt", 3));
+        journal.added(new ShareJournal.Entry(100_002, "b.bin", null, null, 0, 0, 10, 0));
+        journal.downloaded(100_001);
+        journal.removed(100_002);
+        journal.close();
+
+        List<ShareJournal.Entry> entries = new ArrayList<>(new ShareJournal(file).load());
+        assertEquals(1, entries.size());
+        ShareJournal.Entry entry = entries.get(0);
+        assertEquals(100_001, entry.code());
+        assertEquals("a.txt", entry.path());
+        assertEquals("text/plain", entry.contentType());
+        assertEquals(1, entry.downloads());
+        assertEquals(3, entry.maxDownloads());
+    }
+
+    @Test
+    public void stopsAtARecordThatWasCutShort() throws IOException {
+        File file = dir.resolve("shares.journal").toFile();
+        ShareJournal journal = new ShareJournal(file);
+        journal.load();
+        journal.added(entry(100_001, "a.txt", 0));
+        journal.added(entry(100_002, "b.txt", 0));
+        journal.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        ShareJournal reloaded = new ShareJournal(file);
+        assertEquals(1, reloaded.load().size());
+        // The damaged tail is gone, so new records follow the good ones
+        reloaded.added(entry(100_003, "c.txt", 0));
+        reloaded.close();
+        assertEquals(2, new ShareJournal(file).load().size());
+    }
+
+    @Test
+    public void compactsToTheLiveShares() throws IOException {
+        File file = dir.resolve("shares.journal").toFile();
+        ShareJournal journal = new ShareJournal(file);
+        journal.load();
+        for (int i = 0; i < 100_000; i++) {
+            journal.added(entry(100_000 + i, "upload-" + i, 0));
+            if (i % 10 != 0) {
+                journal.removed(100_000 + i);
+            }
+        }
+        journal.close();
+        // 10,000 live shares, far fewer than the 190,000 records written
+        assertTrue(file.length() < 20_000 * 64, "journal is " + file.length() + " bytes");
+
+        ShareJournal reloaded = new ShareJournal(file);
+        List<ShareJournal.Entry> entries = new ArrayList<>(reloaded.load());
+        assertEquals(10_000, entries.size());
+        assertNull(entries.stream().filter(e -> e.code() % 10 != 0).findAny().orElse(null));
+    }
+
+    private static ShareJournal.Entry entry(int code, String path, int maxDownloads) {
+        return new ShareJournal.Entry(code, path, "text/plain", "ab12", maxDownloads, 0, 42, 0);
+    }
+}
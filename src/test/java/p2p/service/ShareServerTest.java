@@ -0,0 +1,125 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShareServerTest {
+
+    @TempDir
+    Path dir;
+
+    private FileSharer sharer;
+    private ShareServer server;
+    private int port;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        sharer = new FileSharer(new ContentStore(dir.toString()), new Precompressor(dir.toString()),
+                new BandwidthManager(0, 0, 0), new DiskQuota(dir.toFile(), 0, 0, 0), null,
+                ClusterRing.standalone(port));
+        server = new ShareServer(sharer, port, 300);
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop();
+        sharer.stop();
+    }
+
+    @Test
+    public void servesTheShareNamedInTheHandshake() throws IOException {
+        byte[] data = "hello, share server".getBytes(StandardCharsets.UTF_8);
+        int code = sharer.offerFile(Files.write(dir.resolve("hello.txt"), data).toString());
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write(new PeerRequest(code, "bytes=7-", null, null, null).encode());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            PeerHeader header = PeerHeader.read(in);
+            assertEquals("hello.txt", header.filename);
+            assertEquals(data.length, header.size);
+            assertEquals("bytes=7-18", header.range);
+            assertArrayEquals("share server".getBytes(StandardCharsets.UTF_8), in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void unknownCodesGetAnError() throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write("Code: nonsense\n\n".getBytes(StandardCharsets.UTF_8));
+            PeerHeader header = PeerHeader.read(socket.getInputStream());
+            assertEquals(404, header.status);
+        }
+    }
+
+    @Test
+    public void aBlockedDispatchDoesNotStopOtherConnections() throws Exception {
+        // A share with a download limit journals every download start
+        ShareJournal journal = new ShareJournal(dir.resolve("shares.journal").toFile());
+        journal.load();
+        int journaledPort;
+        try (ServerSocket free = new ServerSocket(0)) {
+            journaledPort = free.getLocalPort();
+        }
+        FileSharer journaled = new FileSharer(new ContentStore(dir.toString()), new Precompressor(dir.toString()),
+                new BandwidthManager(0, 0, 0), new DiskQuota(dir.toFile(), 0, 0, 0), journal,
+                ClusterRing.standalone(journaledPort));
+        ShareServer journaledServer = new ShareServer(journaled, journaledPort, 5000);
+        journaledServer.start();
+        int code = journaled.offerFile(Files.writeString(dir.resolve("limited.txt"), "limited").toString(),
+                "text/plain", null, 5, 0);
+        try (Socket waiting = new Socket("localhost", journaledPort)) {
+            synchronized (journal) {
+                // This download can't start until the journal is free again...
+                waiting.getOutputStream().write(new PeerRequest(code, null, null, null, null).encode());
+                Thread.sleep(100);
+                // ...but the share server still answers everyone else
+                try (Socket other = new Socket("localhost", journaledPort)) {
+                    other.setSoTimeout(2000);
+                    other.getOutputStream().write("Code: 1\n\n".getBytes(StandardCharsets.UTF_8));
+                    assertEquals(404, PeerHeader.read(other.getInputStream()).status);
+                }
+            }
+            assertEquals("limited.txt", PeerHeader.read(waiting.getInputStream()).filename);
+        } finally {
+            journaledServer.stop();
+            journaled.stop();
+        }
+    }
+
+    @Test
+    public void connectionsThatNeverFinishTheirHandshakeAreClosed() throws Exception {
+        try (Socket silent = new Socket("localhost", port); Socket slow = new Socket("localhost", port)) {
+            silent.setSoTimeout(5000);
+            slow.setSoTimeout(5000);
+            slow.getOutputStream().write("Code: 123456\n".getBytes(StandardCharsets.UTF_8));
+            long start = System.nanoTime();
+            assertThrows(EOFException.class, () -> PeerHeader.read(silent.getInputStream()));
+            assertThrows(EOFException.class, () -> PeerHeader.read(slow.getInputStream()));
+            long waited = (System.nanoTime() - start) / 1_000_000;
+            // Closed once the handshake time is up, not before
+            assertTrue(waited >= 250 && waited < 4000, "closed after " + waited + " ms");
+        }
+        // The server still takes new connections
+        unknownCodesGetAnError();
+    }
+}
@@ -0,0 +1,65 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class ShareTest {
+
+    @Test
+    public void concurrentDownloadsAreCappedButFreedSlotsCanBeReused() {
+        Share share = new Share(100000, "a.txt", null, null, 2, 0, 0);
+        assertTrue(share.tryStartDownload());
+        assertTrue(share.tryStartDownload());
+        assertFalse(share.tryStartDownload());
+
+        assertFalse(share.finishDownload());
+        assertTrue(share.tryStartDownload());
+        assertEquals(3, share.getDownloads());
+        assertFalse(share.isExhausted());
+    }
+
+    @Test
+    public void aDownloadLimitExhaustsTheShare() {
+        Share share = new Share(100000, "a.txt", null, null, 8, 2, 0);
+        assertTrue(share.tryStartDownload());
+        assertFalse(share.isExhausted());
+        assertTrue(share.tryStartDownload());
+        assertTrue(share.isExhausted());
+        // Finishing a download doesn't give its turn back
+        share.finishDownload();
+        assertFalse(share.tryStartDownload());
+        assertEquals(2, share.getDownloads());
+    }
+
+    @Test
+    public void restoredDownloadsCountTowardsTheLimit() {
+        Share share = new Share(100000, "a.txt", null, null, 8, 3, 0);
+        share.restoreDownloads(2);
+        assertTrue(share.tryStartDownload());
+        assertFalse(share.tryStartDownload());
+    }
+
+    @Test
+    public void aRetiredShareIsReclaimedOnceItsLastDownloadEnds() {
+        Share share = new Share(100000, "a.txt", null, null, 8, 0, 0);
+        assertTrue(share.tryStartDownload());
+        assertTrue(share.tryStartDownload());
+        assertFalse(share.retire());
+        assertFalse(share.tryStartDownload());
+        assertFalse(share.finishDownload());
+        assertTrue(share.finishDownload());
+
+        assertTrue(new Share(100001, "b.txt", null, null, 8, 0, 0).retire());
+    }
+
+    @Test
+    public void expiryIsAFixedDeadline() {
+        assertFalse(new Share(100000, "a.txt", null, null, 8, 0, 0).isExpired(Long.MAX_VALUE));
+        Share share = new Share(100000, "a.txt", null, null, 8, 0, 1000);
+        assertFalse(share.isExpired(999));
+        assertTrue(share.isExpired(1000));
+    }
+}
@@ -0,0 +1,25 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class TransferTest {
+
+    @Test
+    public void connectionsAreLimitedAndTheLastOneEndsTheTransfer() {
+        Transfer transfer = new Transfer(1, null);
+        for (int i = 1; i < Transfer.MAX_CONNECTIONS; i++) {
+            assertTrue(transfer.tryJoin());
+        }
+        assertFalse(transfer.tryJoin());
+
+        for (int i = 1; i < Transfer.MAX_CONNECTIONS; i++) {
+            assertFalse(transfer.leave());
+        }
+        assertTrue(transfer.leave());
+        // Nobody can join a transfer that has ended
+        assertFalse(transfer.tryJoin());
+    }
+}
@@ -0,0 +1,75 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.utils.ByteRange;
+
+public class UploadSessionTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void receivedRangesAreMergedAsChunksArrive() throws IOException {
+        UploadSession session = session(100);
+        write(session, 50, 10);
+        write(session, 10, 10);
+        assertEquals("bytes=10-19,50-59", ByteRange.format(session.getReceived()));
+
+        // Touching the end of one range and the start of the next joins all three
+        write(session, 20, 30);
+        assertEquals("bytes=10-59", ByteRange.format(session.getReceived()));
+
+        // Overlaps and chunks sent twice change nothing but the ends
+        write(session, 5, 10);
+        write(session, 55, 20);
+        write(session, 30, 5);
+        assertEquals("bytes=5-74", ByteRange.format(session.getReceived()));
+        assertFalse(session.isComplete());
+
+        // One chunk spanning several ranges swallows them
+        write(session, 80, 5);
+        write(session, 90, 5);
+        write(session, 0, 100);
+        assertEquals("bytes=0-99", ByteRange.format(session.getReceived()));
+        assertTrue(session.isComplete());
+        session.close();
+    }
+
+    @Test
+    public void chunksMustFitInTheFile() throws IOException {
+        UploadSession session = session(10);
+        assertThrows(IllegalArgumentException.class, () -> write(session, 11, 1));
+        assertThrows(IllegalArgumentException.class, () -> write(session, 5, 6));
+        assertTrue(session.getReceived().isEmpty());
+        session.close();
+    }
+
+    @Test
+    public void anEmptyFileIsCompleteAtOnce() throws IOException {
+        UploadSession session = session(0);
+        assertTrue(session.isComplete());
+        session.close();
+    }
+
+    private UploadSession session(long size) throws IOException {
+        DiskQuota quota = new DiskQuota(dir.toFile(), 0, 0, 0);
+        return new UploadSession("id", "a.bin", "application/octet-stream", size,
+                Files.createTempFile(dir, "upload", null).toFile(), quota.reserve(size));
+    }
+
+    private static void write(UploadSession session, long offset, int length) throws IOException {
+        session.writeChunk(offset, new ByteArrayInputStream(new byte[length]));
+    }
+}
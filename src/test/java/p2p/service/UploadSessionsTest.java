@@ -0,0 +1,96 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class UploadSessionsTest {
+
+    @TempDir
+    Path dir;
+
+    private UploadSessions sessions;
+
+    @AfterEach
+    public void stop() {
+        if (sessions != null) {
+            sessions.close();
+        }
+    }
+
+    @Test
+    public void abandonedSessionsAreAborted() throws Exception {
+        DiskQuota quota = new DiskQuota(dir.toFile(), 0, 0, 0);
+        sessions = new UploadSessions(dir.toString(), quota, 300);
+        UploadSession idle = sessions.create("idle.bin", "application/octet-stream", 1_000_000);
+        UploadSession busy = sessions.create("busy.bin", "application/octet-stream", 1_000);
+        assertEquals(1_001_000, quota.reserved());
+
+        // One chunk every 50 ms keeps the second session alive
+        for (int i = 0; i < 10; i++) {
+            busy.writeChunk(i * 100, new ByteArrayInputStream(new byte[100]));
+            Thread.sleep(50);
+        }
+        // Long past the first session's idle time, well within the second's
+        Thread.sleep(100);
+
+        assertNull(sessions.get(idle.getId()));
+        assertFalse(idle.getFile().exists());
+        assertNotNull(sessions.get(busy.getId()));
+        assertEquals(1_000, quota.reserved());
+    }
+
+    @Test
+    public void finishWaitsForChunksBeingWritten() throws Exception {
+        sessions = new UploadSessions(dir.toString(), new DiskQuota(dir.toFile(), 0, 0, 0), 60_000);
+        UploadSession session = sessions.create("a.bin", "application/octet-stream", 10);
+        session.writeChunk(0, new ByteArrayInputStream(new byte[5]));
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            try {
+                session.writeChunk(5, new InputStream() {
+                    private int left = 5;
+
+                    @Override
+                    public int read() throws IOException {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        return left-- > 0 ? 'x' : -1;
+                    }
+                });
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        started.await();
+        assertThrows(IllegalStateException.class, () -> sessions.abort(session.getId()));
+        release.countDown();
+        writer.join();
+
+        assertTrue(session.isComplete());
+        assertEquals(session, sessions.finish(session.getId()));
+        // The file is closed now, so a late chunk is refused
+        assertThrows(IllegalStateException.class,
+                () -> session.writeChunk(0, new ByteArrayInputStream(new byte[1])));
+    }
+}
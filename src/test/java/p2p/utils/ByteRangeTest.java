@@ -0,0 +1,49 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ByteRangeTest {
+
+    @Test
+    public void resolvesOpenAndSuffixRanges() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-99, 900-, -50", 1000);
+        assertEquals(3, ranges.size());
+        assertEquals(0, ranges.get(0).start);
+        assertEquals(99, ranges.get(0).end);
+        assertEquals(900, ranges.get(1).start);
+        assertEquals(999, ranges.get(1).end);
+        assertEquals(950, ranges.get(2).start);
+        assertEquals("bytes=0-99,900-999,950-999", ByteRange.format(ranges));
+    }
+
+    @Test
+    public void clampsEndAndDropsRangesPastTheFile() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=500-5000,2000-3000", 1000);
+        assertEquals(1, ranges.size());
+        assertEquals(999, ranges.get(0).end);
+        assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+    }
+
+    @Test
+    public void ignoresMalformedHeaders() {
+        assertNull(ByteRange.parse("items=0-1", 1000));
+        assertNull(ByteRange.parse("bytes=abc", 1000));
+        assertNull(ByteRange.parse("bytes=10-5", 1000));
+    }
+
+    @Test
+    public void ifRangeNeedsMatchingValidator() {
+        assertTrue(ByteRange.ifRangeMatches(null, "\"a\"", 0));
+        assertTrue(ByteRange.ifRangeMatches("\"a\"", "\"a\"", 0));
+        assertFalse(ByteRange.ifRangeMatches("\"b\"", "\"a\"", 0));
+        assertFalse(ByteRange.ifRangeMatches("W/\"a\"", "\"a\"", 0));
+        assertTrue(ByteRange.ifRangeMatches("Thu, 01 Jan 1970 00:00:10 GMT", "\"a\"", 10_500));
+    }
+}
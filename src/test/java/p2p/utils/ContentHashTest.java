@@ -0,0 +1,56 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class ContentHashTest {
+    private static final String ABC = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @Test
+    public void hashesAndFormats() {
+        assertEquals(ABC, ContentHash.hex(ContentHash.newDigest().digest("abc".getBytes(StandardCharsets.US_ASCII))));
+        assertEquals("sha-256=:ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=:", ContentHash.reprDigest(ABC));
+    }
+
+    @Test
+    public void passesMatchingContentThrough() throws IOException {
+        byte[] data = new byte[200_000];
+        new Random(3).nextBytes(data);
+        String hash = ContentHash.hex(ContentHash.newDigest().digest(data));
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        OutputStream out = ContentHash.verifying(received, hash, data.length);
+        for (int i = 0; i < data.length; i += 65536) {
+            out.write(data, i, Math.min(65536, data.length - i));
+        }
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    @Test
+    public void withholdsTheLastWriteOfDamagedContent() throws IOException {
+        byte[] data = "hello, world".getBytes(StandardCharsets.US_ASCII);
+        String hash = ContentHash.hex(ContentHash.newDigest().digest(data));
+        data[0] = 'j';
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        OutputStream out = ContentHash.verifying(received, hash, data.length);
+        out.write(data, 0, 5);
+        assertThrows(IOException.class, () -> out.write(data, 5, data.length - 5));
+        assertEquals(5, received.size());
+    }
+
+    @Test
+    public void rejectsMoreThanAnnounced() {
+        OutputStream out = ContentHash.verifying(new ByteArrayOutputStream(), ABC, 2);
+        assertThrows(IOException.class, () -> out.write(new byte[3]));
+    }
+}
@@ -0,0 +1,44 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void bucketsCoverEveryValueWithinTheirBounds() {
+        long[] samples = { 0, 1, 64, 65, 96, 97, 128, 129, 1000, 1_000_000, 123_456_789, (1L << 32) - 1, 1L << 32 };
+        for (long micros : samples) {
+            int bucket = Metrics.Histogram.bucket(micros);
+            assertTrue(micros <= Metrics.Histogram.upperBound(bucket), "value above its bucket: " + micros);
+            if (bucket > 0) {
+                assertTrue(micros > Metrics.Histogram.upperBound(bucket - 1), "value below its bucket: " + micros);
+            }
+        }
+        // Beyond the last bound goes to the overflow cell, rendered only as +Inf
+        assertEquals(Metrics.Histogram.bucket((1L << 32) + 1), Metrics.Histogram.bucket(Long.MAX_VALUE / 1000));
+    }
+
+    @Test
+    public void rendersPrometheusText() {
+        Metrics.Counter counter = Metrics.counter("test_bytes_total", "Bytes", "direction", "up");
+        counter.add(5);
+        assertSame(counter, Metrics.counter("test_bytes_total", "Bytes", "direction", "up"));
+        Metrics.Histogram histogram = Metrics.histogram("test_latency_seconds", "Latency");
+        histogram.record(2_000_000); // 2 ms
+        Metrics.gauge("test_queue_depth", "Queue", () -> 7, "pool", "http");
+
+        String text = Metrics.render();
+        assertTrue(text.contains("# TYPE test_bytes_total counter\n"));
+        assertTrue(text.contains("test_bytes_total{direction=\"up\"} 5\n"));
+        assertTrue(text.contains("test_queue_depth{pool=\"http\"} 7\n"));
+        assertTrue(text.contains("test_latency_seconds_bucket{le=\"0.001536\"} 0\n"));
+        assertTrue(text.contains("test_latency_seconds_bucket{le=\"0.002048\"} 1\n"));
+        assertTrue(text.contains("test_latency_seconds_bucket{le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("test_latency_seconds_sum 0.002000\n"));
+        assertTrue(text.contains("test_latency_seconds_count 1\n"));
+    }
+}
@@ -0,0 +1,142 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class MultipartParserTest {
+    private static final String BOUNDARY = "----WebKitFormBoundary1234";
+
+    private static byte[] body(byte[] fileContent) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"username\"\r\n\r\n"
+                + "Alice\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"photo\"; filename=\"selfie.jpg\"\r\n"
+                + "Content-Type: image/jpeg\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write(fileContent);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void streamsFilePartLargerThanWindow() throws IOException {
+        byte[] content = new byte[300_000];
+        new Random(42).nextBytes(content);
+        // Put something that looks like the start of a boundary inside the payload
+        byte[] fake = ("\r\n--" + BOUNDARY.substring(0, 10)).getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(fake, 0, content, 65_530, fake.length);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        String[] seen = new String[2];
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body(content)), BOUNDARY);
+        MultipartParser.ParseResult result = parser.parse((filename, contentType) -> {
+            seen[0] = filename;
+            seen[1] = contentType;
+            return received;
+        });
+
+        assertEquals("selfie.jpg", result.filename);
+        assertEquals("image/jpeg", result.contentType);
+        assertEquals("selfie.jpg", seen[0]);
+        assertEquals(content.length, result.size);
+        assertArrayEquals(content, received.toByteArray());
+    }
+
+    @Test
+    public void returnsNullWithoutFilePart() throws IOException {
+        String body = "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"username\"\r\n\r\n"
+                + "Alice\r\n"
+                + "--" + BOUNDARY + "--\r\n";
+        MultipartParser parser = new MultipartParser(
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), BOUNDARY);
+        assertNull(parser.parse((filename, contentType) -> new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void parseAllStreamsEveryFilePart() throws IOException {
+        byte[] photo = new byte[100_000];
+        new Random(3).nextBytes(photo);
+        String notes = "first line\r\nsecond line";
+        // The single-file body without its closing boundary, followed by a second file
+        byte[] first = body(photo);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(first, 0, first.length - ("--" + BOUNDARY + "--\r\n").length());
+        body.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"files\"; filename=\"docs/notes.txt\"\r\n"
+                + "Content-Type: text/plain\r\n\r\n"
+                + notes + "\r\n"
+                + "--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        List<ByteArrayOutputStream> received = new ArrayList<>();
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body.toByteArray()), BOUNDARY);
+        List<MultipartParser.ParseResult> parts = parser.parseAll((filename, contentType) -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            received.add(out);
+            return out;
+        });
+
+        assertEquals(2, parts.size());
+        assertEquals("selfie.jpg", parts.get(0).filename);
+        assertEquals(photo.length, parts.get(0).size);
+        assertArrayEquals(photo, received.get(0).toByteArray());
+        assertEquals("docs/notes.txt", parts.get(1).filename);
+        assertEquals("text/plain", parts.get(1).contentType);
+        assertEquals(notes, received.get(1).toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void failsOnTruncatedBody() throws IOException {
+        byte[] full = body(new byte[1000]);
+        byte[] truncated = new byte[full.length - 40];
+        System.arraycopy(full, 0, truncated, 0, truncated.length);
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(truncated), BOUNDARY);
+        assertThrows(IOException.class,
+                () -> parser.parse((filename, contentType) -> new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void findSequenceAgreesWithNaiveSearch() {
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(new byte[0]), BOUNDARY);
+        byte[] sequence = "\r\n--ab-a".getBytes(StandardCharsets.US_ASCII);
+        byte[] alphabet = "\r\n-ab".getBytes(StandardCharsets.US_ASCII);
+        Random random = new Random(7);
+        for (int round = 0; round < 2000; round++) {
+            byte[] data = new byte[random.nextInt(64)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            if (data.length >= sequence.length && random.nextBoolean()) {
+                System.arraycopy(sequence, 0, data, random.nextInt(data.length - sequence.length + 1), sequence.length);
+            }
+            int start = data.length == 0 ? 0 : random.nextInt(data.length);
+            assertEquals(naiveFind(data, start, data.length, sequence),
+                    parser.findSequence(data, start, data.length, sequence));
+        }
+    }
+
+    private static int naiveFind(byte[] data, int start, int end, byte[] sequence) {
+        outer: for (int i = start; i <= end - sequence.length; i++) {
+            for (int j = 0; j < sequence.length; j++) {
+                if (data[i + j] != sequence[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
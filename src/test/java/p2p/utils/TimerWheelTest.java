@@ -0,0 +1,55 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class TimerWheelTest {
+
+    @Test
+    public void deadlinesThatHaveArrivedFireOnTheNextTick() throws InterruptedException {
+        // 10 ms ticks, a revolution every 640 ms
+        CountDownLatch fired = new CountDownLatch(2);
+        TimerWheel<String> wheel = new TimerWheel<>("test-wheel", 10, 64, item -> fired.countDown());
+        try {
+            Thread.sleep(105);
+            long now = System.currentTimeMillis();
+            // One long past, one in the slot the wheel is on now
+            wheel.schedule("past", now - 60_000);
+            wheel.schedule("now", now);
+            assertTrue(fired.await(200, TimeUnit.MILLISECONDS));
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void nothingFiresBeforeItsDeadline() throws InterruptedException {
+        List<Long> lateness = new CopyOnWriteArrayList<>();
+        CountDownLatch fired = new CountDownLatch(3);
+        long start = System.currentTimeMillis();
+        TimerWheel<Long> wheel = new TimerWheel<>("test-wheel", 10, 8, deadline -> {
+            lateness.add(System.currentTimeMillis() - deadline);
+            fired.countDown();
+        });
+        try {
+            // The last one is due after more than one revolution (80 ms)
+            for (long delay : new long[] { 25, 50, 170 }) {
+                wheel.schedule(start + delay, start + delay);
+            }
+            assertTrue(fired.await(2, TimeUnit.SECONDS));
+            assertEquals(3, lateness.size());
+            for (long late : lateness) {
+                assertTrue(late >= 0 && late < 100, "fired " + late + " ms after its deadline");
+            }
+        } finally {
+            wheel.stop();
+        }
+    }
+}
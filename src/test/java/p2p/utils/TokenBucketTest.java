@@ -0,0 +1,41 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class TokenBucketTest {
+
+    @Test
+    public void holdsTakersToTheRate() throws IOException {
+        TokenBucket bucket = new TokenBucket(() -> 1024 * 1024);
+        long start = System.nanoTime();
+        // 100 ms of burst, then 400 ms at 1 MB/s
+        for (int i = 0; i < 8; i++) {
+            bucket.take(64 * 1024);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMillis >= 350 && elapsedMillis < 1500, "took " + elapsedMillis + " ms");
+    }
+
+    @Test
+    public void followsALimitChangedWhileWaiting() throws IOException {
+        AtomicLong rate = new AtomicLong(1);
+        TokenBucket bucket = new TokenBucket(rate::get);
+        new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            rate.set(0);
+        }).start();
+        long start = System.nanoTime();
+        // At one byte a second this would take days; lifting the limit lets it through
+        bucket.take(1024 * 1024);
+        assertTrue(System.nanoTime() - start < 2_000_000_000L);
+    }
+}
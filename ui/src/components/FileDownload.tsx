@@ -17,8 +17,8 @@ export default function FileDownload({ onDownload, isDownloading }: FileDownload
     setError('');
 
     const port = parseInt(inviteCode.trim(), 10);
-    if (isNaN(port) || port <= 0 || port > 65535) {
-      setError('Please enter a valid port number (1-65535)');
+    if (isNaN(port) || port < 100000 || port > 999999) {
+      setError('Please enter a valid 6-digit invite code');
       return;
     }
 
@@ -48,7 +48,7 @@ export default function FileDownload({ onDownload, isDownloading }: FileDownload
             id="inviteCode"
             value={inviteCode}
             onChange={(e) => setInviteCode(e.target.value)}
-            placeholder="ENTER PORT NUMBER"
+            placeholder="ENTER INVITE CODE"
             className="input-field uppercase placeholder:text-[#7e7e7e]"
             disabled={isDownloading}
             required
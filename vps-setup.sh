@@ -16,7 +16,7 @@ sudo apt upgrade -y
 
 # Install Java
 echo "Installing Java..."
-sudo apt install -y openjdk-17-jdk
+sudo apt install -y openjdk-21-jdk
 
 # Install Node.js
 echo "Installing Node.js..."